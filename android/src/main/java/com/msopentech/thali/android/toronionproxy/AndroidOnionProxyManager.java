@@ -55,6 +55,8 @@ public class AndroidOnionProxyManager extends OnionProxyManager {
     private static final Logger LOG = LoggerFactory.getLogger(AndroidOnionProxyManager.class);
 
     private volatile BroadcastReceiver networkStateReceiver;
+    // Guards registering and unregistering the receiver
+    private final Object receiverLock = new Object();
 
     private final Context context;
 
@@ -66,30 +68,36 @@ public class AndroidOnionProxyManager extends OnionProxyManager {
     }
 
     @Override
-    public synchronized void start() throws IOException {
-        super.start();
-        // Register to receive network status events
-        networkStateReceiver = new NetworkStateReceiver();
-        IntentFilter filter = new IntentFilter(CONNECTIVITY_ACTION);
-        context.registerReceiver(networkStateReceiver, filter);
+    public void start() throws IOException {
+        synchronized (receiverLock) {
+            super.start();
+            if (networkStateReceiver != null) {
+                return;
+            }
+            // Register to receive network status events
+            networkStateReceiver = new NetworkStateReceiver();
+            IntentFilter filter = new IntentFilter(CONNECTIVITY_ACTION);
+            context.registerReceiver(networkStateReceiver, filter);
+        }
     }
 
     @Override
-    public synchronized void stop() throws IOException {
-        try {
-            super.stop();
-        } finally {
-            if (networkStateReceiver != null) {
-                try {
-                    context.unregisterReceiver(networkStateReceiver);
-                } catch (IllegalArgumentException e) {
-                    // There is a race condition where if someone calls stop before installAndStartTorOp is done
-                    // then we could get an exception because the network state receiver might not be properly
-                    // registered.
-                    LOG.info(
-                            "Someone tried to call stop before we had finished registering the receiver",
-                            e);
-                }
+    protected void onStopping() {
+        synchronized (receiverLock) {
+            if (networkStateReceiver == null) {
+                return;
+            }
+            try {
+                context.unregisterReceiver(networkStateReceiver);
+            } catch (IllegalArgumentException e) {
+                // There is a race condition where if someone calls stop before installAndStartTorOp is done
+                // then we could get an exception because the network state receiver might not be properly
+                // registered.
+                LOG.info(
+                        "Someone tried to call stop before we had finished registering the receiver",
+                        e);
+            } finally {
+                networkStateReceiver = null;
             }
         }
     }
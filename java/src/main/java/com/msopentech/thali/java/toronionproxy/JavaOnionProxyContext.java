@@ -16,6 +16,7 @@ package com.msopentech.thali.java.toronionproxy;
 import com.msopentech.thali.toronionproxy.*;
 
 import java.io.*;
+import java.nio.channels.SocketChannel;
 
 public final class JavaOnionProxyContext extends OnionProxyContext {
 
@@ -32,6 +33,16 @@ public final class JavaOnionProxyContext extends OnionProxyContext {
         return new JavaWatchObserver(file);
     }
 
+    @Override
+    public boolean supportsUnixDomainSockets() {
+        return UnixDomainSockets.isSupported();
+    }
+
+    @Override
+    public SocketChannel openUnixDomainSocket(File socketFile) throws IOException {
+        return UnixDomainSockets.connect(socketFile);
+    }
+
     @Override
     public String getProcessId() {
         // This is a horrible hack. It seems like more JVMs will return the process's PID this way, but not guarantees.
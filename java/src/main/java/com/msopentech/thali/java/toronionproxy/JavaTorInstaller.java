@@ -74,10 +74,20 @@ public class JavaTorInstaller extends TorInstaller {
     @Override
     public void setup() throws IOException {
         LOG.info("Setting up tor");
+        setupResources();
+        setupTorExecutable();
+    }
+
+    @Override
+    public void setupExecutable() throws IOException {
+        setupTorExecutable();
+    }
+
+    @Override
+    public void setupResources() throws IOException {
         LOG.info("Installing resources: geoip=" + config.getGeoIpFile().getAbsolutePath());
         cleanInstallOneFile(getAssetOrResourceByName(TorConfig.GEO_IP_NAME), config.getGeoIpFile());
         cleanInstallOneFile(getAssetOrResourceByName(TorConfig.GEO_IPV_6_NAME), config.getGeoIpv6File());
-        setupTorExecutable();
     }
 
     protected void setupTorExecutable() throws IOException {
@@ -88,6 +98,14 @@ public class JavaTorInstaller extends TorInstaller {
         setPerms(config.getTorExecutableFile());
     }
 
+    /**
+     * Opens <code>cache-snapshot.zip</code> next to <code>tor.zip</code>, if one has been bundled
+     */
+    @Override
+    public InputStream openCacheSnapshotStream() throws IOException {
+        return getAssetOrResourceByName(getPathToTorExecutable() + "cache-snapshot.zip");
+    }
+
     /**
      * Updates the content of torrc file, writing out the specified content. This is currently unsupported (see issue #69)
      *
@@ -0,0 +1,103 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.java.toronionproxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Unix domain socket channels from JDK 16 and later. This module is built for Java 8, so the JDK 16 classes are
+ * looked up reflectively; on older JVMs {@link #isSupported()} is false.
+ */
+public final class UnixDomainSockets {
+    private static final Method ADDRESS_OF;
+    private static final ProtocolFamily UNIX;
+
+    static {
+        Method addressOf = null;
+        ProtocolFamily unix = null;
+        try {
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+            for (Object family : Class.forName("java.net.StandardProtocolFamily").getEnumConstants()) {
+                if ("UNIX".equals(((Enum<?>) family).name())) {
+                    unix = (ProtocolFamily) family;
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            addressOf = null;
+        } catch (NoSuchMethodException e) {
+            addressOf = null;
+        }
+        ADDRESS_OF = unix == null ? null : addressOf;
+        UNIX = unix;
+    }
+
+    private UnixDomainSockets() {
+    }
+
+    public static boolean isSupported() {
+        return ADDRESS_OF != null;
+    }
+
+    /**
+     * Opens a blocking channel connected to the socket at <code>socketFile</code>
+     */
+    public static SocketChannel connect(File socketFile) throws IOException {
+        return SocketChannel.open(address(socketFile));
+    }
+
+    /**
+     * Opens a server channel listening on <code>socketFile</code>, which must not exist yet
+     */
+    public static ServerSocketChannel bind(File socketFile) throws IOException {
+        ServerSocketChannel channel;
+        try {
+            channel = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class)
+                    .invoke(null, UNIX);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Unix domain sockets are not supported", e);
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException("Unix domain sockets are not supported", e);
+        } catch (InvocationTargetException e) {
+            throw new IOException(e.getCause());
+        }
+        try {
+            channel.bind(address(socketFile));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private static SocketAddress address(File socketFile) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later");
+        }
+        try {
+            return (SocketAddress) ADDRESS_OF.invoke(null, socketFile.getAbsolutePath());
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException("Unix domain sockets are not supported", e);
+        } catch (InvocationTargetException e) {
+            // UnixDomainSocketAddress.of rejects paths that are too long for the platform
+            throw new IllegalArgumentException("Invalid socket path: " + socketFile, e.getCause());
+        }
+    }
+}
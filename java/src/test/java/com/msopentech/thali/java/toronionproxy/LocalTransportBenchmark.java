@@ -0,0 +1,126 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.java.toronionproxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Compares the round trip latency of loopback TCP and unix domain sockets. A local echo server stands in for the Tor
+ * OP and each round trip is a control-port sized command and reply. Needs Java 16 or later for the unix domain
+ * socket half.
+ *
+ * Run with: java -cp ... com.msopentech.thali.java.toronionproxy.LocalTransportBenchmark [roundTrips]
+ */
+public final class LocalTransportBenchmark {
+    private static final byte[] COMMAND = "GETINFO status/bootstrap-phase net/listeners/socks\r\n".getBytes();
+
+    public static void main(String[] args) throws Exception {
+        int roundTrips = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        ServerSocketChannel tcpServer = ServerSocketChannel.open();
+        tcpServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        report("loopback tcp", measure(tcpServer, SocketChannel.open(tcpServer.getLocalAddress()), roundTrips));
+        tcpServer.close();
+
+        if (!UnixDomainSockets.isSupported()) {
+            System.out.println("unix domain sockets need Java 16 or later, skipped");
+            return;
+        }
+        File dir = Files.createTempDirectory("uds-bench").toFile();
+        File socketFile = new File(dir, "bench.sock");
+        ServerSocketChannel unixServer = UnixDomainSockets.bind(socketFile);
+        try {
+            report("unix socket", measure(unixServer, UnixDomainSockets.connect(socketFile), roundTrips));
+        } finally {
+            unixServer.close();
+            socketFile.delete();
+            dir.delete();
+        }
+    }
+
+    private static long[] measure(ServerSocketChannel server, SocketChannel client, int roundTrips)
+            throws Exception {
+        final SocketChannel accepted = server.accept();
+        if (client.getLocalAddress() instanceof InetSocketAddress) {
+            client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            accepted.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        Thread echo = new Thread("echo") {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocate(4096);
+                try {
+                    while (accepted.read(buffer) != -1) {
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            accepted.write(buffer);
+                        }
+                        buffer.clear();
+                    }
+                } catch (IOException e) {
+                    // Client closed
+                }
+            }
+        };
+        echo.setDaemon(true);
+        echo.start();
+
+        ByteBuffer reply = ByteBuffer.allocate(COMMAND.length);
+        // Warm up the JIT before measuring
+        for (int i = 0; i < roundTrips / 10; i++) {
+            roundTrip(client, reply);
+        }
+        long[] nanos = new long[roundTrips];
+        for (int i = 0; i < roundTrips; i++) {
+            long start = System.nanoTime();
+            roundTrip(client, reply);
+            nanos[i] = System.nanoTime() - start;
+        }
+        client.close();
+        accepted.close();
+        return nanos;
+    }
+
+    private static void roundTrip(SocketChannel client, ByteBuffer reply) throws IOException {
+        ByteBuffer command = ByteBuffer.wrap(COMMAND);
+        while (command.hasRemaining()) {
+            client.write(command);
+        }
+        reply.clear();
+        while (reply.hasRemaining()) {
+            if (client.read(reply) == -1) {
+                throw new IOException("Echo server closed the connection");
+            }
+        }
+    }
+
+    private static void report(String name, long[] nanos) {
+        Arrays.sort(nanos);
+        System.out.printf("%-14s p50 %6.1f us   p90 %6.1f us   p99 %6.1f us%n", name,
+                percentile(nanos, 50), percentile(nanos, 90), percentile(nanos, 99));
+    }
+
+    private static double percentile(long[] sorted, int percentile) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)] / 1000.0;
+    }
+}
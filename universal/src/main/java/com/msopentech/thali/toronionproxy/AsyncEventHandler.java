@@ -0,0 +1,261 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import net.freehaven.tor.control.EventHandler;
+
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * Hands events to another EventHandler on a dedicated consumer thread, so that a slow handler can't hold up the
+ * control connection's reader thread and with it the replies to every command.
+ * <p>
+ * Events wait in a bounded {@link SlotQueue} of preallocated slots. What happens when it is full is decided by the
+ * {@link OverflowPolicy}. Events are delivered in order, on a single thread per AsyncEventHandler.
+ */
+public final class AsyncEventHandler implements EventHandler, Closeable {
+    public enum OverflowPolicy {
+        /**
+         * Discard the oldest waiting event to make room
+         */
+        DROP_OLDEST,
+        /**
+         * When the buffer is full, add bandwidth events to the newest waiting bandwidth event, so the totals stay right
+         * but fewer events are delivered. Any other event that doesn't fit discards the oldest waiting event.
+         */
+        COALESCE_BANDWIDTH,
+        /**
+         * Make the reader thread wait for room. Nothing is lost, but replies to commands are delayed for as long as
+         * the consumer is behind.
+         */
+        BLOCK
+    }
+
+    private enum Kind {CIRCUIT, STREAM, OR_CONN, BANDWIDTH, DESCRIPTORS, MESSAGE, UNRECOGNIZED}
+
+    private static final class Slot {
+        Kind kind;
+        String first;
+        String second;
+        String third;
+        long read;
+        long written;
+        List<String> descriptors;
+
+        void copyFrom(Slot other) {
+            kind = other.kind;
+            first = other.first;
+            second = other.second;
+            third = other.third;
+            read = other.read;
+            written = other.written;
+            descriptors = other.descriptors;
+        }
+
+        void clear() {
+            first = null;
+            second = null;
+            third = null;
+            descriptors = null;
+        }
+    }
+
+    private final EventHandler delegate;
+    private final OverflowPolicy policy;
+    private final SlotQueue<Slot> queue;
+
+    // Guarded by the queue's lock, the newest waiting bandwidth event
+    private Slot pendingBandwidth;
+
+    public AsyncEventHandler(EventHandler delegate, int capacity, OverflowPolicy policy) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate is null");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy is null");
+        }
+        this.delegate = delegate;
+        this.policy = policy;
+        this.queue = new SlotQueue<Slot>("AsyncEventHandler", "Event handler", "events", new SlotQueue.Slots<Slot>() {
+            @Override
+            Slot create() {
+                return new Slot();
+            }
+
+            @Override
+            void copy(Slot from, Slot to) {
+                to.copyFrom(from);
+            }
+
+            @Override
+            void clear(Slot slot) {
+                slot.clear();
+            }
+
+            @Override
+            void deliver(Slot slot) {
+                AsyncEventHandler.this.deliver(slot);
+            }
+
+            @Override
+            void removed(Slot slot) {
+                if (pendingBandwidth == slot) {
+                    pendingBandwidth = null;
+                }
+            }
+        }, capacity, policy == OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Returns how many events have been discarded because the buffer was full
+     */
+    public long getDroppedCount() {
+        return queue.getDroppedCount();
+    }
+
+    @Override
+    public void circuitStatus(String status, String id, String path) {
+        Slot slot = acquire(Kind.CIRCUIT);
+        if (slot != null) {
+            slot.first = status;
+            slot.second = id;
+            slot.third = path;
+            publish();
+        }
+    }
+
+    @Override
+    public void streamStatus(String status, String id, String target) {
+        Slot slot = acquire(Kind.STREAM);
+        if (slot != null) {
+            slot.first = status;
+            slot.second = id;
+            slot.third = target;
+            publish();
+        }
+    }
+
+    @Override
+    public void orConnStatus(String status, String orName) {
+        Slot slot = acquire(Kind.OR_CONN);
+        if (slot != null) {
+            slot.first = status;
+            slot.second = orName;
+            publish();
+        }
+    }
+
+    @Override
+    public void bandwidthUsed(long read, long written) {
+        queue.lock();
+        try {
+            // Only when full, merging earlier would reorder events and turn per second samples into sums
+            if (policy == OverflowPolicy.COALESCE_BANDWIDTH && queue.isFull() && pendingBandwidth != null) {
+                pendingBandwidth.read += read;
+                pendingBandwidth.written += written;
+                return;
+            }
+        } finally {
+            queue.unlock();
+        }
+        Slot slot = acquire(Kind.BANDWIDTH);
+        if (slot != null) {
+            slot.read = read;
+            slot.written = written;
+            pendingBandwidth = slot;
+            publish();
+        }
+    }
+
+    @Override
+    public void newDescriptors(List<String> orList) {
+        Slot slot = acquire(Kind.DESCRIPTORS);
+        if (slot != null) {
+            slot.descriptors = orList;
+            publish();
+        }
+    }
+
+    @Override
+    public void message(String severity, String msg) {
+        Slot slot = acquire(Kind.MESSAGE);
+        if (slot != null) {
+            slot.first = severity;
+            slot.second = msg;
+            publish();
+        }
+    }
+
+    @Override
+    public void unrecognized(String type, String msg) {
+        Slot slot = acquire(Kind.UNRECOGNIZED);
+        if (slot != null) {
+            slot.first = type;
+            slot.second = msg;
+            publish();
+        }
+    }
+
+    /**
+     * Stops the consumer thread. Events that haven't been delivered yet are discarded.
+     */
+    @Override
+    public void close() {
+        queue.close();
+    }
+
+    /**
+     * Claims a slot for an event of the given kind, see {@link SlotQueue#acquire()}
+     */
+    private Slot acquire(Kind kind) {
+        Slot slot = queue.acquire();
+        if (slot != null) {
+            slot.kind = kind;
+        }
+        return slot;
+    }
+
+    private void publish() {
+        queue.publish();
+    }
+
+    private void deliver(Slot event) {
+        switch (event.kind) {
+            case CIRCUIT:
+                delegate.circuitStatus(event.first, event.second, event.third);
+                break;
+            case STREAM:
+                delegate.streamStatus(event.first, event.second, event.third);
+                break;
+            case OR_CONN:
+                delegate.orConnStatus(event.first, event.second);
+                break;
+            case BANDWIDTH:
+                delegate.bandwidthUsed(event.read, event.written);
+                break;
+            case DESCRIPTORS:
+                delegate.newDescriptors(event.descriptors);
+                break;
+            case MESSAGE:
+                delegate.message(event.first, event.second);
+                break;
+            case UNRECOGNIZED:
+                delegate.unrecognized(event.first, event.second);
+                break;
+            default:
+                throw new IllegalStateException("Unknown event " + event.kind);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import net.freehaven.tor.control.ConfigEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Non-blocking front end to a {@link TorControlConnection}. Every call returns immediately with a future that is
+ * completed when Tor replies.
+ * <p>
+ * Requests are queued and sent by a single worker thread, in the order they were made. When several requests are
+ * waiting the worker coalesces each run of consecutive GETINFO, GETCONF or SETCONF requests into one multi-key
+ * command, so N queued requests cost about one round trip on the control socket instead of N. The replies are split
+ * back out to the individual futures. If a coalesced command fails, its requests are retried one at a time so that a
+ * single bad key only fails its own future.
+ * <p>
+ * On Android the futures require API level 24 or higher.
+ */
+public final class AsyncTorControlClient implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncTorControlClient.class);
+
+    private enum Kind {GETINFO, GETCONF, SETCONF, SIGNAL}
+
+    private static final class Request {
+        final Kind kind;
+        final String key;
+        final String value;
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+
+        Request(Kind kind, String key, String value) {
+            this.kind = kind;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final TorControlConnection connection;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private volatile boolean closed;
+
+    public AsyncTorControlClient(TorControlConnection connection) {
+        if (connection == null) {
+            throw new IllegalArgumentException("connection is null");
+        }
+        this.connection = connection;
+        this.worker = new Thread("AsyncTorControlClient") {
+            @Override
+            public void run() {
+                processRequests();
+            }
+        };
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Sends <code>GETINFO key</code>
+     */
+    public CompletableFuture<String> getInfo(String key) {
+        return submit(Kind.GETINFO, key, null);
+    }
+
+    /**
+     * Sends <code>GETCONF key</code>. Options that can be set several times may return more than one entry.
+     */
+    public CompletableFuture<List<ConfigEntry>> getConf(String key) {
+        return submit(Kind.GETCONF, key, null);
+    }
+
+    /**
+     * Sends <code>SETCONF key=value</code>
+     */
+    public CompletableFuture<Void> setConf(String key, String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("value is null");
+        }
+        return submit(Kind.SETCONF, key, value);
+    }
+
+    /**
+     * Sends <code>SIGNAL signal</code>, for example "NEWNYM" or "HUP"
+     */
+    public CompletableFuture<Void> signal(String signal) {
+        return submit(Kind.SIGNAL, signal, null);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops the worker thread and fails any request that has not been sent yet. The underlying control connection
+     * is left open.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+        failAll(drain(), new IOException("AsyncTorControlClient is closed"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> submit(Kind kind, String key, String value) {
+        if (key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        Request request = new Request(kind, key, value);
+        if (closed) {
+            request.future.completeExceptionally(new IOException("AsyncTorControlClient is closed"));
+            return (CompletableFuture<T>) (CompletableFuture<?>) request.future;
+        }
+        queue.add(request);
+        // close() may have drained the queue between our check and the add
+        if (closed) {
+            failAll(drain(), new IOException("AsyncTorControlClient is closed"));
+        }
+        return (CompletableFuture<T>) (CompletableFuture<?>) request.future;
+    }
+
+    private void processRequests() {
+        while (!closed) {
+            List<Request> batch = new ArrayList<>();
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch);
+
+            int start = 0;
+            while (start < batch.size()) {
+                int end = endOfRun(batch, start);
+                execute(batch.subList(start, end));
+                start = end;
+            }
+        }
+        failAll(drain(), new IOException("AsyncTorControlClient is closed"));
+    }
+
+    /**
+     * Finds the end of the run of requests starting at <code>start</code> that can share a single command
+     */
+    private static int endOfRun(List<Request> batch, int start) {
+        Kind kind = batch.get(start).kind;
+        if (kind == Kind.SIGNAL) {
+            return start + 1;
+        }
+        // Setting the same key twice in one SETCONF would append rather than replace for list options
+        Set<String> keys = new HashSet<>();
+        int end = start;
+        while (end < batch.size() && batch.get(end).kind == kind) {
+            if (kind == Kind.SETCONF && !keys.add(batch.get(end).key.toLowerCase(Locale.US))) {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    private void execute(List<Request> run) {
+        try {
+            send(run);
+        } catch (IOException e) {
+            if (run.size() == 1) {
+                run.get(0).future.completeExceptionally(e);
+                return;
+            }
+            LOG.debug("Coalesced " + run.get(0).kind + " failed, retrying requests one at a time", e);
+            for (Request request : run) {
+                try {
+                    send(Collections.singletonList(request));
+                } catch (IOException individualFailure) {
+                    request.future.completeExceptionally(individualFailure);
+                }
+            }
+        } catch (RuntimeException e) {
+            failAll(run, e);
+        }
+    }
+
+    private void send(List<Request> run) throws IOException {
+        switch (run.get(0).kind) {
+            case GETINFO: {
+                Set<String> keys = new LinkedHashSet<>();
+                for (Request request : run) {
+                    keys.add(request.key);
+                }
+                Map<String, String> values = connection.getInfo(keys);
+                for (Request request : run) {
+                    request.future.complete(values.get(request.key));
+                }
+                break;
+            }
+            case GETCONF: {
+                Set<String> keys = new LinkedHashSet<>();
+                for (Request request : run) {
+                    keys.add(request.key);
+                }
+                List<ConfigEntry> entries = connection.getConf(keys);
+                for (Request request : run) {
+                    List<ConfigEntry> matching = new ArrayList<>();
+                    for (ConfigEntry entry : entries) {
+                        if (entry.key.equalsIgnoreCase(request.key)) {
+                            matching.add(entry);
+                        }
+                    }
+                    request.future.complete(matching);
+                }
+                break;
+            }
+            case SETCONF: {
+                List<String> settings = new ArrayList<>(run.size());
+                for (Request request : run) {
+                    settings.add(request.key + " " + request.value);
+                }
+                connection.setConf(settings);
+                completeAll(run);
+                break;
+            }
+            case SIGNAL:
+                connection.signal(run.get(0).key);
+                completeAll(run);
+                break;
+            default:
+                throw new IllegalStateException("Unknown request " + run.get(0).kind);
+        }
+    }
+
+    private List<Request> drain() {
+        List<Request> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        return pending;
+    }
+
+    private static void completeAll(List<Request> requests) {
+        for (Request request : requests) {
+            request.future.complete(null);
+        }
+    }
+
+    private static void failAll(List<Request> requests, Throwable cause) {
+        for (Request request : requests) {
+            request.future.completeExceptionally(cause);
+        }
+    }
+}
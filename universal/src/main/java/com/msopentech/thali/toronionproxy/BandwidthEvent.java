@@ -0,0 +1,41 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+/**
+ * A BW event, sent by the Tor OP once a second with the bytes read and written during that second. Instances are
+ * reused by {@link TorEventDispatcher} for every event.
+ */
+public final class BandwidthEvent {
+    private long read;
+    private long written;
+
+    void set(long read, long written) {
+        this.read = read;
+        this.written = written;
+    }
+
+    public long getRead() {
+        return read;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    @Override
+    public String toString() {
+        return "BandwidthEvent{read=" + read + ", written=" + written + '}';
+    }
+}
@@ -0,0 +1,210 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import net.freehaven.tor.control.EventHandler;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the bootstrap progress of the Tor OP from the STATUS_CLIENT BOOTSTRAP events it sends on the control port.
+ * The same line format is returned by <code>GETINFO status/bootstrap-phase</code>, so that reply can be fed in with
+ * {@link #update(String)} to seed the tracker when we attach to a Tor OP that has already made some progress.
+ * <p>
+ * Threads waiting in {@link #awaitCompletion(long, TimeUnit)} are released as soon as PROGRESS=100 arrives.
+ */
+public final class BootstrapTracker implements EventHandler {
+
+    /**
+     * Receives every change in bootstrap progress. Called on the control connection's event thread so
+     * implementations must not block or call back into the control connection.
+     */
+    public interface Listener {
+        void bootstrapProgress(int progress, String tag, String summary);
+    }
+
+    private static final String STATUS_CLIENT = "STATUS_CLIENT";
+    private static final String BOOTSTRAP = "BOOTSTRAP";
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile CountDownLatch completed = new CountDownLatch(1);
+    private volatile int progress;
+    private volatile String tag;
+    private volatile String summary;
+
+    public void addListener(Listener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener is null");
+        }
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the last reported bootstrap percentage, 0 - 100
+     */
+    public int getProgress() {
+        return progress;
+    }
+
+    /**
+     * Returns the last reported bootstrap tag (for example "conn_dir" or "done"), or null if nothing was reported
+     */
+    public String getTag() {
+        return tag;
+    }
+
+    /**
+     * Returns the last reported human readable bootstrap summary, or null if nothing was reported
+     */
+    public String getSummary() {
+        return summary;
+    }
+
+    public boolean isComplete() {
+        return progress >= 100;
+    }
+
+    /**
+     * Waits until the Tor OP reports PROGRESS=100.
+     *
+     * @return true if bootstrapping completed, false if the timeout expired first or the tracker was reset while
+     * waiting
+     */
+    public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        return completed.await(timeout, unit) && isComplete();
+    }
+
+    /**
+     * Forgets all progress. Used when the Tor OP is stopped so that the next start waits for fresh events. Anyone
+     * still waiting for the previous start is released with a false result.
+     */
+    public void reset() {
+        CountDownLatch previous;
+        synchronized (this) {
+            progress = 0;
+            tag = null;
+            summary = null;
+            previous = completed;
+            completed = new CountDownLatch(1);
+        }
+        previous.countDown();
+    }
+
+    /**
+     * Updates the tracker from a bootstrap status line of the form
+     * <code>NOTICE BOOTSTRAP PROGRESS=num TAG=Keyword SUMMARY="text"</code>. Lines that are not bootstrap
+     * status lines are ignored.
+     *
+     * @return true if the line was a bootstrap status line
+     */
+    public boolean update(String statusLine) {
+        if (statusLine == null) {
+            return false;
+        }
+        int bootstrapIndex = statusLine.indexOf(BOOTSTRAP);
+        if (bootstrapIndex == -1) {
+            return false;
+        }
+        String progressValue = valueOf(statusLine, "PROGRESS=", bootstrapIndex);
+        if (progressValue == null) {
+            return false;
+        }
+        int newProgress;
+        try {
+            newProgress = Integer.parseInt(progressValue);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        update(newProgress, valueOf(statusLine, "TAG=", bootstrapIndex),
+                valueOf(statusLine, "SUMMARY=", bootstrapIndex));
+        return true;
+    }
+
+    private void update(int newProgress, String newTag, String newSummary) {
+        CountDownLatch latch;
+        synchronized (this) {
+            // Bootstrap progress only moves forward while Tor runs, anything lower is a stale reply
+            if (newProgress < progress) {
+                return;
+            }
+            progress = newProgress;
+            tag = newTag;
+            summary = newSummary;
+            latch = completed;
+        }
+        for (Listener listener : listeners) {
+            listener.bootstrapProgress(newProgress, newTag, newSummary);
+        }
+        if (newProgress >= 100) {
+            latch.countDown();
+        }
+    }
+
+    /**
+     * Returns the value of <code>key</code> in a line of space separated key=value pairs. Quoted values may contain
+     * spaces; the quotes are stripped.
+     */
+    private static String valueOf(String line, String key, int fromIndex) {
+        int start = line.indexOf(key, fromIndex);
+        if (start == -1) {
+            return null;
+        }
+        start += key.length();
+        if (start < line.length() && line.charAt(start) == '"') {
+            int end = line.indexOf('"', start + 1);
+            return line.substring(start + 1, end == -1 ? line.length() : end);
+        }
+        int end = line.indexOf(' ', start);
+        return line.substring(start, end == -1 ? line.length() : end);
+    }
+
+    @Override
+    public void unrecognized(String type, String msg) {
+        if (STATUS_CLIENT.equals(type)) {
+            update(msg);
+        }
+    }
+
+    @Override
+    public void circuitStatus(String status, String circID, String path) {
+    }
+
+    @Override
+    public void streamStatus(String status, String streamID, String target) {
+    }
+
+    @Override
+    public void orConnStatus(String status, String orName) {
+    }
+
+    @Override
+    public void bandwidthUsed(long read, long written) {
+    }
+
+    @Override
+    public void newDescriptors(List<String> orList) {
+    }
+
+    @Override
+    public void message(String severity, String msg) {
+    }
+}
@@ -0,0 +1,237 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Seeds an empty Tor data directory with a consensus and microdescriptors taken from a snapshot, so that a Tor OP
+ * starting for the first time doesn't have to download them all before it can bootstrap. See
+ * {@link OnionProxyContext#seedDataDirFromSnapshot()} for what a snapshot holds.
+ * <p>
+ * A snapshot is only used while its consensus is within its valid-until time. Stale snapshots are left alone and
+ * logged. Zipped snapshots are unpacked and checked in a staging directory, and anything in the zip file that isn't
+ * part of a snapshot is ignored. A zip file must start with the manifest and the consensus, so that a stale one is
+ * turned down before its microdescriptors are unpacked.
+ */
+final class CacheSnapshot {
+    private static final Logger LOG = LoggerFactory.getLogger(CacheSnapshot.class);
+
+    static final String MANIFEST = "snapshot.properties";
+    static final String FORMAT_KEY = "format";
+    static final String FORMAT = "1";
+    static final String CONSENSUS = "cached-microdesc-consensus";
+    static final List<String> FILES = Collections.unmodifiableList(Arrays.asList(CONSENSUS,
+            DataDirInspector.CACHED_CERTS, "cached-microdescs", "cached-microdescs.new"));
+
+    // Where a zipped snapshot is unpacked and checked before its files are moved into place
+    private static final String STAGING_DIR = "cache-snapshot";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private CacheSnapshot() {
+    }
+
+    /**
+     * True unless <code>dataDir</code> already has a consensus that is still valid
+     */
+    static boolean needsSeed(File dataDir, long nowMillis) {
+        for (String name : DataDirInspector.CONSENSUS_FILES) {
+            File consensus = new File(dataDir, name);
+            if (consensus.exists() && DataDirInspector.isConsensusUsable(consensus, nowMillis)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if <code>snapshotDir</code> holds a snapshot of a format we understand whose consensus is still
+     * valid
+     */
+    static boolean isUsable(File snapshotDir, long nowMillis) {
+        if (!isFresh(snapshotDir, nowMillis)) {
+            return false;
+        }
+        if (new File(snapshotDir, DataDirInspector.CACHED_CERTS).length() == 0) {
+            LOG.info("Cache snapshot has no certificates: " + snapshotDir);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the manifest in <code>snapshotDir</code> is of a format we understand and the consensus next to
+     * it is still valid. Only needs those two files.
+     */
+    private static boolean isFresh(File snapshotDir, long nowMillis) {
+        File manifest = new File(snapshotDir, MANIFEST);
+        if (!manifest.isFile()) {
+            LOG.info("Cache snapshot has no manifest: " + snapshotDir);
+            return false;
+        }
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(manifest);
+            properties.load(in);
+        } catch (IOException e) {
+            LOG.info("Could not read cache snapshot manifest: " + manifest, e);
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+        if (!FORMAT.equals(properties.getProperty(FORMAT_KEY))) {
+            LOG.info("Unknown cache snapshot format " + properties.getProperty(FORMAT_KEY) + ": " + snapshotDir);
+            return false;
+        }
+        if (!DataDirInspector.isConsensusUsable(new File(snapshotDir, CONSENSUS), nowMillis)) {
+            LOG.info("Cache snapshot consensus is stale or damaged: " + snapshotDir);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copies the snapshot in <code>snapshotDir</code> into <code>dataDir</code> if it is usable. The snapshot
+     * directory is only read, so it can be shared by any number of Tor OPs.
+     *
+     * @return the files written to the data directory, empty if the snapshot wasn't usable
+     */
+    static List<File> seedFromDirectory(File snapshotDir, File dataDir, long nowMillis) throws IOException {
+        if (!isUsable(snapshotDir, nowMillis)) {
+            return Collections.emptyList();
+        }
+        List<File> seeded = new ArrayList<>();
+        for (String name : FILES) {
+            File source = new File(snapshotDir, name);
+            if (!source.isFile()) {
+                continue;
+            }
+            // Tor must never see a half written file, so copy next to it and then rename into place
+            File target = new File(dataDir, name);
+            File tmp = new File(dataDir, name + TMP_SUFFIX);
+            FileUtilities.copy(new FileInputStream(source), new FileOutputStream(tmp));
+            moveInto(tmp, target);
+            seeded.add(target);
+        }
+        return seeded;
+    }
+
+    /**
+     * Unpacks a zipped snapshot and moves its files into <code>dataDir</code> if it is usable. Closes
+     * <code>zipStream</code>.
+     *
+     * @return the files written to the data directory, empty if the snapshot wasn't usable
+     */
+    static List<File> seedFromZip(InputStream zipStream, File dataDir, long nowMillis) throws IOException {
+        File staging = new File(dataDir, STAGING_DIR);
+        if (staging.exists()) {
+            FileUtilities.recursiveFileDelete(staging);
+        }
+        if (!staging.mkdirs()) {
+            closeQuietly(zipStream);
+            throw new IOException("Could not create " + staging);
+        }
+        try {
+            if (!unzip(zipStream, staging, nowMillis) || !isUsable(staging, nowMillis)) {
+                return Collections.emptyList();
+            }
+            List<File> seeded = new ArrayList<>();
+            for (String name : FILES) {
+                File source = new File(staging, name);
+                if (source.isFile()) {
+                    File target = new File(dataDir, name);
+                    moveInto(source, target);
+                    seeded.add(target);
+                }
+            }
+            return seeded;
+        } finally {
+            FileUtilities.recursiveFileDelete(staging);
+        }
+    }
+
+    /**
+     * Extracts the manifest and the known cache files, nothing else, so an entry can't name a path outside
+     * <code>destination</code>. Checks the manifest and consensus as soon as both are out, and stops there if the
+     * snapshot is stale or the other cache files come first.
+     *
+     * @return false if the snapshot was turned down before all of it was extracted
+     */
+    private static boolean unzip(InputStream zipStream, File destination, long nowMillis) throws IOException {
+        ZipInputStream zip = new ZipInputStream(zipStream);
+        try {
+            boolean manifest = false;
+            boolean consensus = false;
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (entry.isDirectory() || !(name.equals(MANIFEST) || FILES.contains(name))) {
+                    continue;
+                }
+                boolean checked = manifest && consensus;
+                if (!checked && !name.equals(MANIFEST) && !name.equals(CONSENSUS)) {
+                    LOG.info("Cache snapshot zip doesn't start with its manifest and consensus, found " + name);
+                    return false;
+                }
+                OutputStream out = new FileOutputStream(new File(destination, name));
+                FileUtilities.copyDoNotCloseInput(zip, out);
+                manifest |= name.equals(MANIFEST);
+                consensus |= name.equals(CONSENSUS);
+                if (!checked && manifest && consensus && !isFresh(destination, nowMillis)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static void moveInto(File source, File target) throws IOException {
+        // File.renameTo doesn't replace an existing file on Windows
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Could not replace " + target);
+        }
+        if (!source.renameTo(target)) {
+            throw new IOException("Could not move " + source + " to " + target);
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            in.close();
+        } catch (IOException e) {
+            LOG.debug("Could not close stream", e);
+        }
+    }
+}
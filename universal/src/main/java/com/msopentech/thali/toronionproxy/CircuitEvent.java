@@ -0,0 +1,119 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+/**
+ * A CIRC event. Instances are reused by {@link TorEventDispatcher} for every event, so listeners must copy anything
+ * they want to keep after the callback returns.
+ */
+public final class CircuitEvent {
+
+    public enum Status {LAUNCHED, BUILT, GUARD_WAIT, EXTENDED, FAILED, CLOSED, UNKNOWN}
+
+    private Status status = Status.UNKNOWN;
+    private String rawStatus;
+    private long id;
+    private String path;
+
+    /**
+     * Fills in this event from the values jtorctl passes to <code>EventHandler.circuitStatus</code>
+     */
+    void set(String status, String id, String path) {
+        this.rawStatus = status;
+        this.status = parseStatus(status);
+        this.id = TorEventDispatcher.parseLong(id);
+        this.path = path == null ? "" : path;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * The status as Tor sent it, useful when it is {@link Status#UNKNOWN}
+     */
+    public String getRawStatus() {
+        return rawStatus;
+    }
+
+    /**
+     * Returns the circuit id, or -1 if Tor sent one we couldn't parse
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * The comma separated list of relays in the circuit, for example "$FINGERPRINT~nickname,$FINGERPRINT~nickname".
+     * Empty if the circuit has no hops yet.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public int getHopCount() {
+        if (path.isEmpty()) {
+            return 0;
+        }
+        int hops = 1;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == ',') {
+                hops++;
+            }
+        }
+        return hops;
+    }
+
+    /**
+     * Returns the hop at <code>index</code> in the path. This allocates a new string, unlike the other getters.
+     */
+    public String getHop(int index) {
+        int start = 0;
+        for (int i = 0; i < index; i++) {
+            start = path.indexOf(',', start) + 1;
+            if (start == 0) {
+                throw new IndexOutOfBoundsException("No hop " + index + " in " + path);
+            }
+        }
+        int end = path.indexOf(',', start);
+        return path.substring(start, end == -1 ? path.length() : end);
+    }
+
+    private static Status parseStatus(String status) {
+        if (status == null) {
+            return Status.UNKNOWN;
+        }
+        switch (status) {
+            case "LAUNCHED":
+                return Status.LAUNCHED;
+            case "BUILT":
+                return Status.BUILT;
+            case "GUARD_WAIT":
+                return Status.GUARD_WAIT;
+            case "EXTENDED":
+                return Status.EXTENDED;
+            case "FAILED":
+                return Status.FAILED;
+            case "CLOSED":
+                return Status.CLOSED;
+            default:
+                return Status.UNKNOWN;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitEvent{status=" + rawStatus + ", id=" + id + ", path=" + path + '}';
+    }
+}
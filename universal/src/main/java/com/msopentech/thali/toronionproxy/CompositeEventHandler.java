@@ -0,0 +1,94 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import net.freehaven.tor.control.EventHandler;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The control connection only accepts a single EventHandler. This one forwards every event to each of its
+ * handlers, in the order they were added, so the OnionProxyManager can listen to events alongside the
+ * EventHandler supplied by the application.
+ */
+public final class CompositeEventHandler implements EventHandler {
+
+    private final List<EventHandler> handlers = new CopyOnWriteArrayList<>();
+
+    public CompositeEventHandler(EventHandler... handlers) {
+        this.handlers.addAll(Arrays.asList(handlers));
+    }
+
+    public void add(EventHandler handler) {
+        if (handler == null) {
+            throw new IllegalArgumentException("handler is null");
+        }
+        handlers.add(handler);
+    }
+
+    public void remove(EventHandler handler) {
+        handlers.remove(handler);
+    }
+
+    @Override
+    public void circuitStatus(String status, String circID, String path) {
+        for (EventHandler handler : handlers) {
+            handler.circuitStatus(status, circID, path);
+        }
+    }
+
+    @Override
+    public void streamStatus(String status, String streamID, String target) {
+        for (EventHandler handler : handlers) {
+            handler.streamStatus(status, streamID, target);
+        }
+    }
+
+    @Override
+    public void orConnStatus(String status, String orName) {
+        for (EventHandler handler : handlers) {
+            handler.orConnStatus(status, orName);
+        }
+    }
+
+    @Override
+    public void bandwidthUsed(long read, long written) {
+        for (EventHandler handler : handlers) {
+            handler.bandwidthUsed(read, written);
+        }
+    }
+
+    @Override
+    public void newDescriptors(List<String> orList) {
+        for (EventHandler handler : handlers) {
+            handler.newDescriptors(orList);
+        }
+    }
+
+    @Override
+    public void message(String severity, String msg) {
+        for (EventHandler handler : handlers) {
+            handler.message(severity, msg);
+        }
+    }
+
+    @Override
+    public void unrecognized(String type, String msg) {
+        for (EventHandler handler : handlers) {
+            handler.unrecognized(type, msg);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import net.freehaven.tor.control.ConfigEntry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects configuration changes for the Tor OP and applies them with one command when committed. Tor applies the
+ * command atomically, so either every change takes effect or, if Tor rejects any of them, none do.
+ * <p>
+ * Obtain a transaction from {@link OnionProxyManager#beginConfigTransaction()}. A transaction is not thread safe and
+ * can only be committed once.
+ */
+public final class ConfigTransaction {
+    private static final String DISABLE_NETWORK = "DisableNetwork";
+
+    private final OnionProxyManager onionProxyManager;
+    private final List<ConfigEntry> entries = new ArrayList<>();
+    private boolean restartNetwork;
+    private boolean saveConf;
+    private boolean committed;
+
+    ConfigTransaction(OnionProxyManager onionProxyManager) {
+        this.onionProxyManager = onionProxyManager;
+    }
+
+    /**
+     * Sets an option. Setting the same option more than once gives it several values, which is how options such as
+     * HiddenServicePort are repeated.
+     */
+    public ConfigTransaction set(String key, String value) {
+        checkKey(key);
+        if (value == null) {
+            throw new IllegalArgumentException("value is null");
+        }
+        entries.add(new ConfigEntry(key, value));
+        return this;
+    }
+
+    public ConfigTransaction set(String key, boolean value) {
+        return set(key, value ? "1" : "0");
+    }
+
+    /**
+     * Returns an option to its default value
+     */
+    public ConfigTransaction reset(String key) {
+        checkKey(key);
+        entries.add(new ConfigEntry(key));
+        return this;
+    }
+
+    /**
+     * If true, the network is disabled and re-enabled after the changes are applied, which closes every circuit.
+     * This is rarely needed as Tor already drops circuits that no longer match options such as ExitNodes. Has no
+     * effect if the transaction itself disables the network. Defaults to false.
+     */
+    public ConfigTransaction restartNetwork(boolean restartNetwork) {
+        this.restartNetwork = restartNetwork;
+        return this;
+    }
+
+    /**
+     * If true, the Tor OP writes its configuration back to the torrc file once the changes are applied. Defaults to
+     * false.
+     */
+    public ConfigTransaction saveConf(boolean saveConf) {
+        this.saveConf = saveConf;
+        return this;
+    }
+
+    /**
+     * Applies the changes
+     *
+     * @throws IOException if Tor rejected the changes or the control connection failed
+     * @throws IllegalStateException if the Tor OP is not running or the transaction was already committed
+     */
+    public void commit() throws IOException {
+        if (committed) {
+            throw new IllegalStateException("Transaction already committed");
+        }
+        committed = true;
+        onionProxyManager.commit(this);
+    }
+
+    /**
+     * Returns the entries to send. When the network is restarted the transaction's own DisableNetwork entries are
+     * replaced with DisableNetwork=1, which saves a round trip and keeps Tor from seeing the option twice.
+     */
+    List<ConfigEntry> getEntries() {
+        if (!isRestartNetwork()) {
+            return Collections.unmodifiableList(entries);
+        }
+        List<ConfigEntry> withNetworkDisabled = new ArrayList<>(entries.size() + 1);
+        for (ConfigEntry entry : entries) {
+            if (!DISABLE_NETWORK.equalsIgnoreCase(entry.key)) {
+                withNetworkDisabled.add(entry);
+            }
+        }
+        withNetworkDisabled.add(new ConfigEntry(DISABLE_NETWORK, "1"));
+        return Collections.unmodifiableList(withNetworkDisabled);
+    }
+
+    /**
+     * True if the network has to be enabled again once the entries are applied
+     */
+    boolean isRestartNetwork() {
+        return restartNetwork && !Boolean.FALSE.equals(getRequestedNetworkEnabled());
+    }
+
+    boolean isSaveConf() {
+        return saveConf;
+    }
+
+    /**
+     * Returns the network state this transaction leaves Tor in, or null if it doesn't touch DisableNetwork
+     */
+    Boolean getNetworkEnabled() {
+        return isRestartNetwork() ? Boolean.TRUE : getRequestedNetworkEnabled();
+    }
+
+    /**
+     * Returns the network state the last DisableNetwork entry asks for, or null if there is none
+     */
+    private Boolean getRequestedNetworkEnabled() {
+        Boolean enabled = null;
+        for (ConfigEntry entry : entries) {
+            if (DISABLE_NETWORK.equalsIgnoreCase(entry.key)) {
+                // DisableNetwork defaults to 0
+                enabled = entry.is_default || "0".equals(entry.value);
+            }
+        }
+        return enabled;
+    }
+
+    private static void checkKey(String key) {
+        if (key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c == ' ' || c == '=' || c == '"' || c == '\r' || c == '\n') {
+                throw new IllegalArgumentException("Invalid key: " + key);
+            }
+        }
+    }
+}
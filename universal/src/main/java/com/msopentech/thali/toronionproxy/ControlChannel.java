@@ -0,0 +1,91 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The transport underneath a control connection, either a TCP socket or a unix domain socket channel
+ */
+final class ControlChannel implements Closeable {
+    private final Closeable closeable;
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+
+    private ControlChannel(Closeable closeable, InputStream inputStream, OutputStream outputStream) {
+        this.closeable = closeable;
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+    }
+
+    static ControlChannel of(Socket socket) throws IOException {
+        return new ControlChannel(socket, socket.getInputStream(), socket.getOutputStream());
+    }
+
+    /**
+     * Wraps a blocking channel. Channels.newInputStream/newOutputStream are not used because they share the
+     * channel's blocking lock, so a pending read would stop any command from being written.
+     */
+    static ControlChannel of(final SocketChannel channel) {
+        InputStream inputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                return channel.read(ByteBuffer.wrap(bytes, offset, length));
+            }
+        };
+        OutputStream outputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        };
+        return new ControlChannel(channel, inputStream, outputStream);
+    }
+
+    InputStream getInputStream() {
+        return inputStream;
+    }
+
+    OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeable.close();
+    }
+}
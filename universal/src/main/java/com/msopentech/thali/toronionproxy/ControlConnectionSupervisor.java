@@ -0,0 +1,160 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Watches the control connection of an OnionProxyManager and asks the manager to recover it when it dies. A
+ * connection is considered dead once its reader thread has exited or it fails to answer a
+ * <code>GETINFO version</code> heartbeat within the timeout.
+ */
+final class ControlConnectionSupervisor {
+    private static final Logger LOG = LoggerFactory.getLogger(ControlConnectionSupervisor.class);
+
+    /**
+     * The part of OnionProxyManager that the supervisor depends on
+     */
+    interface Supervised {
+        /**
+         * Returns the current control connection or null if there isn't one
+         */
+        TorControlConnection getSupervisedConnection();
+
+        /**
+         * Replaces <code>deadConnection</code>, unless it has already been replaced or closed
+         */
+        void recoverControlConnection(TorControlConnection deadConnection) throws IOException;
+    }
+
+    private final Supervised supervised;
+    private final ScheduledThreadPoolExecutor scheduler;
+    // Runs the heartbeats so that a connection that never answers can't hold up the supervisor
+    private final ThreadPoolExecutor heartbeats;
+    private ScheduledFuture<?> checks;
+
+    ControlConnectionSupervisor(Supervised supervised) {
+        this.supervised = supervised;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ControlConnectionSupervisor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // The thread only lives while checks are scheduled
+        scheduler.setKeepAliveTime(30, TimeUnit.SECONDS);
+        scheduler.allowCoreThreadTimeOut(true);
+        scheduler.setRemoveOnCancelPolicy(true);
+        this.heartbeats = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "ControlConnectionHeartbeat");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        heartbeats.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts checking the connection every <code>intervalMillis</code>. Any earlier schedule is replaced.
+     */
+    synchronized void start(final long intervalMillis) {
+        stop();
+        checks = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                check(intervalMillis);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (checks != null) {
+            checks.cancel(false);
+            checks = null;
+        }
+    }
+
+    /**
+     * Stops checking and ends the supervisor's threads. A closed supervisor can't be started again.
+     */
+    synchronized void close() {
+        stop();
+        scheduler.shutdownNow();
+        heartbeats.shutdownNow();
+    }
+
+    /**
+     * Checks the current connection once and recovers it if it is dead. The heartbeat must answer within
+     * <code>timeoutMillis</code>.
+     */
+    void check(long timeoutMillis) {
+        final TorControlConnection connection = supervised.getSupervisedConnection();
+        if (connection == null) {
+            return;
+        }
+        String failure = null;
+        if (!connection.isReaderThreadAlive()) {
+            failure = "control connection reader thread has exited";
+        } else {
+            Future<?> heartbeat = heartbeats.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    connection.getInfo("version");
+                    return null;
+                }
+            });
+            try {
+                heartbeat.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                heartbeat.cancel(true);
+                return;
+            } catch (TimeoutException e) {
+                // Interrupting the heartbeat stops it waiting for the reply and frees the thread for the next one
+                heartbeat.cancel(true);
+                failure = "no heartbeat reply within " + timeoutMillis + "ms";
+            } catch (ExecutionException e) {
+                failure = "heartbeat failed: " + e.getCause().getMessage();
+            }
+        }
+        if (failure == null) {
+            return;
+        }
+        LOG.warn("Control connection is dead, " + failure);
+        try {
+            supervised.recoverControlConnection(connection);
+        } catch (IOException e) {
+            LOG.error("Could not recover control connection", e);
+        } catch (RuntimeException e) {
+            LOG.error("Could not recover control connection", e);
+        }
+    }
+}
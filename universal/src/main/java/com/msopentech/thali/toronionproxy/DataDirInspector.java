@@ -0,0 +1,163 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.toronionproxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Finds the files in a Tor data directory that are stale or damaged and would keep the next start from
+ * bootstrapping, while leaving the caches that make a warm start fast in place:
+ * <ul>
+ * <li>the <code>lock</code> file left behind by the previous Tor OP</li>
+ * <li><code>.tmp</code> files from a write that was interrupted before Tor renamed them into place</li>
+ * <li>a cached consensus that is past its valid-until time, has no valid-until line or is cut short before its
+ * signatures</li>
+ * <li>an empty or truncated <code>state</code> file or certificate cache</li>
+ * </ul>
+ * The microdescriptor caches are kept even when the consensus goes, as Tor looks them up by digest and reuses the
+ * ones the new consensus still lists. Keys and hidden service directories are never touched.
+ */
+final class DataDirInspector {
+    static final String LOCK = "lock";
+    static final String STATE = "state";
+    static final String CACHED_CERTS = "cached-certs";
+    static final String[] CONSENSUS_FILES = {"cached-microdesc-consensus", "cached-consensus"};
+
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String VALID_UNTIL = "valid-until ";
+    private static final String END_SIGNATURE = "-----END SIGNATURE-----";
+    private static final String STATE_LAST_WRITTEN = "LastWritten ";
+    // The header lines come well within this, the rest of the consensus is the router list
+    private static final int HEADER_BYTES = 4096;
+    private static final int TRAILER_BYTES = 256;
+
+    private DataDirInspector() {
+    }
+
+    /**
+     * Returns the files in <code>dataDir</code> that should be removed before trying to start again
+     *
+     * @param nowMillis the current time, to compare the consensus validity against
+     */
+    static List<File> findStaleFiles(File dataDir, long nowMillis) {
+        List<File> stale = new ArrayList<>();
+        File[] files = dataDir.listFiles();
+        if (files == null) {
+            return stale;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                continue;
+            }
+            String name = file.getName();
+            if (name.equals(LOCK) || name.endsWith(TMP_SUFFIX)) {
+                stale.add(file);
+            } else if (isConsensus(name)) {
+                if (!isConsensusUsable(file, nowMillis)) {
+                    stale.add(file);
+                }
+            } else if (name.equals(STATE)) {
+                if (!isStateComplete(file)) {
+                    stale.add(file);
+                }
+            } else if (name.equals(CACHED_CERTS)) {
+                if (file.length() == 0) {
+                    stale.add(file);
+                }
+            }
+        }
+        return stale;
+    }
+
+    private static boolean isConsensus(String name) {
+        for (String consensus : CONSENSUS_FILES) {
+            if (consensus.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean isConsensusUsable(File consensus, long nowMillis) {
+        try {
+            String header = readRange(consensus, 0, HEADER_BYTES);
+            long validUntil = parseValidUntil(header);
+            if (validUntil == -1 || validUntil < nowMillis) {
+                return false;
+            }
+            return readRange(consensus, Math.max(0, consensus.length() - TRAILER_BYTES), TRAILER_BYTES)
+                    .contains(END_SIGNATURE);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the valid-until time of a consensus header in milliseconds since the epoch, or -1 if there is none
+     */
+    static long parseValidUntil(String header) {
+        int start = header.startsWith(VALID_UNTIL) ? 0 : header.indexOf("\n" + VALID_UNTIL);
+        if (start == -1) {
+            return -1;
+        }
+        start = header.indexOf(VALID_UNTIL, start) + VALID_UNTIL.length();
+        int end = header.indexOf('\n', start);
+        if (end == -1) {
+            return -1;
+        }
+        // SimpleDateFormat rather than java.time, which Android only has from API level 26
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        try {
+            return format.parse(header.substring(start, end).trim()).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Tor writes its state file in one go, ending with a newline and including a LastWritten line
+     */
+    static boolean isStateComplete(File state) {
+        try {
+            String content = readRange(state, 0, (int) Math.min(state.length(), Integer.MAX_VALUE));
+            return content.endsWith("\n") && content.contains(STATE_LAST_WRITTEN);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static String readRange(File file, long offset, int length) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            int size = (int) Math.max(0, Math.min(length, in.length() - offset));
+            byte[] bytes = new byte[size];
+            in.seek(offset);
+            in.readFully(bytes);
+            return new String(bytes, "ISO-8859-1");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.toronionproxy;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Consistent hashing of destinations onto shards. Each shard owns a number of points on a 64 bit ring and a
+ * destination goes to the owner of the first point at or after its hash. When a shard is unavailable its
+ * destinations move to the next points on the ring, spread over the other shards, while every other destination
+ * stays where it was.
+ */
+final class HashRing {
+    private final long[] points;
+    private final int[] owners;
+
+    HashRing(int shardCount, int pointsPerShard) {
+        if (shardCount < 1 || pointsPerShard < 1) {
+            throw new IllegalArgumentException("shardCount and pointsPerShard must be positive");
+        }
+        int size = shardCount * pointsPerShard;
+        long[] entries = new long[size];
+        int[] shards = new int[size];
+        int i = 0;
+        for (int shard = 0; shard < shardCount; shard++) {
+            for (int point = 0; point < pointsPerShard; point++) {
+                entries[i] = mix(((long) shard << 32) | point);
+                shards[i] = shard;
+                i++;
+            }
+        }
+        // Sort the points, carrying their owners along
+        Integer[] order = new Integer[size];
+        for (int j = 0; j < size; j++) {
+            order[j] = j;
+        }
+        final long[] unsorted = entries;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(unsorted[a], unsorted[b]);
+            }
+        });
+        points = new long[size];
+        owners = new int[size];
+        for (int j = 0; j < size; j++) {
+            points[j] = entries[order[j]];
+            owners[j] = shards[order[j]];
+        }
+    }
+
+    /**
+     * Returns the shard for <code>key</code>, skipping shards that aren't <code>available</code>, or -1 if none is
+     */
+    int shardFor(String key, boolean[] available) {
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        for (int i = 0; i < points.length; i++) {
+            int owner = owners[(index + i) % points.length];
+            if (available[owner]) {
+                return owner;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * FNV-1a over the characters, finished with {@link #mix(long)} so that similar host names spread over the ring
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * The 64 bit finalizer of MurmurHash3
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
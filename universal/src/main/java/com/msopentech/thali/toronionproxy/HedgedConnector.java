@@ -0,0 +1,399 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Connects through Tor with hedged requests, for requests where the slowest connections matter more than the extra
+ * load. If a connection isn't up after the hedge delay a second attempt is started, and whichever finishes first is
+ * used. The other attempt is cancelled, which closes its connection to the SOCKS port.
+ * <p>
+ * Each attempt sends different SOCKS credentials, so Tor puts it on a different circuit and, for an onion service,
+ * a different rendezvous. With more than one {@link Socks5Client}, say one per instance of a {@link TorInstancePool},
+ * attempts also go to the clients in turn. An attempt that fails starts the next one straight away. The connection
+ * only fails once every attempt has.
+ * <p>
+ * The hedge delay follows the latency of recent connections: it is the {@link #setPercentile percentile} of the last
+ * {@link #SAMPLES} connect times, so only about that share of connections is hedged. A connect time runs from the start
+ * of the first attempt, also when a hedged attempt won, and a connection that timed out counts with the time it took
+ * to time out. Until enough connections have been made the {@link #setInitialDelay initial delay} is used.
+ * <p>
+ * Futures are completed on the thread that completed the winning attempt. On Android they require API level 24 or
+ * higher.
+ */
+public final class HedgedConnector implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(HedgedConnector.class);
+
+    /**
+     * How many recent connect times the hedge delay is computed from
+     */
+    public static final int SAMPLES = 256;
+    private static final int MIN_SAMPLES = 20;
+    private static final String HEDGE_USERNAME = "hedge";
+    private static final String METRIC_PREFIX = "socks.hedge.";
+
+    private final List<Socks5Client> clients;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    // Guarded by this
+    private final long[] samples = new long[SAMPLES];
+    private int sampleCount;
+    private int nextSample;
+    private double percentile = 0.95;
+    private int maxAttempts = 2;
+    private long initialDelayNanos = TimeUnit.SECONDS.toNanos(2);
+    private long minDelayNanos = TimeUnit.MILLISECONDS.toNanos(50);
+    private long delayNanos = initialDelayNanos;
+    private long connects;
+    private long hedges;
+    private long hedgeWins;
+    private long failures;
+
+    public HedgedConnector(Socks5Client client) {
+        this(Collections.singletonList(client));
+    }
+
+    /**
+     * @param clients the clients attempts are spread over, in turn, starting with the first
+     */
+    public HedgedConnector(List<Socks5Client> clients) {
+        if (clients == null || clients.isEmpty()) {
+            throw new IllegalArgumentException("clients is empty");
+        }
+        for (Socks5Client client : clients) {
+            if (client == null) {
+                throw new IllegalArgumentException("client is null");
+            }
+        }
+        this.clients = new ArrayList<>(clients);
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "HedgedConnector");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Sets which percentile of recent connect times is used as hedge delay, between 0 and 1. Defaults to 0.95.
+     */
+    public synchronized void setPercentile(double percentile) {
+        if (!(percentile > 0 && percentile < 1)) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1");
+        }
+        this.percentile = percentile;
+        updateDelay();
+    }
+
+    /**
+     * Sets how many attempts are made at most, including the first. Defaults to 2, 1 turns hedging off.
+     */
+    public synchronized void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Sets the hedge delay used until enough connect times are known. Defaults to 2 seconds.
+     */
+    public synchronized void setInitialDelay(long delay, TimeUnit unit) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay is negative");
+        }
+        initialDelayNanos = unit.toNanos(delay);
+        updateDelay();
+    }
+
+    /**
+     * Sets the shortest hedge delay, so fast connections aren't all hedged over a few microseconds of jitter. Defaults
+     * to 50 milliseconds.
+     */
+    public synchronized void setMinDelay(long delay, TimeUnit unit) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay is negative");
+        }
+        minDelayNanos = unit.toNanos(delay);
+        updateDelay();
+    }
+
+    /**
+     * Returns how long a connection may take before it is hedged
+     */
+    public synchronized long getHedgeDelay(TimeUnit unit) {
+        return unit.convert(delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Connects to <code>host:port</code> without credentials for the first attempt
+     */
+    public CompletableFuture<SocketChannel> connect(String host, int port) {
+        return connect(host, port, null, null);
+    }
+
+    /**
+     * Connects to <code>host:port</code>. The first attempt uses <code>username</code> and <code>password</code>,
+     * which may come from an {@link IsolationKeyAllocator}. Later attempts add the attempt number to the password, so
+     * they go over other circuits but stay apart from other stream classes. Cancelling the returned future cancels
+     * all attempts.
+     */
+    public CompletableFuture<SocketChannel> connect(String host, int port, String username, String password) {
+        if ((username == null) != (password == null)) {
+            throw new IllegalArgumentException("username and password must be given together");
+        }
+        Race race;
+        synchronized (this) {
+            connects++;
+            race = new Race(host, port, username, password, maxAttempts);
+        }
+        race.start(0);
+        return race.result;
+    }
+
+    /**
+     * Returns counters under <code>socks.hedge.</code>: connections, hedged attempts, connections won by a hedged
+     * attempt, failed connections and the current hedge delay.
+     */
+    public synchronized Map<String, Long> toMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put(METRIC_PREFIX + "connects", connects);
+        metrics.put(METRIC_PREFIX + "hedges", hedges);
+        metrics.put(METRIC_PREFIX + "hedge_wins", hedgeWins);
+        metrics.put(METRIC_PREFIX + "failures", failures);
+        metrics.put(METRIC_PREFIX + "delay.ms", TimeUnit.NANOSECONDS.toMillis(delayNanos));
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * Stops starting hedged attempts. Attempts already running, and the clients, are left alone.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    synchronized void recordConnectTime(long nanos) {
+        samples[nextSample] = nanos;
+        nextSample = (nextSample + 1) % SAMPLES;
+        sampleCount = Math.min(sampleCount + 1, SAMPLES);
+        updateDelay();
+    }
+
+    private void updateDelay() {
+        if (sampleCount < MIN_SAMPLES) {
+            delayNanos = Math.max(minDelayNanos, initialDelayNanos);
+            return;
+        }
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sampleCount) - 1;
+        delayNanos = Math.max(minDelayNanos, sorted[Math.max(0, index)]);
+    }
+
+    private synchronized void recordOutcome(int attempts, int winner) {
+        hedges += attempts - 1;
+        if (winner > 0) {
+            hedgeWins++;
+        } else if (winner < 0) {
+            failures++;
+        }
+    }
+
+    /**
+     * The attempts of one connection
+     */
+    private final class Race {
+        final String host;
+        final int port;
+        final String username;
+        final String password;
+        final int maxAttempts;
+        final CompletableFuture<SocketChannel> result = new CompletableFuture<>();
+        final long startNanos = System.nanoTime();
+        // Guarded by this
+        final List<CompletableFuture<SocketChannel>> attempts = new ArrayList<>();
+        int failed;
+        boolean decided;
+
+        Race(String host, int port, String username, String password, int maxAttempts) {
+            this.host = host;
+            this.port = port;
+            this.username = username;
+            this.password = password;
+            this.maxAttempts = maxAttempts;
+            result.whenComplete(new BiConsumer<SocketChannel, Throwable>() {
+                @Override
+                public void accept(SocketChannel channel, Throwable failure) {
+                    cancelAttempts();
+                }
+            });
+        }
+
+        /**
+         * Starts the given attempt unless it has been started already or the race is over. Returns false if no
+         * attempt was started.
+         */
+        boolean start(final int attempt) {
+            CompletableFuture<SocketChannel> future;
+            synchronized (this) {
+                if (result.isDone() || attempts.size() != attempt || attempt >= maxAttempts) {
+                    return false;
+                }
+                Socks5Client client = clients.get(attempt % clients.size());
+                if (attempt == 0) {
+                    future = client.connect(host, port, username, password);
+                } else {
+                    LOG.debug("Hedging connect to {}:{}, attempt {}", host, port, attempt + 1);
+                    try {
+                        future = client.connect(host, port, username == null ? HEDGE_USERNAME : username,
+                                (password == null ? "" : password) + "#" + attempt);
+                    } catch (IllegalArgumentException e) {
+                        // The password no longer fits, stick with the attempts we have
+                        LOG.debug("Not hedging connect to " + host + ":" + port, e);
+                        return false;
+                    }
+                }
+                attempts.add(future);
+            }
+            if (result.isDone()) {
+                // Lost the race with the winner before we got to add it
+                future.cancel(false);
+                return true;
+            }
+
+            future.whenComplete(new BiConsumer<SocketChannel, Throwable>() {
+                @Override
+                public void accept(SocketChannel channel, Throwable failure) {
+                    if (failure == null) {
+                        won(attempt, channel);
+                    } else {
+                        lost(attempt, failure);
+                    }
+                }
+            });
+
+            if (attempt + 1 < maxAttempts && !future.isDone()) {
+                try {
+                    scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            start(attempt + 1);
+                        }
+                    }, getHedgeDelay(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+                } catch (RuntimeException e) {
+                    // Closed, the attempts already running carry on alone
+                    LOG.debug("Not hedging connect to " + host + ":" + port, e);
+                }
+            }
+            return true;
+        }
+
+        private void won(int attempt, SocketChannel channel) {
+            if (!finish(attempt)) {
+                closeQuietly(channel);
+                return;
+            }
+            // From the start of the race, timing only the winner would leave out the slow first attempts we hedged
+            recordConnectTime(System.nanoTime() - startNanos);
+            if (!result.complete(channel)) {
+                // Cancelled by the caller
+                closeQuietly(channel);
+            }
+        }
+
+        private void lost(int attempt, Throwable failure) {
+            int next;
+            synchronized (this) {
+                failed++;
+                next = attempts.size();
+            }
+            if (result.isDone()) {
+                return;
+            }
+            LOG.debug("Connect to " + host + ":" + port + " attempt " + (attempt + 1) + " failed", failure);
+            // Don't wait for the hedge delay, there is one attempt fewer running
+            if (start(next)) {
+                return;
+            }
+            boolean allFailed;
+            synchronized (this) {
+                allFailed = failed == attempts.size();
+            }
+            if (allFailed && finish(-1)) {
+                if (failure instanceof SocketTimeoutException) {
+                    // The connection may yet have worked, leaving it out would make the delay too short
+                    recordConnectTime(System.nanoTime() - startNanos);
+                }
+                result.completeExceptionally(failure);
+            }
+        }
+
+        /**
+         * Decides the race, counting it before the caller can see the result. Returns false if it was decided
+         * already.
+         */
+        private boolean finish(int winner) {
+            int started;
+            synchronized (this) {
+                if (decided) {
+                    return false;
+                }
+                decided = true;
+                started = attempts.size();
+            }
+            recordOutcome(started, winner);
+            return true;
+        }
+
+        private void cancelAttempts() {
+            List<CompletableFuture<SocketChannel>> running;
+            synchronized (this) {
+                running = new ArrayList<>(attempts);
+            }
+            for (CompletableFuture<SocketChannel> attempt : running) {
+                attempt.cancel(false);
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.debug("Could not close channel", e);
+        }
+    }
+}
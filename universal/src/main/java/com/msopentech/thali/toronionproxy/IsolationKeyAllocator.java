@@ -0,0 +1,147 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out SOCKS5 credentials that spread concurrent streams over a fixed number of Tor circuits.
+ * <p>
+ * The SOCKS port is configured with IsolateSOCKSAuth (Tor's default) and KeepAliveIsolateSOCKSAuth, so Tor only
+ * shares a circuit between streams that sent the same username and password. Without credentials every stream goes
+ * over the same circuit and a single slow relay holds up all of them. Each stream class, for example a tenant or
+ * "bulk" and "interactive" traffic, gets its own set of circuits, and within a class each new stream is given the
+ * credentials of the circuit with the fewest open streams. Credentials are sent with
+ * {@link Utilities#socks5SocketConnection(String, int, String, int, String, String)} or
+ * {@link Socks5Client#connect(String, int, String, String)}.
+ * <p>
+ * Tor builds circuits lazily, so a class only ever uses as many circuits as it has concurrent streams.
+ */
+public final class IsolationKeyAllocator {
+    private final int defaultCircuits;
+    // Guarded by this
+    private final Map<String, Integer> circuitsByClass = new HashMap<>();
+    private final Map<String, int[]> streamsByClass = new HashMap<>();
+
+    /**
+     * @param defaultCircuits how many circuits each stream class is spread over unless
+     *                        {@link #setCircuits(String, int)} says otherwise
+     */
+    public IsolationKeyAllocator(int defaultCircuits) {
+        if (defaultCircuits < 1) {
+            throw new IllegalArgumentException("defaultCircuits must be positive");
+        }
+        this.defaultCircuits = defaultCircuits;
+    }
+
+    /**
+     * Sets how many circuits streams of the given class are spread over. Keys already handed out for the class stay
+     * valid, but the class starts again from an even spread.
+     */
+    public synchronized void setCircuits(String streamClass, int circuits) {
+        if (streamClass == null) {
+            throw new IllegalArgumentException("streamClass is null");
+        }
+        if (circuits < 1) {
+            throw new IllegalArgumentException("circuits must be positive");
+        }
+        circuitsByClass.put(streamClass, circuits);
+        streamsByClass.remove(streamClass);
+    }
+
+    /**
+     * Returns the credentials for a new stream of the given class. The key must be closed when the stream is, so the
+     * circuit counts as less busy again.
+     */
+    public synchronized Key acquire(String streamClass) {
+        if (streamClass == null) {
+            throw new IllegalArgumentException("streamClass is null");
+        }
+        int[] streams = streamsByClass.get(streamClass);
+        if (streams == null) {
+            Integer circuits = circuitsByClass.get(streamClass);
+            streams = new int[circuits == null ? defaultCircuits : circuits];
+            streamsByClass.put(streamClass, streams);
+        }
+        int circuit = 0;
+        for (int i = 1; i < streams.length; i++) {
+            if (streams[i] < streams[circuit]) {
+                circuit = i;
+            }
+        }
+        streams[circuit]++;
+        return new Key(streamClass, circuit, streams);
+    }
+
+    /**
+     * Returns how many streams of the given class are open on each of its circuits
+     */
+    public synchronized int[] getStreamCounts(String streamClass) {
+        int[] streams = streamsByClass.get(streamClass);
+        return streams == null ? new int[0] : streams.clone();
+    }
+
+    /**
+     * The credentials of one stream. Tor ignores their values and only compares them.
+     */
+    public final class Key implements Closeable {
+        private final String streamClass;
+        private final int circuit;
+        private final int[] streams;
+        private boolean closed;
+
+        private Key(String streamClass, int circuit, int[] streams) {
+            this.streamClass = streamClass;
+            this.circuit = circuit;
+            this.streams = streams;
+        }
+
+        public String getStreamClass() {
+            return streamClass;
+        }
+
+        /**
+         * Which of the class's circuits the stream goes over, from 0
+         */
+        public int getCircuit() {
+            return circuit;
+        }
+
+        public String getUsername() {
+            return streamClass;
+        }
+
+        public String getPassword() {
+            return Integer.toString(circuit);
+        }
+
+        @Override
+        public void close() {
+            synchronized (IsolationKeyAllocator.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                streams[circuit]--;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "IsolationKeyAllocator.Key{streamClass=" + streamClass + ", circuit=" + circuit + '}';
+        }
+    }
+}
@@ -20,7 +20,11 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-
+import java.io.InputStream;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Provides context information about the environment. Implementating classes provide logic for setting up
@@ -101,6 +105,36 @@ abstract public class OnionProxyContext {
         }
     }
 
+    /**
+     * Creates the directories of the configured control and socks unix domain sockets, readable only by their owner
+     * as Tor requires. Directories that already exist are left as they are.
+     *
+     * @return true if the directories already existed or have been successfully created, otherwise false
+     */
+    public final boolean createUnixSocketDirs() {
+        if (!supportsUnixDomainSockets()) {
+            return true;
+        }
+        boolean controlSocketDir = createPrivateParentDir(config.getControlSocketFile());
+        return createPrivateParentDir(config.getSocksSocketFile()) && controlSocketDir;
+    }
+
+    private static boolean createPrivateParentDir(File socketFile) {
+        if (socketFile == null) {
+            return true;
+        }
+        File dir = socketFile.getAbsoluteFile().getParentFile();
+        if (dir.exists()) {
+            return true;
+        }
+        if (!dir.mkdirs()) {
+            return false;
+        }
+        // Take every permission away from everyone, then give the owner's back
+        return dir.setReadable(false, false) && dir.setWritable(false, false) && dir.setExecutable(false, false)
+                && dir.setReadable(true, true) && dir.setWritable(true, true) && dir.setExecutable(true, true);
+    }
+
     /**
      * Deletes the configured tor data directory
      */
@@ -120,6 +154,64 @@ abstract public class OnionProxyContext {
         }
     }
 
+    /**
+     * Deletes the files in the tor data directory that are stale or damaged, such as an expired consensus or a
+     * truncated state file, and keeps the caches that are still good. Must only be called while Tor isn't running.
+     *
+     * @return the files that were deleted
+     */
+    public final List<File> deleteStaleDataDirFiles() {
+        synchronized (dataDirLock) {
+            List<File> deleted = new ArrayList<>();
+            for (File file : DataDirInspector.findStaleFiles(config.getDataDir(), System.currentTimeMillis())) {
+                if (!file.delete()) {
+                    throw new RuntimeException("Could not delete file " + file.getAbsolutePath());
+                }
+                deleted.add(file);
+            }
+            return deleted;
+        }
+    }
+
+    /**
+     * Seeds the tor data directory with a consensus and microdescriptors from a cache snapshot, unless it already has
+     * a valid consensus. The snapshot in {@link TorConfig#getCacheSnapshotDir()} is tried first, then the one the
+     * installer ships, if any. A snapshot whose consensus has expired isn't used. Must only be called while Tor isn't
+     * running.
+     * <p>
+     * A snapshot is a directory, or a zip file with the same content at its root, holding a
+     * <code>snapshot.properties</code> file with <code>format=1</code> and the <code>cached-microdesc-consensus</code>,
+     * <code>cached-certs</code> and optionally <code>cached-microdescs</code> and <code>cached-microdescs.new</code>
+     * files from the data directory of a bootstrapped Tor OP. In a zip file the manifest and the consensus must come
+     * first.
+     *
+     * @return the files that were written, empty if the data directory wasn't seeded
+     */
+    public final List<File> seedDataDirFromSnapshot() throws IOException {
+        synchronized (dataDirLock) {
+            long now = System.currentTimeMillis();
+            File dataDir = config.getDataDir();
+            if (!CacheSnapshot.needsSeed(dataDir, now)) {
+                return Collections.emptyList();
+            }
+            if (!dataDir.exists() && !dataDir.mkdirs()) {
+                throw new IOException("Could not create " + dataDir);
+            }
+            File snapshotDir = config.getCacheSnapshotDir();
+            if (snapshotDir != null) {
+                List<File> seeded = CacheSnapshot.seedFromDirectory(snapshotDir, dataDir, now);
+                if (!seeded.isEmpty()) {
+                    return seeded;
+                }
+            }
+            InputStream bundled = torInstaller.openCacheSnapshotStream();
+            if (bundled != null) {
+                return CacheSnapshot.seedFromZip(bundled, dataDir, now);
+            }
+            return Collections.emptyList();
+        }
+    }
+
     /**
      * Creates an empty cookie auth file
      *
@@ -219,6 +311,24 @@ abstract public class OnionProxyContext {
 
     public abstract WriteObserver generateWriteObserver(File file) throws IOException;
 
+    /**
+     * True if {@link #openUnixDomainSocket(File)} is implemented on this platform. When it is, the control port and
+     * socks listeners can be unix domain sockets configured through {@link TorConfig.Builder#controlSocketFile(File)}
+     * and {@link TorConfig.Builder#socksSocketFile(File)}.
+     */
+    public boolean supportsUnixDomainSockets() {
+        return false;
+    }
+
+    /**
+     * Opens a blocking connection to the unix domain socket at <code>socketFile</code>
+     *
+     * @throws UnsupportedOperationException if the platform has no unix domain socket support
+     */
+    public SocketChannel openUnixDomainSocket(File socketFile) throws IOException {
+        throw new UnsupportedOperationException("Unix domain sockets are not supported");
+    }
+
     public final TorInstaller getInstaller() {
         return torInstaller;
     }
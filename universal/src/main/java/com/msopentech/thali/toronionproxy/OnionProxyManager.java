@@ -34,14 +34,23 @@ import net.freehaven.tor.control.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.msopentech.thali.toronionproxy.FileUtilities.setToReadOnlyPermissions;
 import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
@@ -49,32 +58,107 @@ import static java.util.concurrent.TimeUnit.SECONDS;
  * to actually call into the AndroidOnionProxyManager or OnionProxyManager in order to create the right bindings
  * for your environment.
  * <p>
- * This class is thread safe but that's mostly because we hit everything over the head with 'synchronized'. Given the
- * way this class is used there shouldn't be any performance implications of this.
+ * This class is thread safe. Starting and stopping are serialized on a lifecycle lock and changes to the Tor
+ * configuration on a separate config lock, neither of which is held while we wait for Tor to bootstrap or to write a
+ * hidden service hostname. Status queries such as isRunning() read the {@link TorState} snapshot and take no lock at
+ * all, so they stay fast while a slow start or publish is in progress.
  * <p>
  * This class began life as TorPlugin from the Briar Project
  */
-public class OnionProxyManager {
+public class OnionProxyManager implements Closeable {
     private static final String[] EVENTS = {
             "CIRC", "ORCONN", "NOTICE", "WARN", "ERR", "BW", "STATUS_CLIENT"
     };
 
+    private static final String CONF_CHANGED = "CONF_CHANGED";
+    private static final String BOOTSTRAP_PHASE = "status/bootstrap-phase";
+
     private static final String OWNER = "__OwningControllerProcess";
+    private static final long DEFAULT_HEARTBEAT_INTERVAL = SECONDS.toMillis(30);
+    private static final int EVENT_QUEUE_CAPACITY = 1024;
+    private static final int LOG_QUEUE_CAPACITY = 1024;
     private static final int HOSTNAME_TIMEOUT = 30;
+    private static final long TERMINATE_GRACE_PERIOD = 500;
+    private static final long STOP_TIMEOUT = SECONDS.toMillis(5);
+    // Covers a relay's default ShutdownWaitLength of 30 seconds
+    private static final long GRACEFUL_STOP_TIMEOUT = SECONDS.toMillis(40);
     private static final Logger LOG = LoggerFactory.getLogger(OnionProxyManager.class);
+    // Shared by every manager in the process
+    private static final TorLogPump LOG_PUMP = new TorLogPump();
 
     private final OnionProxyContext onionProxyContext;
     private final EventBroadcaster eventBroadcaster;
-    private final EventHandler eventHandler;
+    // Delivers events to the TorEventListeners and the handler we were given, off the reader thread
+    private final AsyncEventHandler eventHandler;
     private final TorConfig config;
     private final TorInstaller torInstaller;
+    private final BootstrapTracker bootstrapTracker = new BootstrapTracker();
+    private final TorStateMonitor torStateMonitor = new TorStateMonitor();
+    private final TorEventDispatcher torEventDispatcher = new TorEventDispatcher();
+    private final ControlConnectionSupervisor supervisor = new ControlConnectionSupervisor(
+            new ControlConnectionSupervisor.Supervised() {
+                @Override
+                public TorControlConnection getSupervisedConnection() {
+                    return controlConnection;
+                }
+
+                @Override
+                public void recoverControlConnection(TorControlConnection deadConnection) throws IOException {
+                    OnionProxyManager.this.recoverControlConnection(deadConnection);
+                }
+            });
 
-    private volatile Socket controlSocket = null;
+    private volatile ControlChannel controlSocket = null;
 
     // If controlConnection is not null then this means that a connection exists and the Tor OP will die when
     // the connection fails.
     private volatile TorControlConnection controlConnection = null;
+    // The Tor process we spawned, if any. With RunAsDaemon it exits once Tor has forked into the background.
+    private volatile TorProcess torProcess = null;
+    private final TorProcess.ExitListener torProcessExitListener = new TorProcess.ExitListener() {
+        @Override
+        public void exited(TorProcess process, int exitValue) {
+            onTorProcessExit(process, exitValue);
+        }
+    };
+    private final List<TorExitListener> exitListeners = new CopyOnWriteArrayList<>();
+    private final List<TorLogListener> logListeners = new CopyOnWriteArrayList<>();
+    // Takes lines off the shared log pump thread
+    private final TorLogDispatcher torLogDispatcher = new TorLogDispatcher(new TorLogListener() {
+        @Override
+        public void log(TorLogLine line) {
+            handleTorLog(line);
+        }
+    }, LOG_QUEUE_CAPACITY);
+    private final ScheduledThreadPoolExecutor restartScheduler = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "TorRestart");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    // Guarded by lifecycleLock
+    private boolean closed;
+    private RestartPolicy restartPolicy = RestartPolicy.NEVER;
+    private ScheduledFuture<?> pendingRestart;
+    private volatile int restartAttempts;
+    // Counts calls to stop and kill, so startWithRepeat can tell them from Tor exiting on its own
+    private volatile int stopRequests;
+    private volatile AsyncTorControlClient asyncControlClient = null;
     private volatile int control_port;
+    private volatile long heartbeatIntervalMillis = DEFAULT_HEARTBEAT_INTERVAL;
+    private volatile StartupProfile startupProfile = null;
+
+    // Serializes startWithRepeat calls, which can take minutes. Never held by anything else.
+    private final Object startWithRepeatLock = new Object();
+    // Guards start and stop
+    private final Object lifecycleLock = new Object();
+    // Guards changes to the Tor configuration made over the control connection
+    private final Object configLock = new Object();
+    // Serializes hidden service publishing, which waits on the hostname file outside of configLock
+    private final Object hiddenServiceLock = new Object();
 
     public OnionProxyManager(OnionProxyContext onionProxyContext) {
         this(onionProxyContext, null, null);
@@ -87,6 +171,17 @@ public class OnionProxyManager {
      */
     public OnionProxyManager(OnionProxyContext onionProxyContext, EventBroadcaster eventBroadcaster,
                              EventHandler eventHandler) {
+        this(onionProxyContext, eventBroadcaster, eventHandler, AsyncEventHandler.OverflowPolicy.COALESCE_BANDWIDTH);
+    }
+
+    /**
+     * Constructs an <code>OnionProxyManager</code> with the specified context. The event handler and any
+     * {@link TorEventListener}s are called on their own thread, so they can't delay replies on the control connection.
+     * If they fall more than {@value #EVENT_QUEUE_CAPACITY} events behind, <code>overflowPolicy</code> decides what
+     * happens.
+     */
+    public OnionProxyManager(OnionProxyContext onionProxyContext, EventBroadcaster eventBroadcaster,
+                             EventHandler eventHandler, AsyncEventHandler.OverflowPolicy overflowPolicy) {
         if(onionProxyContext == null) {
             throw new IllegalArgumentException("onionProxyContext is null");
         }
@@ -99,8 +194,26 @@ public class OnionProxyManager {
         } else {
             this.eventBroadcaster = eventBroadcaster;
         }
-        this.eventHandler = (eventHandler == null) ? new OnionProxyManagerEventHandler() :
-                eventHandler;
+        // Restarts and stop timeouts are rare, so the thread only lives while one is pending
+        restartScheduler.setKeepAliveTime(30, SECONDS);
+        restartScheduler.allowCoreThreadTimeOut(true);
+        restartScheduler.setRemoveOnCancelPolicy(true);
+        this.eventHandler = new AsyncEventHandler(new CompositeEventHandler(torEventDispatcher,
+                (eventHandler == null) ? new OnionProxyManagerEventHandler() : eventHandler),
+                EVENT_QUEUE_CAPACITY, overflowPolicy);
+        bootstrapTracker.addListener(torStateMonitor);
+        bootstrapTracker.addListener(new BootstrapTracker.Listener() {
+            @Override
+            public void bootstrapProgress(int progress, String tag, String summary) {
+                StartupProfile profile = startupProfile;
+                if (profile != null) {
+                    profile.recordBootstrap(progress);
+                }
+                if (progress >= 100) {
+                    restartAttempts = 0;
+                }
+            }
+        });
     }
 
     public final OnionProxyContext getContext() {
@@ -120,37 +233,55 @@ public class OnionProxyManager {
      * @throws java.lang.InterruptedException - You know, if we are interrupted
      * @throws java.io.IOException            - IO Exceptions
      */
-    public synchronized boolean startWithRepeat(int secondsBeforeTimeOut, int numberOfRetries, boolean enableLogging) throws
+    public boolean startWithRepeat(int secondsBeforeTimeOut, int numberOfRetries, boolean enableLogging) throws
             InterruptedException, IOException {
         if (secondsBeforeTimeOut <= 0 || numberOfRetries < 0) {
             throw new IllegalArgumentException("secondsBeforeTimeOut >= 0 & numberOfRetries > 0");
         }
 
+        synchronized (startWithRepeatLock) {
+            return startWithRepeatLocked(secondsBeforeTimeOut, numberOfRetries);
+        }
+    }
+
+    private boolean startWithRepeatLocked(int secondsBeforeTimeOut, int numberOfRetries) throws
+            InterruptedException, IOException {
         try {
             for (int retryCount = 0; retryCount < numberOfRetries; ++retryCount) {
+                int stops = stopRequests;
                 start();
 
-                // We will check every second to see if boot strapping has finally finished
-                for (int secondsWaited = 0; secondsWaited < secondsBeforeTimeOut; ++secondsWaited) {
-                    if (!isBootstrapped()) {
-                        Thread.sleep(1000, 0);
-                    } else {
-                        eventBroadcaster.broadcastNotice("Tor started; process id = " + getTorPid());
-                        return true;
-                    }
+                // The bootstrap tracker is fed by STATUS_CLIENT events so we wake up as soon as Tor reports 100%
+                if (bootstrapTracker.awaitCompletion(secondsBeforeTimeOut, SECONDS)) {
+                    eventBroadcaster.broadcastNotice("Tor started; process id = " + getTorPid());
+                    return true;
                 }
 
-                // Bootstrapping isn't over so we need to restart and try again
-                stop();
+                if (stopRequests != stops) {
+                    // Someone called stop() while we were waiting, so don't fight them. A Tor OP that exited on its
+                    // own is retried like one that didn't finish bootstrapping.
+                    return false;
+                }
+
+                // Bootstrapping isn't over so we need to restart and try again. Tor must have exited before we touch
+                // its data directory, it holds the lock file and writes its cache files until then.
+                if (!stopAndWait()) {
+                    LOG.warn("Tor OP is still running, leaving its data directory alone");
+                    continue;
+                }
                 // Experimentally we have found that if a Tor OP has run before and thus has cached descriptors
                 // and that when we try to start it again it won't start then deleting the cached data can fix this.
                 // But, if there is cached data and things do work then the Tor OP will start faster than it would
                 // if we delete everything.
-                // So our compromise is that we try to start the Tor OP 'as is' on the first round and after that
-                // we delete all the files.
-                // It can take a little bit for the Tor OP to detect the connection is dead and kill itself
-                Thread.sleep(1000, 0);
-                onionProxyContext.deleteDataDir();
+                // So our compromise is that we try to start the Tor OP 'as is' on the first round, then remove only
+                // what is stale or damaged, and only after that fails too do we delete all the files.
+                if (retryCount == 0) {
+                    List<File> deleted = onionProxyContext.deleteStaleDataDirFiles();
+                    LOG.info("Removed stale Tor data files before retrying: " + deleted);
+                } else {
+                    LOG.info("Removing all Tor data files before retrying");
+                    onionProxyContext.deleteDataDir();
+                }
             }
 
             return false;
@@ -168,22 +299,17 @@ public class OnionProxyManager {
      * @return Discovered socks port
      * @throws java.io.IOException - File errors
      */
-    public synchronized int getIPv4LocalHostSocksPort() throws IOException {
-        if (!isRunning()) {
+    public int getIPv4LocalHostSocksPort() throws IOException {
+        TorState state = torStateMonitor.get();
+        if (!state.isRunning()) {
             throw new RuntimeException("Tor is not running!");
         }
 
-        // This returns a set of space delimited quoted strings which could be Ipv4, Ipv6 or unix sockets
-        String[] socksIpPorts = controlConnection.getInfo("net/listeners/socks").split(" ");
-
-        for (String address : socksIpPorts) {
-            if (address.contains("\"127.0.0.1:")) {
-                // Remember, the last character will be a " so we have to remove that
-                return Integer.parseInt(address.substring(address.lastIndexOf(":") + 1, address.length() - 1));
-            }
+        int socksPort = state.getIPv4LocalHostSocksPort();
+        if (socksPort == -1) {
+            throw new RuntimeException("We don't have an Ipv4 localhost binding for socks!");
         }
-
-        throw new RuntimeException("We don't have an Ipv4 localhost binding for socks!");
+        return socksPort;
     }
 
     /**
@@ -195,7 +321,14 @@ public class OnionProxyManager {
      * @throws java.io.IOException - File errors
      * @throws IllegalStateException if control service is not running
      */
-    public synchronized String publishHiddenService(int hiddenServicePort, int localPort) throws IOException {
+    public String publishHiddenService(int hiddenServicePort, int localPort) throws IOException {
+        synchronized (hiddenServiceLock) {
+            return publishHiddenServiceLocked(hiddenServicePort, localPort);
+        }
+    }
+
+    private String publishHiddenServiceLocked(int hiddenServicePort, int localPort) throws IOException {
+        TorControlConnection controlConnection = this.controlConnection;
         if (controlConnection == null) {
             throw new IllegalStateException("Service is not running.");
         }
@@ -215,11 +348,11 @@ public class OnionProxyManager {
         }
 
         // Use the control connection to update the Tor config
-        List<String> config = Arrays.asList(
-                "HiddenServiceDir " + hostnameDir.getAbsolutePath(),
-                "HiddenServicePort " + hiddenServicePort + " 127.0.0.1:" + localPort);
-        controlConnection.setConf(config);
-        controlConnection.saveConf();
+        beginConfigTransaction()
+                .set("HiddenServiceDir", hostnameDir.getAbsolutePath())
+                .set("HiddenServicePort", hiddenServicePort + " 127.0.0.1:" + localPort)
+                .saveConf(true)
+                .commit();
         // Wait for the hostname file to be created/updated
         if (!hostNameFileObserver.poll(HOSTNAME_TIMEOUT, SECONDS)) {
             FileUtilities.listFilesToLog(hostnameFile.getParentFile());
@@ -234,108 +367,490 @@ public class OnionProxyManager {
     }
 
     /**
-     * Kills the Tor OP Process. Once you have called this method nothing is going to work until you either call
-     * startWithRepeat or start
+     * How Tor is asked to exit by {@link #stopAsync(StopMode)}
+     */
+    public enum StopMode {
+        /**
+         * SIGNAL SHUTDOWN. A client exits right away, a relay closes its listeners and exits after ShutdownWaitLength
+         * (30 seconds by default).
+         */
+        GRACEFUL,
+        /**
+         * SIGNAL HALT. Tor exits right away.
+         */
+        IMMEDIATE
+    }
+
+    /**
+     * Kills the Tor OP Process and waits for it to exit. If it hasn't after 5 seconds it is halted, or killed if it is
+     * our child, and given another moment to go. Once you have called this method nothing is going to work until you
+     * either call startWithRepeat or start
      *
      * @throws java.io.IOException - File errors
      */
-    public synchronized void stop() throws IOException {
+    public void stop() throws IOException {
+        stopAndWait();
+    }
+
+    /**
+     * Stops the Tor OP and ends the threads this manager keeps for event and log delivery and restarts. A closed
+     * manager can't be started again.
+     */
+    @Override
+    public void close() throws IOException {
         try {
-            if (controlConnection == null) {
+            stop();
+        } finally {
+            synchronized (lifecycleLock) {
+                closed = true;
+                // Lets a pending stop timeout run, but nothing new can be scheduled
+                restartScheduler.shutdown();
+                supervisor.close();
+            }
+            eventHandler.close();
+            torLogDispatcher.close();
+        }
+    }
+
+    /**
+     * Returns true if the Tor OP has exited
+     */
+    private boolean stopAndWait() {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        stop(StopMode.IMMEDIATE, new Runnable() {
+            @Override
+            public void run() {
+                stopped.countDown();
+            }
+        });
+        try {
+            // Past the timeout at which stop(StopMode, Runnable) escalates, so the escalation can take effect
+            if (stopped.await(STOP_TIMEOUT + TERMINATE_GRACE_PERIOD, MILLISECONDS)) {
+                return true;
+            }
+            LOG.warn("Tor OP hasn't exited yet");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Asks the Tor OP to exit and returns at once. The future completes once the Tor process has exited, or for a Tor
+     * OP that isn't our child (RunAsDaemon, or one we attached to) once it has closed the control connection. If Tor
+     * hasn't exited by then, 5 seconds after IMMEDIATE or 40 seconds after GRACEFUL, it is halted and our control
+     * connection closed, which makes it exit as we own it.
+     * <p>
+     * On Android the returned future requires API level 24 or higher.
+     */
+    public CompletableFuture<Void> stopAsync(StopMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode is null");
+        }
+        final CompletableFuture<Void> stopped = new CompletableFuture<>();
+        stop(mode, new Runnable() {
+            @Override
+            public void run() {
+                stopped.complete(null);
+            }
+        });
+        return stopped;
+    }
+
+    /**
+     * Called at the start of every stop, whether through {@link #stop()}, {@link #stopAsync(StopMode)} or a retry in
+     * {@link #startWithRepeat(int, int, boolean)}, before the Tor OP is asked to exit. Subclasses release here what
+     * they acquired in {@link #start()}.
+     */
+    protected void onStopping() {
+    }
+
+    /**
+     * Asks the Tor OP to exit and runs <code>exited</code> once it has, on a thread of its own. Only uses APIs every
+     * Android version has, so {@link #stop()} keeps working below API level 24.
+     */
+    private void stop(final StopMode mode, final Runnable exited) {
+        // Outside the lifecycle lock, so subclasses can take their own locks in either order
+        onStopping();
+        synchronized (lifecycleLock) {
+            stopRequests++;
+            supervisor.stop();
+            cancelRestart();
+            final TorControlConnection connection = controlConnection;
+            if (connection == null) {
+                exited.run();
                 return;
             }
             LOG.info("Stopping Tor");
-            eventBroadcaster.broadcastNotice("Using control port to shutdown Tor");
-            controlConnection.setConf("DisableNetwork", "1");
-            controlConnection.shutdownTor("HALT");
-            eventBroadcaster.broadcastNotice("sending HALT signal to Tor process");
-        } finally {
-            controlConnection = null;
-            if (controlSocket != null) {
+            TorProcess child = torProcess != null && torProcess.isAlive() && !isDaemon() ? torProcess : null;
+            // Commands on a connection without a reader thread never get a reply. We own the Tor OP, so closing the
+            // socket shuts it down anyway.
+            boolean signalled = false;
+            if (connection.isReaderThreadAlive()) {
                 try {
-                    controlSocket.close();
-                } finally {
-                    controlSocket = null;
+                    connection.shutdownTor(mode == StopMode.GRACEFUL ? "SHUTDOWN" : "HALT");
+                    eventBroadcaster.broadcastNotice("sending " + mode + " signal to Tor process");
+                    signalled = true;
+                } catch (IOException e) {
+                    LOG.debug("Could not signal Tor over the control connection", e);
+                }
+            }
+            // Tor closes the control connection as it exits. Closing it first would count as an immediate shutdown.
+            final ControlChannel socket = detachControlConnection();
+            if (!signalled) {
+                closeQuietly(socket);
+            }
+
+            final AtomicBoolean done = new AtomicBoolean();
+            Runnable onExit = new Runnable() {
+                @Override
+                public void run() {
+                    closeQuietly(socket);
+                    if (done.compareAndSet(false, true)) {
+                        exited.run();
+                    }
                 }
+            };
+            if (child != null) {
+                child.onExit(onExit);
+            } else {
+                connection.onReaderThreadExit(onExit);
             }
+
+            final TorProcess process = child;
+            restartScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (done.get()) {
+                        return;
+                    }
+                    LOG.warn("Tor OP didn't exit after " + mode + ", halting it");
+                    try {
+                        connection.shutdownTor("HALT");
+                    } catch (IOException e) {
+                        LOG.debug("Could not halt Tor", e);
+                    }
+                    closeQuietly(socket);
+                    if (process != null) {
+                        process.destroyForcibly();
+                    }
+                }
+            }, mode == StopMode.GRACEFUL ? GRACEFUL_STOP_TIMEOUT : STOP_TIMEOUT, MILLISECONDS);
+        }
+    }
+
+    private void closeControlConnection() throws IOException {
+        ControlChannel socket = detachControlConnection();
+        if (socket != null) {
+            socket.close();
         }
     }
 
     /**
-     * Checks to see if the Tor OP is running (e.g. fully bootstrapped) and open to network connections.
+     * Forgets the control connection without closing its socket, which is returned
+     */
+    private ControlChannel detachControlConnection() {
+        if (asyncControlClient != null) {
+            asyncControlClient.close();
+            asyncControlClient = null;
+        }
+        controlConnection = null;
+        torStateMonitor.disconnected();
+        bootstrapTracker.reset();
+        ControlChannel socket = controlSocket;
+        controlSocket = null;
+        return socket;
+    }
+
+    /**
+     * Sets how often the control connection is checked. If the connection has died it is replaced with a new one to
+     * the same Tor OP, or if that fails the Tor OP is restarted as the {@link RestartPolicy} allows. An interval of 0
+     * turns the checks off. Defaults to 30 seconds.
+     */
+    public void setControlHeartbeatInterval(long interval, TimeUnit unit) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("interval is negative");
+        }
+        synchronized (lifecycleLock) {
+            heartbeatIntervalMillis = unit.toMillis(interval);
+            if (controlConnection != null) {
+                startSupervisor();
+            }
+        }
+    }
+
+    private void startSupervisor() {
+        if (heartbeatIntervalMillis > 0) {
+            supervisor.start(heartbeatIntervalMillis);
+        } else {
+            supervisor.stop();
+        }
+    }
+
+    /**
+     * Called by the supervisor once <code>deadConnection</code> stops responding, and as soon as its reader thread
+     * exits. Connects to the Tor OP again using the control port and cookie files. If the Tor OP can't be reached it
+     * has exited, and the {@link RestartPolicy} decides whether it is restarted.
+     */
+    private void recoverControlConnection(TorControlConnection deadConnection) throws IOException {
+        int exitValue;
+        boolean restarting;
+        synchronized (lifecycleLock) {
+            if (controlConnection != deadConnection) {
+                // Already stopped or replaced
+                return;
+            }
+            eventBroadcaster.broadcastNotice("Control connection lost, reconnecting");
+            ControlChannel deadSocket = controlSocket;
+            TorControlConnection connection;
+            try {
+                connection = connectToTorControlSocket(config.getControlPortFile());
+                attachControlConnection(connection, false);
+                List<String> disableNetwork = connection.getConfMap(Collections.singleton("DisableNetwork"))
+                        .get("DisableNetwork");
+                if (asyncControlClient != null) {
+                    asyncControlClient.close();
+                    asyncControlClient = null;
+                }
+                controlConnection = connection;
+                torStateMonitor.networkEnabled(disableNetwork == null || !disableNetwork.contains("1"));
+                releaseOwnership(deadSocket);
+                eventBroadcaster.broadcastNotice("SUCCESS reconnected to Tor control port.");
+                return;
+            } catch (IOException e) {
+                LOG.warn("Could not reconnect to the Tor OP, it has exited", e);
+                if (controlSocket != deadSocket) {
+                    // We got as far as opening a new socket
+                    closeQuietly(controlSocket);
+                    controlSocket = deadSocket;
+                }
+            }
+            exitValue = childExitValue();
+            restarting = handleUnexpectedExitLocked(exitValue);
+        }
+        notifyExitListeners(exitValue, restarting);
+    }
+
+    /**
+     * Called on the waiter thread when a Tor process we spawned exits
+     */
+    private void onTorProcessExit(TorProcess process, int exitValue) {
+        boolean restarting;
+        synchronized (lifecycleLock) {
+            // With RunAsDaemon the process we spawned exits as soon as Tor has forked, which is no reason to worry
+            if (process != torProcess || controlConnection == null || isDaemon()) {
+                return;
+            }
+            restarting = handleUnexpectedExitLocked(exitValue);
+        }
+        notifyExitListeners(exitValue, restarting);
+    }
+
+    private boolean isDaemon() {
+        return onionProxyContext.getSettings().runAsDaemon();
+    }
+
+    /**
+     * Returns the exit value of the Tor process if it ran in the foreground as our child, otherwise -1
+     */
+    private int childExitValue() {
+        TorProcess torProcess = this.torProcess;
+        if (torProcess == null || isDaemon()) {
+            return -1;
+        }
+        try {
+            // The control connection can close a moment before the waiter thread sees the exit
+            torProcess.awaitExit(TERMINATE_GRACE_PERIOD, MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return torProcess.getExitValue();
+    }
+
+    /**
+     * Cleans up after a Tor OP that exited without being stopped and schedules a restart if the policy allows one
      *
-     * @return True if running
-     * @throws java.io.IOException - IO exceptions
+     * @return true if a restart has been scheduled
      */
-    public synchronized boolean isRunning() {
+    private boolean handleUnexpectedExitLocked(int exitValue) {
+        LOG.warn("Tor OP exited unexpectedly, exit value " + exitValue);
+        supervisor.stop();
         try {
-            return isBootstrapped() && isNetworkEnabled();
+            closeControlConnection();
         } catch (IOException e) {
+            LOG.debug("Could not close control connection", e);
+        }
+        eventBroadcaster.getStatus().off();
+        eventBroadcaster.broadcastNotice("Tor exited unexpectedly");
+        return scheduleRestartLocked();
+    }
+
+    private void notifyExitListeners(int exitValue, boolean restarting) {
+        for (TorExitListener listener : exitListeners) {
+            try {
+                listener.torExited(exitValue, restarting);
+            } catch (RuntimeException e) {
+                LOG.warn("Exit listener failed", e);
+            }
+        }
+    }
+
+    private boolean scheduleRestartLocked() {
+        long delay = restartPolicy.getDelayMillis(restartAttempts);
+        if (delay < 0) {
+            LOG.warn("Not restarting the Tor OP after " + restartAttempts + " attempts");
             return false;
         }
+        restartAttempts++;
+        LOG.info("Restarting the Tor OP in " + delay + "ms, attempt " + restartAttempts);
+        pendingRestart = restartScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                restartAfterExit();
+            }
+        }, delay, MILLISECONDS);
+        return true;
+    }
+
+    private void restartAfterExit() {
+        synchronized (lifecycleLock) {
+            pendingRestart = null;
+            if (controlConnection != null) {
+                // Somebody started it in the meantime
+                return;
+            }
+            try {
+                // The data directory is left as it is, so the restarted Tor OP starts from its warm cache
+                startLocked();
+            } catch (IOException e) {
+                LOG.warn("Could not restart the Tor OP", e);
+                scheduleRestartLocked();
+            }
+        }
+    }
+
+    private void cancelRestart() {
+        if (pendingRestart != null) {
+            pendingRestart.cancel(false);
+            pendingRestart = null;
+        }
     }
 
     /**
-     * Tells the Tor OP if it should accept network connections
-     *
-     * @param enable If true then the Tor OP will accept SOCKS connections, otherwise not.
-     * @throws java.io.IOException - IO exceptions
+     * Sets what happens when the Tor OP exits without being stopped. Defaults to {@link RestartPolicy#NEVER}, so
+     * the Tor OP stays down until start is called, for example by a {@link TorInstancePool} failing over.
      */
-    public synchronized void enableNetwork(boolean enable) throws IOException {
-        if (controlConnection == null) {
+    public void setRestartPolicy(RestartPolicy restartPolicy) {
+        if (restartPolicy == null) {
+            throw new IllegalArgumentException("restartPolicy is null");
+        }
+        synchronized (lifecycleLock) {
+            this.restartPolicy = restartPolicy;
+        }
+    }
+
+    public void addTorExitListener(TorExitListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener is null");
+        }
+        exitListeners.add(listener);
+    }
+
+    public void removeTorExitListener(TorExitListener listener) {
+        exitListeners.remove(listener);
+    }
+
+    /**
+     * Closes the socket of a control connection that has stopped working. Both connections took ownership, and Tor
+     * exits when any owning connection closes, so ownership is dropped first by writing the command directly to the
+     * socket. Tor versions before 0.4.0 don't know DROPOWNERSHIP and exit; the next heartbeat then restarts Tor.
+     */
+    private void releaseOwnership(ControlChannel deadSocket) {
+        if (deadSocket == null) {
             return;
         }
-        LOG.info("Enabling network: " + enable);
-        controlConnection.setConf("DisableNetwork", enable ? "0" : "1");
+        try {
+            deadSocket.getOutputStream().write("DROPOWNERSHIP\r\nQUIT\r\n".getBytes("US-ASCII"));
+            deadSocket.getOutputStream().flush();
+        } catch (IOException e) {
+            LOG.debug("Could not drop ownership on dead control connection", e);
+        }
+        closeQuietly(deadSocket);
+    }
+
+    private static void closeQuietly(ControlChannel socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOG.debug("Could not close socket", e);
+        }
     }
 
     /**
-     * Specifies if Tor OP is accepting network connections
+     * Checks to see if the Tor OP is running (e.g. fully bootstrapped) and open to network connections.
      *
-     * @return True if network is enabled (that doesn't mean that the device is online, only that the Tor OP is trying
-     * to connect to the network)
+     * @return True if running
      * @throws java.io.IOException - IO exceptions
      */
-    private synchronized boolean isNetworkEnabled() throws IOException {
-        if (controlConnection == null) {
-            return false;
-        }
+    public boolean isRunning() {
+        return torStateMonitor.get().isRunning();
+    }
 
-        List<ConfigEntry> disableNetworkSettingValues = controlConnection.getConf("DisableNetwork");
-        boolean result = false;
-        // It's theoretically possible for us to get multiple values back, if even one is false then we will
-        // assume all are false
-        for (ConfigEntry configEntry : disableNetworkSettingValues) {
-            if (configEntry.value.equals("1")) {
-                return false;
-            } else {
-                result = true;
-            }
-        }
-        return result;
+    /**
+     * Returns the latest snapshot of the Tor OP's state. The snapshot is maintained from control events and the
+     * changes this manager makes, so reading it never touches the control connection.
+     */
+    public TorState getTorState() {
+        return torStateMonitor.get();
     }
 
     /**
-     * Determines if the boot strap process has completed.
+     * Tells the Tor OP if it should accept network connections
      *
-     * @return True if complete
+     * @param enable If true then the Tor OP will accept SOCKS connections, otherwise not.
+     * @throws java.io.IOException - IO exceptions
      */
-    private synchronized boolean isBootstrapped() {
-        if (controlConnection == null) {
-            return false;
+    public void enableNetwork(boolean enable) throws IOException {
+        if (!hasControlConnection()) {
+            return;
         }
+        LOG.info("Enabling network: " + enable);
+        beginConfigTransaction().set("DisableNetwork", !enable).commit();
+    }
 
-        try {
-            String phase = controlConnection.getInfo("status/bootstrap-phase");
-            if (phase != null && phase.contains("PROGRESS=100")) {
-                LOG.info("Tor has already bootstrapped");
-                return true;
+    /**
+     * Starts a set of configuration changes that will be sent to the Tor OP as a single command when committed
+     */
+    public ConfigTransaction beginConfigTransaction() {
+        return new ConfigTransaction(this);
+    }
+
+    void commit(ConfigTransaction transaction) throws IOException {
+        TorControlConnection controlConnection = this.controlConnection;
+        if (controlConnection == null) {
+            throw new IllegalStateException("Service is not running.");
+        }
+        List<ConfigEntry> entries = transaction.getEntries();
+        synchronized (configLock) {
+            // When restarting the network the entries already disable it
+            controlConnection.applyConf(entries);
+            if (transaction.isRestartNetwork()) {
+                controlConnection.setConf("DisableNetwork", "0");
+            }
+            Boolean networkEnabled = transaction.getNetworkEnabled();
+            if (networkEnabled != null) {
+                torStateMonitor.networkEnabled(networkEnabled);
+            } else {
+                // Options such as SocksPort move the listeners without touching DisableNetwork
+                torStateMonitor.scheduleRefresh();
+            }
+            if (transaction.isSaveConf()) {
+                controlConnection.saveConf();
             }
-        } catch (IOException e) {
-            LOG.warn("Control connection is not responding properly to getInfo", e);
         }
-
-        return false;
     }
 
     /**
@@ -343,14 +858,28 @@ public class OnionProxyManager {
      *
      * @throws IOException
      */
-    public synchronized void start() throws IOException {
+    public void start() throws IOException {
+        synchronized (lifecycleLock) {
+            startLocked();
+        }
+    }
+
+    private void startLocked() throws IOException {
+        if (closed) {
+            throw new IllegalStateException("OnionProxyManager is closed.");
+        }
         if (controlConnection != null) {
             LOG.info("Control connection not null. aborting");
             return;
         }
 
         LOG.info("Starting Tor");
-        Process torProcess = null;
+        StartupProfile profile = startupProfile;
+        if (profile == null || profile.isLaunched()) {
+            beginStartupProfile();
+        }
+        bootstrapTracker.reset();
+        TorProcess torProcess = null;
         TorControlConnection controlConnection = findExistingTorConnection();
         boolean hasExistingTorConnection = controlConnection != null;
         if(!hasExistingTorConnection) {
@@ -361,11 +890,30 @@ public class OnionProxyManager {
             File cookieAuthFile = getContext().getConfig().getCookieAuthFile();
             cookieAuthFile.delete();
             if (!cookieAuthFile.getParentFile().exists()) cookieAuthFile.getParentFile().mkdirs();
+            if (!onionProxyContext.createUnixSocketDirs()) {
+                LOG.warn("Could not create the unix domain socket directories");
+            }
+
+            try {
+                List<File> seeded = onionProxyContext.seedDataDirFromSnapshot();
+                if (!seeded.isEmpty()) {
+                    eventBroadcaster.broadcastNotice("Seeded data directory from cache snapshot");
+                    LOG.info("Seeded data directory from cache snapshot: " + seeded);
+                }
+            } catch (IOException e) {
+                // Tor still starts without the snapshot, only more slowly
+                LOG.warn("Could not seed data directory from cache snapshot", e);
+            }
 
             torProcess = spawnTorProcess();
+            this.torProcess = torProcess;
             try {
+                // Wait for both files at once, Tor writes them at about the same time
+                FileWait cookieWait = new FileWait(cookieAuthFile);
+                cookieWait.start();
                 waitForControlPortFileCreation(controlPortFile);
                 controlConnection = connectToTorControlSocket(controlPortFile);
+                cookieWait.await();
             } catch (IOException e) {
                 if(torProcess != null) torProcess.destroy();
                 throw new IOException(e.getMessage());            }
@@ -375,36 +923,69 @@ public class OnionProxyManager {
 
         try {
             this.controlConnection = controlConnection;
-
-            File cookieAuthFile = getContext().getConfig().getCookieAuthFile();
-            waitForCookieAuthFileCreation(cookieAuthFile);
-            controlConnection.authenticate(FileUtilities.read(cookieAuthFile));
-            eventBroadcaster.broadcastNotice("SUCCESS - authenticated tor control port.");
-
-            if(hasExistingTorConnection) {
-                controlConnection.reloadConf();
-                eventBroadcaster.broadcastNotice("Reloaded configuration file");
-            }
-
-            controlConnection.takeownership();
-            controlConnection.resetOwningControllerProcess();
-            eventBroadcaster.broadcastNotice("Took ownership of tor control port.");
-
-            eventBroadcaster.broadcastNotice("adding control port event handler");
-            controlConnection.setEventHandler(eventHandler);
-            controlConnection.setEvents(Arrays.asList(EVENTS));
-            eventBroadcaster.broadcastNotice("SUCCESS added control port event handler");
-
+            attachControlConnection(controlConnection, hasExistingTorConnection);
             enableNetwork(true);
+            torStateMonitor.refresh();
         } catch (IOException e) {
             if(torProcess != null) torProcess.destroy();
             this.controlConnection = null;
+            torStateMonitor.disconnected();
             throw new IOException(e.getMessage());
         }
+        startSupervisor();
 
         LOG.info("Completed starting of tor");
     }
 
+    /**
+     * Authenticates a new control connection, takes ownership of the Tor OP and subscribes to its events
+     */
+    private void attachControlConnection(final TorControlConnection controlConnection, boolean reloadConf)
+            throws IOException {
+        File cookieAuthFile = getContext().getConfig().getCookieAuthFile();
+        waitForCookieAuthFileCreation(cookieAuthFile);
+        controlConnection.authenticate(FileUtilities.read(cookieAuthFile));
+        recordMilestone(StartupProfile.Milestone.AUTHENTICATED);
+        eventBroadcaster.broadcastNotice("SUCCESS - authenticated tor control port.");
+
+        if(reloadConf) {
+            controlConnection.reloadConf();
+            eventBroadcaster.broadcastNotice("Reloaded configuration file");
+        }
+
+        controlConnection.takeownership();
+        controlConnection.resetOwningControllerProcess();
+        recordMilestone(StartupProfile.Milestone.OWNERSHIP_TAKEN);
+        eventBroadcaster.broadcastNotice("Took ownership of tor control port.");
+
+        torStateMonitor.connected(controlConnection, false);
+        eventBroadcaster.broadcastNotice("adding control port event handler");
+        controlConnection.setEventHandler(new CompositeEventHandler(bootstrapTracker, eventHandler));
+        List<String> events = new ArrayList<>(Arrays.asList(EVENTS));
+        if (TorControlConnection.isConfChangedSupported()) {
+            // Keeps the snapshot current when the configuration is changed outside of commit()
+            controlConnection.setConfChangedListener(torStateMonitor);
+            events.add(CONF_CHANGED);
+        }
+        controlConnection.setEvents(events);
+        eventBroadcaster.broadcastNotice("SUCCESS added control port event handler");
+
+        // An existing Tor OP may have made progress before we subscribed, so seed the tracker
+        bootstrapTracker.update(controlConnection.getInfo(BOOTSTRAP_PHASE));
+
+        // The reader thread ends as soon as Tor closes the connection, long before the heartbeat would notice
+        controlConnection.onReaderThreadExit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    recoverControlConnection(controlConnection);
+                } catch (IOException e) {
+                    LOG.warn("Could not recover control connection", e);
+                }
+            }
+        });
+    }
+
     /**
      * Finds existing tor control connection by trying to connect. Returns null if
      */
@@ -425,17 +1006,38 @@ public class OnionProxyManager {
      */
     private TorControlConnection connectToTorControlSocket(File controlPortFile) throws IOException {
         TorControlConnection controlConnection;
+        String contents = new String(FileUtilities.read(controlPortFile));
         try {
-            String[] controlPortTokens = new String(FileUtilities.read(controlPortFile)).trim().split(":");
-            control_port = Integer.parseInt(controlPortTokens[1]);
-            eventBroadcaster.broadcastNotice("Connecting to control port: " + control_port);
-            controlSocket = new Socket(controlPortTokens[0].split("=")[1], control_port);
-            controlConnection = new TorControlConnection(controlSocket);
+            // Tor writes a line for each control listener, PORT=host:port or UNIX_PORT=path
+            String tcpPort = null;
+            String unixPort = null;
+            for (String line : contents.split("\n")) {
+                line = line.trim();
+                if (line.startsWith("PORT=") && tcpPort == null) {
+                    tcpPort = line.substring("PORT=".length());
+                } else if (line.startsWith("UNIX_PORT=") && unixPort == null) {
+                    unixPort = line.substring("UNIX_PORT=".length());
+                }
+            }
+            if (unixPort != null && onionProxyContext.supportsUnixDomainSockets()) {
+                control_port = -1;
+                eventBroadcaster.broadcastNotice("Connecting to control socket: " + unixPort);
+                controlSocket = ControlChannel.of(onionProxyContext.openUnixDomainSocket(new File(unixPort)));
+            } else {
+                String[] controlPortTokens = tcpPort.split(":");
+                control_port = Integer.parseInt(controlPortTokens[1]);
+                eventBroadcaster.broadcastNotice("Connecting to control port: " + control_port);
+                controlSocket = ControlChannel.of(new Socket(controlPortTokens[0], control_port));
+            }
+            controlConnection = new TorControlConnection(controlSocket.getInputStream(),
+                    controlSocket.getOutputStream());
+            controlConnection.launchThread(true);
             eventBroadcaster.broadcastNotice("SUCCESS connected to Tor control port.");
         } catch (IOException e) {
             throw new IOException(e.getMessage());
-        } catch(ArrayIndexOutOfBoundsException e) {
-            throw new IOException("Failed to read control port: " + new String(FileUtilities.read(controlPortFile)));
+        } catch(RuntimeException e) {
+            // No usable listener, or a malformed one
+            throw new IOException("Failed to read control port: " + contents);
         }
 
         if (getContext().getSettings().hasDebugLogs()) {
@@ -447,7 +1049,7 @@ public class OnionProxyManager {
     /**
      * Spawns the tor native process from the existing Java process.
      */
-    private Process spawnTorProcess() throws IOException {
+    private TorProcess spawnTorProcess() throws IOException {
         String pid = onionProxyContext.getProcessId();
         String[] cmd = {torExecutable().getAbsolutePath(), "-f", torrc().getAbsolutePath(), OWNER, pid};
         ProcessBuilder processBuilder = new ProcessBuilder(cmd);
@@ -457,15 +1059,16 @@ public class OnionProxyManager {
         Process torProcess;
         try {
             torProcess = processBuilder.start();
+            recordMilestone(StartupProfile.Milestone.PROCESS_SPAWNED);
         } catch (SecurityException e) {
             LOG.warn(e.toString(), e);
             throw new IOException(e);
         }
-        eatStream(torProcess.getErrorStream(), true);
-        if (getContext().getSettings().hasDebugLogs()) {
-            eatStream(torProcess.getInputStream(), false);
-        }
-        return torProcess;
+        TorProcess watched = TorProcess.watch(torProcess, torProcessExitListener);
+        // stdout is drained even when nobody wants to see it, or Tor would block once the pipe is full
+        LOG_PUMP.register(torProcess.getErrorStream(), watched, true, torLogDispatcher);
+        LOG_PUMP.register(torProcess.getInputStream(), watched, false, torLogDispatcher);
+        return watched;
     }
 
     /**
@@ -485,6 +1088,7 @@ public class OnionProxyManager {
             throw new IOException("Control port file not created: " + controlPortFile.getAbsolutePath()
                     + ", len = " + controlPortFile.length());
         }
+        recordMilestone(StartupProfile.Milestone.CONTROL_PORT_FILE);
         LOG.info("Created control port file: time = " + (System.currentTimeMillis() - controlPortStartTime) + "ms");
     }
 
@@ -504,33 +1108,67 @@ public class OnionProxyManager {
             throw new IOException("Cookie Auth file not created: " + cookieAuthFile.getAbsolutePath()
                     + ", len = " + cookieAuthFile.length());
         }
+        recordMilestone(StartupProfile.Milestone.COOKIE_AUTH_FILE);
         LOG.info("Created cookie auth file: time = " + (System.currentTimeMillis() - cookieAuthStartTime) + "ms");
     }
 
-    private void eatStream(final InputStream inputStream, boolean isError) {
-        new Thread() {
-            @Override
-            public void run() {
-                Scanner scanner = new Scanner(inputStream);
-                try {
-                    while (scanner.hasNextLine()) {
-                        String line = scanner.nextLine();
-                        if(isError) {
-                            LOG.error(line);
-                            eventBroadcaster.broadcastException(line, new Exception());
-                        } else {
-                            LOG.info(line);
-                        }
-                    }
-                } finally {
-                    try {
-                        inputStream.close();
-                    } catch (IOException e) {
-                        LOG.error("Couldn't close input stream in eatStream", e);
-                    }
-                }
+    /**
+     * Waits for the cookie auth file on its own thread
+     */
+    private final class FileWait extends Thread {
+        private final File cookieAuthFile;
+        private volatile IOException failure;
+
+        FileWait(File cookieAuthFile) {
+            super("CookieAuthFileWait");
+            setDaemon(true);
+            this.cookieAuthFile = cookieAuthFile;
+        }
+
+        @Override
+        public void run() {
+            try {
+                waitForCookieAuthFileCreation(cookieAuthFile);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        void await() throws IOException {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for cookie auth file");
+            }
+            if (failure != null) {
+                throw failure;
             }
-        }.start();
+        }
+    }
+
+    /**
+     * Called on the TorLog thread for every line the Tor process writes. Anything on stderr, and warnings and
+     * errors on stdout, are always logged and broadcast. Everything else only with debug logs on.
+     */
+    private void handleTorLog(TorLogLine line) {
+        StatusEvent.Severity severity = line.getSeverity();
+        if (line.isStderr() || severity == StatusEvent.Severity.ERR) {
+            LOG.error(line.getLine());
+            eventBroadcaster.broadcastLogMessage(line.getLine());
+        } else if (severity == StatusEvent.Severity.WARN) {
+            LOG.warn(line.getLine());
+            eventBroadcaster.broadcastLogMessage(line.getLine());
+        } else if (getContext().getSettings().hasDebugLogs()) {
+            LOG.info(line.getLine());
+        }
+        for (TorLogListener listener : logListeners) {
+            try {
+                listener.log(line);
+            } catch (RuntimeException e) {
+                LOG.warn("Tor log listener failed", e);
+            }
+        }
     }
 
     private File torExecutable() throws IOException {
@@ -609,20 +1247,88 @@ public class OnionProxyManager {
         if(torInstaller == null) {
             throw new IOException("No TorInstaller found");
         }
+        beginStartupProfile();
         torInstaller.setup();
+        recordMilestone(StartupProfile.Milestone.INSTALLED);
     }
 
     public TorInstaller getTorInstaller() {
         return torInstaller;
     }
 
-    public boolean isIPv4LocalHostSocksPortOpen() {
-        try {
-            getIPv4LocalHostSocksPort();
-            return true;
-        } catch (Exception e) {
-            return false;
+    /**
+     * Installs the Tor files, writes the torrc from the settings and starts the Tor OP, running the steps that don't
+     * depend on each other concurrently. This replaces calling {@link #setup()}, writing the torrc and then
+     * {@link #start()} one after the other. See {@link StartupPipeline} for the steps.
+     *
+     * @param bootstrapTimeoutSeconds how long to wait for bootstrapping once the Tor OP is running
+     * @return completes once the Tor OP has bootstrapped or the timeout expired, with the time each step took and
+     * the time saved
+     */
+    public CompletableFuture<StartupPipeline.Result> installAndStart(int bootstrapTimeoutSeconds) {
+        return new StartupPipeline(this).run(bootstrapTimeoutSeconds);
+    }
+
+    /**
+     * Returns the tracker that follows the bootstrap progress of the Tor OP. Use it to watch intermediate progress
+     * or to wait for bootstrapping to finish after calling {@link #start()}.
+     */
+    public BootstrapTracker getBootstrapTracker() {
+        return bootstrapTracker;
+    }
+
+    /**
+     * Returns the timings of the most recent startup, which may still be in progress, or null if there hasn't been
+     * one
+     */
+    public StartupProfile getStartupProfile() {
+        return startupProfile;
+    }
+
+    /**
+     * Starts a new profile for a startup that begins before {@link #start()}
+     */
+    StartupProfile beginStartupProfile() {
+        StartupProfile profile = new StartupProfile();
+        startupProfile = profile;
+        return profile;
+    }
+
+    void recordMilestone(StartupProfile.Milestone milestone) {
+        StartupProfile profile = startupProfile;
+        if (profile != null) {
+            profile.record(milestone);
+        }
+    }
+
+    /**
+     * Registers a listener for circuit, OR connection, bandwidth and status events from the Tor OP
+     */
+    public void addTorEventListener(TorEventListener listener) {
+        torEventDispatcher.addListener(listener);
+    }
+
+    public void removeTorEventListener(TorEventListener listener) {
+        torEventDispatcher.removeListener(listener);
+    }
+
+    /**
+     * Registers a listener for the lines Tor processes started by this manager write to stdout and stderr
+     */
+    public void addTorLogListener(TorLogListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener is null");
         }
+        logListeners.add(listener);
+    }
+
+    public void removeTorLogListener(TorLogListener listener) {
+        logListeners.remove(listener);
+    }
+
+    public boolean isIPv4LocalHostSocksPortOpen() {
+        TorState state = torStateMonitor.get();
+        return state.isRunning() && state.getIPv4LocalHostSocksPort() != -1;
     }
 
     /**
@@ -636,31 +1342,21 @@ public class OnionProxyManager {
         if (!hasControlConnection()) {
             return false;
         }
-        if (exitNodes == null || exitNodes.isEmpty()) {
-            try {
-                ArrayList<String> resetBuffer = new ArrayList<>();
-                resetBuffer.add("ExitNodes");
-                resetBuffer.add("StrictNodes");
-                controlConnection.resetConf(resetBuffer);
-                controlConnection.setConf("DisableNetwork", "1");
-                controlConnection.setConf("DisableNetwork", "0");
-            } catch (Exception ioe) {
-                LOG.error("Connection exception occurred resetting exits", ioe);
-                return false;
-            }
-        } else {
-            try {
-                controlConnection.setConf("GeoIPFile", config.getGeoIpFile().getCanonicalPath());
-                controlConnection.setConf("GeoIPv6File", config.getGeoIpv6File().getCanonicalPath
-                        ());
-                controlConnection.setConf("ExitNodes", exitNodes);
-                controlConnection.setConf("StrictNodes", "1");
-                controlConnection.setConf("DisableNetwork", "1");
-                controlConnection.setConf("DisableNetwork", "0");
-            } catch (Exception ioe) {
-                LOG.error("Connection exception occurred resetting exits", ioe);
-                return false;
+        // Tor abandons circuits that don't match the new exit nodes by itself, so the network is left running
+        try {
+            ConfigTransaction transaction = beginConfigTransaction();
+            if (exitNodes == null || exitNodes.isEmpty()) {
+                transaction.reset("ExitNodes").reset("StrictNodes");
+            } else {
+                transaction.set("GeoIPFile", config.getGeoIpFile().getCanonicalPath())
+                        .set("GeoIPv6File", config.getGeoIpv6File().getCanonicalPath())
+                        .set("ExitNodes", exitNodes)
+                        .set("StrictNodes", true);
             }
+            transaction.set("DisableNetwork", false).commit();
+        } catch (Exception ioe) {
+            LOG.error("Connection exception occurred resetting exits", ioe);
+            return false;
         }
         return true;
     }
@@ -670,7 +1366,7 @@ public class OnionProxyManager {
             return false;
         }
         try {
-            controlConnection.setConf("DisableNetwork", isEnabled ? "0" : "1");
+            beginConfigTransaction().set("DisableNetwork", !isEnabled).commit();
             return true;
         } catch (Exception e) {
             eventBroadcaster.broadcastDebug("error disabling network "
@@ -680,7 +1376,8 @@ public class OnionProxyManager {
     }
 
     public boolean setNewIdentity() {
-        if (!hasControlConnection()) {
+        TorControlConnection controlConnection = this.controlConnection;
+        if (controlConnection == null) {
             return false;
         }
         try {
@@ -697,13 +1394,47 @@ public class OnionProxyManager {
         return controlConnection != null;
     }
 
+    /**
+     * Returns a non-blocking client for the control connection. Requests made through it are queued and coalesced
+     * so that high frequency queries and config pushes share round trips. The client is closed by {@link #stop()}.
+     *
+     * @throws IllegalStateException if control service is not running
+     */
+    public AsyncTorControlClient getAsyncControlClient() {
+        synchronized (lifecycleLock) {
+            if (controlConnection == null) {
+                throw new IllegalStateException("Service is not running.");
+            }
+            if (asyncControlClient == null) {
+                asyncControlClient = new AsyncTorControlClient(controlConnection);
+            }
+            return asyncControlClient;
+        }
+    }
+
+    /**
+     * Returns the process id of the Tor OP, or -1 if we are not connected to it. This is served from the
+     * {@link TorState} snapshot once it is known.
+     */
     public int getTorPid() {
+        TorState state = torStateMonitor.get();
+        if (state.isConnected() && state.getPid() != -1) {
+            return state.getPid();
+        }
+        return queryTorPid();
+    }
+
+    /**
+     * Asks the Tor OP for its process id. Unlike the snapshot this fails once the process is gone.
+     */
+    private int queryTorPid() {
         String pidS = getInfo("process/pid");
         return (pidS == null || pidS.isEmpty()) ? -1 : Integer.valueOf(pidS);
     }
 
     public String getInfo(String info) {
-        if (!hasControlConnection()) {
+        TorControlConnection controlConnection = this.controlConnection;
+        if (controlConnection == null) {
             return null;
         }
         try {
@@ -713,8 +1444,43 @@ public class OnionProxyManager {
         }
     }
 
+    /**
+     * Fetches several GETINFO keys with a single command
+     *
+     * @return the values by key, or null if there is no control connection or the request failed
+     */
+    public Map<String, String> getInfo(Collection<String> keys) {
+        TorControlConnection controlConnection = this.controlConnection;
+        if (controlConnection == null) {
+            return null;
+        }
+        try {
+            return controlConnection.getInfo(keys);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Fetches several config options with a single GETCONF
+     *
+     * @return the values by option name, or null if there is no control connection or the request failed
+     */
+    public Map<String, List<String>> getConf(Collection<String> keys) {
+        TorControlConnection controlConnection = this.controlConnection;
+        if (controlConnection == null) {
+            return null;
+        }
+        try {
+            return controlConnection.getConfMap(keys);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     public boolean reloadTorConfig() {
-        if (!hasControlConnection()) {
+        TorControlConnection controlConnection = this.controlConnection;
+        if (controlConnection == null) {
             return false;
         }
         try {
@@ -732,28 +1498,69 @@ public class OnionProxyManager {
         return false;
     }
 
+    /**
+     * Stops the Tor OP, waiting for it to exit, and starts it again
+     */
     public void restartTorProcess() throws Exception {
-        killTorProcess(-1);
+        synchronized (lifecycleLock) {
+            terminateTorProcess(false);
+            closeControlConnection();
+            startLocked();
+        }
     }
 
+    /**
+     * Kills the Tor OP and waits for it to exit
+     */
     public void killTorProcess() throws Exception {
-        killTorProcess(-9);
+        synchronized (lifecycleLock) {
+            stopRequests++;
+            cancelRestart();
+            supervisor.stop();
+            terminateTorProcess(true);
+            closeControlConnection();
+        }
     }
 
-    private void killTorProcess(int signal) throws Exception {
+    private void terminateTorProcess(boolean forcibly) throws Exception {
+        TorProcess torProcess = this.torProcess;
+        if (torProcess != null && torProcess.isAlive()) {
+            // Tor runs in the foreground as our child, so we can end it directly and see it exit
+            if (!torProcess.terminate(forcibly, TERMINATE_GRACE_PERIOD, MILLISECONDS)) {
+                throw new Exception("Cannot kill: " + config.getTorExecutableFile().getAbsolutePath());
+            }
+            return;
+        }
+
+        // A Tor OP that has forked into the background or that we attached to isn't our child. Tor closes the
+        // control connection as it exits, so ask it to exit and wait for that.
+        TorControlConnection controlConnection = this.controlConnection;
+        if (controlConnection != null && controlConnection.isReaderThreadAlive()) {
+            try {
+                controlConnection.shutdownTor(forcibly ? "HALT" : "SHUTDOWN");
+                if (controlConnection.awaitReaderThreadExit(TERMINATE_GRACE_PERIOD, MILLISECONDS)) {
+                    return;
+                }
+            } catch (IOException e) {
+                LOG.debug("Could not signal Tor over the control connection", e);
+            }
+        }
+        killTorProcessWithSignals(forcibly ? -9 : -15);
+    }
+
+    private void killTorProcessWithSignals(int signal) throws Exception {
         //Based on logic from Orbot project
         String torFileName = config.getTorExecutableFile().getName();
         int procId;
         int killAttempts = 0;
-        while ((procId = getTorPid()) != -1) {
+        while ((procId = queryTorPid()) != -1) {
             String pidString = String.valueOf(procId);
             execIgnoreException(format("busybox killall %d %s", signal, torFileName));
             execIgnoreException(format("toolbox kill %d %s", signal, pidString));
             execIgnoreException(format("busybox kill %d %s", signal, pidString));
             execIgnoreException(format("kill %d %s", signal, pidString));
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
+            for (int i = 0; i < 10 && queryTorPid() != -1; i++) {
+                Thread.sleep(100);
             }
             killAttempts++;
             if (killAttempts > 4)
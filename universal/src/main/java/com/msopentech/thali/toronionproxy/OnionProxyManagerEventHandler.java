@@ -33,55 +33,43 @@ import net.freehaven.tor.control.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Iterator;
 import java.util.List;
 
 /**
- * Logs the data we get from notifications from the Tor OP. This is really just meant for debugging.
+ * Logs the data we get from notifications from the Tor OP. This is really just meant for debugging, so everything is
+ * logged at debug level and nothing is formatted unless debug logging is enabled for this class. Use
+ * {@link TorEventListener} to act on events.
  */
 public class OnionProxyManagerEventHandler implements EventHandler {
     private static final Logger LOG = LoggerFactory.getLogger(OnionProxyManagerEventHandler.class);
 
     public void circuitStatus(String status, String id, String path) {
-        LOG.info("circuitStatus: status:" + status + ", id: " + id + ", path: " + path);
+        LOG.debug("circuitStatus: status: {}, id: {}, path: {}", status, id, path);
     }
 
     public void streamStatus(String status, String id, String target) {
-        LOG.info("streamStatus: status: " + status + ", id: " + id + ", target: " + target);
+        LOG.debug("streamStatus: status: {}, id: {}, target: {}", status, id, target);
     }
 
     public void orConnStatus(String status, String orName) {
-        LOG.info("OR connection: status: " + status + ", orName: " + orName);
+        LOG.debug("OR connection: status: {}, orName: {}", status, orName);
     }
 
     public void bandwidthUsed(long read, long written) {
-        LOG.info("bandwidthUsed: read: " + read + ", written: " + written);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("bandwidthUsed: read: {}, written: {}", read, written);
+        }
     }
 
     public void newDescriptors(List<String> orList) {
-        Iterator<String> iterator = orList.iterator();
-        StringBuilder stringBuilder = new StringBuilder();
-        while(iterator.hasNext()) {
-            stringBuilder.append(iterator.next());
-        }
-        LOG.info("newDescriptors: " + stringBuilder.toString());
+        LOG.debug("newDescriptors: {}", orList);
     }
 
     public void message(String severity, String msg) {
-        LOG.info("message: severity: " + severity + ", msg: " + msg);
+        LOG.debug("message: severity: {}, msg: {}", severity, msg);
     }
 
     public void unrecognized(String type, String msg) {
-        LOG.info("unrecognized: type: " + type + ", msg: " + msg);
-    }
-
-    private String shortenPath(List<String> path) {
-        StringBuilder s = new StringBuilder();
-        for(String id : path) {
-            if(s.length() > 0) s.append(',');
-            s.append(id.substring(1, 7));
-        }
-        return s.toString();
+        LOG.debug("unrecognized: type: {}, msg: {}", type, msg);
     }
-
 }
@@ -0,0 +1,80 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+/**
+ * An ORCONN event, reporting a connection between the Tor OP and a relay. Instances are reused by
+ * {@link TorEventDispatcher} for every event, so listeners must copy anything they want to keep after the callback
+ * returns.
+ */
+public final class OrConnEvent {
+
+    public enum Status {NEW, LAUNCHED, CONNECTED, FAILED, CLOSED, UNKNOWN}
+
+    private Status status = Status.UNKNOWN;
+    private String rawStatus;
+    private String target;
+
+    /**
+     * Fills in this event from the values jtorctl passes to <code>EventHandler.orConnStatus</code>
+     */
+    void set(String status, String target) {
+        this.rawStatus = status;
+        this.status = parseStatus(status);
+        this.target = target;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * The status as Tor sent it, useful when it is {@link Status#UNKNOWN}
+     */
+    public String getRawStatus() {
+        return rawStatus;
+    }
+
+    /**
+     * The relay, either as "$FINGERPRINT~nickname" or as an address:port
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    private static Status parseStatus(String status) {
+        if (status == null) {
+            return Status.UNKNOWN;
+        }
+        switch (status) {
+            case "NEW":
+                return Status.NEW;
+            case "LAUNCHED":
+                return Status.LAUNCHED;
+            case "CONNECTED":
+                return Status.CONNECTED;
+            case "FAILED":
+                return Status.FAILED;
+            case "CLOSED":
+                return Status.CLOSED;
+            default:
+                return Status.UNKNOWN;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OrConnEvent{status=" + rawStatus + ", target=" + target + '}';
+    }
+}
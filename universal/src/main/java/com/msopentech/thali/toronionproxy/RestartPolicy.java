@@ -0,0 +1,74 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.toronionproxy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether and when a Tor OP that exited unexpectedly is restarted. The delay doubles with every attempt,
+ * from the initial delay up to the maximum. The attempts start counting again once the Tor OP has bootstrapped.
+ */
+public final class RestartPolicy {
+    /**
+     * Never restart
+     */
+    public static final RestartPolicy NEVER = new RestartPolicy(0, 0, 0, TimeUnit.MILLISECONDS);
+
+    /**
+     * Up to 10 attempts, starting after a second and backing off to a minute
+     */
+    public static final RestartPolicy DEFAULT = new RestartPolicy(10, 1, 60, TimeUnit.SECONDS);
+
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+
+    public RestartPolicy(int maxAttempts, long initialDelay, long maxDelay, TimeUnit unit) {
+        if (maxAttempts < 0) {
+            throw new IllegalArgumentException("maxAttempts is negative");
+        }
+        if (initialDelay < 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("delays must satisfy 0 <= initialDelay <= maxDelay");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMillis = unit.toMillis(initialDelay);
+        this.maxDelayMillis = unit.toMillis(maxDelay);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Returns how long to wait before restart attempt <code>attempt</code>, counting from 0, or -1 if there should be
+     * no such attempt
+     */
+    public long getDelayMillis(int attempt) {
+        if (attempt < 0 || attempt >= maxAttempts) {
+            return -1;
+        }
+        long delay = initialDelayMillis;
+        for (int i = 0; i < attempt && delay < maxDelayMillis; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, maxDelayMillis);
+    }
+
+    @Override
+    public String toString() {
+        return "RestartPolicy{maxAttempts=" + maxAttempts + ", initialDelayMillis=" + initialDelayMillis
+                + ", maxDelayMillis=" + maxDelayMillis + '}';
+    }
+}
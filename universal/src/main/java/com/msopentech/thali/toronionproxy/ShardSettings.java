@@ -0,0 +1,219 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.toronionproxy;
+
+import java.util.List;
+
+/**
+ * The settings for one shard of a {@link ShardedOnionProxyManager}. Everything comes from the shared settings except
+ * the listeners on fixed ports, which only one Tor OP could bind: the SOCKS port is chosen by Tor, the DNS, HTTP tunnel
+ * and transparent proxy ports are disabled and shards never run as relays.
+ */
+final class ShardSettings implements TorSettings {
+    private final TorSettings settings;
+
+    ShardSettings(TorSettings settings) {
+        if (settings == null) {
+            throw new IllegalArgumentException("settings is null");
+        }
+        this.settings = settings;
+    }
+
+    @Override
+    public boolean disableNetwork() {
+        return settings.disableNetwork();
+    }
+
+    @Override
+    public String dnsPort() {
+        // Fixed ports would collide between shards
+        return null;
+    }
+
+    @Override
+    public String getCustomTorrc() {
+        return settings.getCustomTorrc();
+    }
+
+    @Override
+    public String getEntryNodes() {
+        return settings.getEntryNodes();
+    }
+
+    @Override
+    public String getExcludeNodes() {
+        return settings.getExcludeNodes();
+    }
+
+    @Override
+    public String getExitNodes() {
+        return settings.getExitNodes();
+    }
+
+    @Override
+    public int getHttpTunnelPort() {
+        return 0;
+    }
+
+    @Override
+    public List<String> getListOfSupportedBridges() {
+        return settings.getListOfSupportedBridges();
+    }
+
+    @Override
+    public String getProxyHost() {
+        return settings.getProxyHost();
+    }
+
+    @Override
+    public String getProxyPassword() {
+        return settings.getProxyPassword();
+    }
+
+    @Override
+    public String getProxyPort() {
+        return settings.getProxyPort();
+    }
+
+    @Override
+    public String getProxySocks5Host() {
+        return settings.getProxySocks5Host();
+    }
+
+    @Override
+    public String getProxySocks5ServerPort() {
+        return settings.getProxySocks5ServerPort();
+    }
+
+    @Override
+    public String getProxyType() {
+        return settings.getProxyType();
+    }
+
+    @Override
+    public String getProxyUser() {
+        return settings.getProxyUser();
+    }
+
+    @Override
+    public String getReachableAddressPorts() {
+        return settings.getReachableAddressPorts();
+    }
+
+    @Override
+    public String getRelayNickname() {
+        return settings.getRelayNickname();
+    }
+
+    @Override
+    public int getRelayPort() {
+        return settings.getRelayPort();
+    }
+
+    @Override
+    public String getSocksPort() {
+        return "auto";
+    }
+
+    @Override
+    public String getVirtualAddressNetwork() {
+        return settings.getVirtualAddressNetwork();
+    }
+
+    @Override
+    public boolean hasBridges() {
+        return settings.hasBridges();
+    }
+
+    @Override
+    public boolean hasConnectionPadding() {
+        return settings.hasConnectionPadding();
+    }
+
+    @Override
+    public boolean hasCookieAuthentication() {
+        return settings.hasCookieAuthentication();
+    }
+
+    @Override
+    public boolean hasDebugLogs() {
+        return settings.hasDebugLogs();
+    }
+
+    @Override
+    public boolean hasDormantCanceledByStartup() {
+        return settings.hasDormantCanceledByStartup();
+    }
+
+    @Override
+    public boolean hasIsolationAddressFlagForTunnel() {
+        return settings.hasIsolationAddressFlagForTunnel();
+    }
+
+    @Override
+    public boolean hasOpenProxyOnAllInterfaces() {
+        return settings.hasOpenProxyOnAllInterfaces();
+    }
+
+    @Override
+    public boolean hasReachableAddress() {
+        return settings.hasReachableAddress();
+    }
+
+    @Override
+    public boolean hasReducedConnectionPadding() {
+        return settings.hasReducedConnectionPadding();
+    }
+
+    @Override
+    public boolean hasSafeSocks() {
+        return settings.hasSafeSocks();
+    }
+
+    @Override
+    public boolean hasStrictNodes() {
+        return settings.hasStrictNodes();
+    }
+
+    @Override
+    public boolean hasTestSocks() {
+        return settings.hasTestSocks();
+    }
+
+    @Override
+    public boolean isAutomapHostsOnResolve() {
+        return settings.isAutomapHostsOnResolve();
+    }
+
+    @Override
+    public boolean isRelay() {
+        return false;
+    }
+
+    @Override
+    public boolean runAsDaemon() {
+        return settings.runAsDaemon();
+    }
+
+    @Override
+    public String transPort() {
+        return null;
+    }
+
+    @Override
+    public boolean useSocks5() {
+        return settings.useSocks5();
+    }
+}
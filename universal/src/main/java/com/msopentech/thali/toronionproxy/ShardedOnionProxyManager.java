@@ -0,0 +1,353 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.toronionproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs several Tor OPs side by side and spreads outgoing connections over them. A Tor OP does most of its work on a
+ * single core, so a host with many cores gets more throughput from several of them than from one.
+ * <p>
+ * Each shard gets its OnionProxyManager from the {@link ShardFactory}, which must give it its own data directory.
+ * The settings handed to the factory are the shared settings with the SOCKS port set to auto and the DNS, HTTP
+ * tunnel and transparent proxy ports disabled, so the shards don't compete for ports. The control ports are auto
+ * already.
+ * <p>
+ * To make a connection, {@link #acquire(String)} a shard for the destination, connect through its SOCKS port and
+ * close the lease once the connection is closed:
+ * <pre>
+ *   ShardedOnionProxyManager.Lease lease = sharded.acquire(host);
+ *   try {
+ *       Socket socket = Utilities.socks4aSocketConnection(host, port, "127.0.0.1", lease.getSocksPort());
+ *       ...
+ *   } finally {
+ *       lease.close();
+ *   }
+ * </pre>
+ * Shards that fail to start or bootstrap are retried in the background according to a {@link RestartPolicy},
+ * {@link RestartPolicy#DEFAULT} unless {@link #setRetryPolicy(RestartPolicy) set}, and are left out of the balancing
+ * until they are running. {@link #getFailedShards()} lists the ones still waiting.
+ * <p>
+ * On Android this requires API level 24 or higher, as it uses {@link OnionProxyManager#installAndStart(int)}.
+ */
+public final class ShardedOnionProxyManager implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ShardedOnionProxyManager.class);
+    private static final int POINTS_PER_SHARD = 160;
+
+    public enum Balancing {
+        /**
+         * Each connection goes to the shard with the fewest open leases
+         */
+        LEAST_CONNECTIONS,
+        /**
+         * Connections to the same destination host go to the same shard, so they can share its circuits. A
+         * destination only moves when its shard isn't running.
+         */
+        CONSISTENT_HASH
+    }
+
+    /**
+     * Creates the OnionProxyManager for a shard, using <code>settings</code> for its TorSettings
+     */
+    public interface ShardFactory {
+        OnionProxyManager create(int shard, TorSettings settings) throws IOException;
+    }
+
+    /**
+     * A connection slot on a shard. Closing it more than once has no effect.
+     */
+    public static final class Lease implements Closeable {
+        private final int shard;
+        private final OnionProxyManager manager;
+        private final int socksPort;
+        private final AtomicInteger connections;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Lease(int shard, OnionProxyManager manager, int socksPort, AtomicInteger connections) {
+            this.shard = shard;
+            this.manager = manager;
+            this.socksPort = socksPort;
+            this.connections = connections;
+        }
+
+        public int getShard() {
+            return shard;
+        }
+
+        public OnionProxyManager getManager() {
+            return manager;
+        }
+
+        /**
+         * Returns the SOCKS port of the shard on the IPv4 localhost address
+         */
+        public int getSocksPort() {
+            return socksPort;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                connections.decrementAndGet();
+            }
+        }
+    }
+
+    private final List<OnionProxyManager> managers;
+    private final AtomicInteger[] connections;
+    private final Balancing balancing;
+    private final HashRing ring;
+    private final AtomicInteger nextShard = new AtomicInteger();
+    private final ScheduledThreadPoolExecutor retryScheduler;
+
+    // Guarded by this
+    private final SortedSet<Integer> failedShards = new TreeSet<>();
+    private RestartPolicy retryPolicy = RestartPolicy.DEFAULT;
+    private boolean closed;
+
+    public ShardedOnionProxyManager(ShardFactory factory, TorSettings settings, int shardCount, Balancing balancing)
+            throws IOException {
+        if (factory == null) {
+            throw new IllegalArgumentException("factory is null");
+        }
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be positive");
+        }
+        if (balancing == null) {
+            throw new IllegalArgumentException("balancing is null");
+        }
+        TorSettings shardSettings = new ShardSettings(settings == null ? new DefaultSettings() : settings);
+        List<OnionProxyManager> created = new ArrayList<>(shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            created.add(factory.create(shard, shardSettings));
+        }
+        this.managers = Collections.unmodifiableList(created);
+        this.connections = new AtomicInteger[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            connections[shard] = new AtomicInteger();
+        }
+        this.balancing = balancing;
+        this.ring = new HashRing(shardCount, POINTS_PER_SHARD);
+        this.retryScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ShardedOnionProxyManager");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Retries are rare, so the thread only lives while one is pending
+        retryScheduler.setKeepAliveTime(30, TimeUnit.SECONDS);
+        retryScheduler.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets how shards that fail to start or bootstrap are retried. Use {@link RestartPolicy#NEVER} to leave them
+     * stopped and restart them yourself.
+     */
+    public synchronized void setRetryPolicy(RestartPolicy retryPolicy) {
+        if (retryPolicy == null) {
+            throw new IllegalArgumentException("retryPolicy is null");
+        }
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Returns the shards that failed to start or bootstrap and haven't bootstrapped on a retry yet, in ascending order
+     */
+    public synchronized List<Integer> getFailedShards() {
+        return new ArrayList<>(failedShards);
+    }
+
+    /**
+     * Installs and starts all shards at once and waits for them to bootstrap. Shards that fail are logged, left out
+     * of the balancing and retried in the background.
+     *
+     * @return the number of shards that bootstrapped
+     * @throws IOException if none did
+     */
+    public int start(int bootstrapTimeoutSeconds) throws IOException, InterruptedException {
+        List<CompletableFuture<StartupPipeline.Result>> startups = new ArrayList<>(managers.size());
+        for (OnionProxyManager manager : managers) {
+            startups.add(manager.installAndStart(bootstrapTimeoutSeconds));
+        }
+        int bootstrapped = 0;
+        for (int shard = 0; shard < startups.size(); shard++) {
+            try {
+                if (startups.get(shard).get().isBootstrapped()) {
+                    bootstrapped++;
+                    continue;
+                }
+                LOG.warn("Shard {} didn't bootstrap within {}s", shard, bootstrapTimeoutSeconds);
+            } catch (ExecutionException e) {
+                LOG.warn("Shard " + shard + " failed to start", e.getCause());
+            }
+            scheduleRetry(shard, 0, bootstrapTimeoutSeconds);
+        }
+        if (bootstrapped == 0) {
+            throw new IOException("No shard bootstrapped within " + bootstrapTimeoutSeconds + "s");
+        }
+        return bootstrapped;
+    }
+
+    private synchronized void scheduleRetry(final int shard, final int attempt, final int bootstrapTimeoutSeconds) {
+        if (closed) {
+            return;
+        }
+        failedShards.add(shard);
+        long delay = retryPolicy.getDelayMillis(attempt);
+        if (delay < 0) {
+            LOG.warn("Giving up on shard {} after {} retries", shard, attempt);
+            return;
+        }
+        retryScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                retry(shard, attempt, bootstrapTimeoutSeconds);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void retry(final int shard, final int attempt, final int bootstrapTimeoutSeconds) {
+        OnionProxyManager manager = managers.get(shard);
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+        }
+        LOG.info("Retrying shard {}, attempt {}", shard, attempt + 1);
+        try {
+            // A Tor OP that didn't bootstrap in time may still be running
+            manager.stop();
+        } catch (IOException e) {
+            LOG.warn("Couldn't stop shard " + shard, e);
+        }
+        manager.installAndStart(bootstrapTimeoutSeconds).whenComplete(
+                new BiConsumer<StartupPipeline.Result, Throwable>() {
+                    @Override
+                    public void accept(StartupPipeline.Result result, Throwable failure) {
+                        if (failure == null && result.isBootstrapped()) {
+                            LOG.info("Shard {} is running", shard);
+                            synchronized (ShardedOnionProxyManager.this) {
+                                failedShards.remove(shard);
+                            }
+                            return;
+                        }
+                        if (failure != null) {
+                            LOG.warn("Shard " + shard + " failed to start",
+                                    failure instanceof CompletionException ? failure.getCause() : failure);
+                        } else {
+                            LOG.warn("Shard {} didn't bootstrap within {}s", shard, bootstrapTimeoutSeconds);
+                        }
+                        scheduleRetry(shard, attempt + 1, bootstrapTimeoutSeconds);
+                    }
+                });
+    }
+
+    public List<OnionProxyManager> getManagers() {
+        return managers;
+    }
+
+    /**
+     * Returns the number of open leases on <code>shard</code>
+     */
+    public int getConnectionCount(int shard) {
+        return connections[shard].get();
+    }
+
+    /**
+     * Picks a running shard for a connection to <code>destinationHost</code>
+     *
+     * @throws IOException if no shard is running
+     */
+    public Lease acquire(String destinationHost) throws IOException {
+        int[] ports = new int[managers.size()];
+        boolean[] available = new boolean[managers.size()];
+        boolean any = false;
+        for (int shard = 0; shard < ports.length; shard++) {
+            TorState state = managers.get(shard).getTorState();
+            ports[shard] = state.isRunning() ? state.getIPv4LocalHostSocksPort() : -1;
+            available[shard] = ports[shard] != -1;
+            any |= available[shard];
+        }
+        if (!any) {
+            throw new IOException("No Tor OP shard is running");
+        }
+        int shard = balancing == Balancing.CONSISTENT_HASH && destinationHost != null
+                ? ring.shardFor(destinationHost, available)
+                : leastConnections(available);
+        connections[shard].incrementAndGet();
+        return new Lease(shard, managers.get(shard), ports[shard], connections[shard]);
+    }
+
+    /**
+     * Returns the available shard with the fewest leases. Ties are broken round robin, so that an idle set of shards
+     * doesn't send everything to the first one.
+     */
+    private int leastConnections(boolean[] available) {
+        int start = (nextShard.getAndIncrement() & Integer.MAX_VALUE) % available.length;
+        int best = -1;
+        int bestCount = Integer.MAX_VALUE;
+        for (int i = 0; i < available.length; i++) {
+            int shard = (start + i) % available.length;
+            int count = connections[shard].get();
+            if (available[shard] && count < bestCount) {
+                best = shard;
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Stops and closes every shard
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+        }
+        retryScheduler.shutdownNow();
+        IOException failure = null;
+        for (OnionProxyManager manager : managers) {
+            try {
+                manager.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded ring buffer of preallocated slots that a consumer thread of its own drains in order. Producers claim a
+ * slot with {@link #acquire()}, fill it in and hand it over with {@link #publish()}. When the buffer is full they
+ * either wait for room or discard the oldest waiting slot, so a slow consumer never makes them allocate and, unless
+ * they ask for it, never makes them wait.
+ * <p>
+ * Used by {@link AsyncEventHandler} for control events and by {@link TorLogDispatcher} for Tor's output.
+ */
+final class SlotQueue<S> implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(SlotQueue.class);
+
+    /**
+     * Creates, copies and delivers the slots of a SlotQueue
+     */
+    abstract static class Slots<S> {
+        abstract S create();
+
+        /**
+         * Copies a waiting slot into the one the consumer delivers from, so the waiting slot can be reused at once
+         */
+        abstract void copy(S from, S to);
+
+        /**
+         * Drops whatever the slot refers to, so the buffer doesn't keep it alive
+         */
+        abstract void clear(S slot);
+
+        /**
+         * Called on the consumer thread, without the lock, for every slot in the order they were published
+         */
+        abstract void deliver(S slot);
+
+        /**
+         * Called with the lock held when a waiting slot leaves the buffer, taken by the consumer or discarded
+         */
+        void removed(S slot) {
+        }
+    }
+
+    private final String name;
+    private final String consumerName;
+    private final String itemName;
+    private final Slots<S> handler;
+    private final Object[] slots;
+    private final boolean block;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    // Only touched by the consumer thread
+    private final S current;
+
+    // Guarded by lock
+    private int head;
+    private int size;
+    private long dropped;
+    private boolean closed;
+    private Thread consumer;
+
+    /**
+     * @param name         the name of the consumer thread
+     * @param consumerName what the consumer is called in warnings, for example "Event handler"
+     * @param itemName     what the slots hold, in the plural, for example "events"
+     * @param block        true to make producers wait for room when the buffer is full, false to discard the oldest
+     *                     waiting slot
+     */
+    SlotQueue(String name, String consumerName, String itemName, Slots<S> handler, int capacity, boolean block) {
+        if (handler == null) {
+            throw new IllegalArgumentException("handler is null");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.name = name;
+        this.consumerName = consumerName;
+        this.itemName = itemName;
+        this.handler = handler;
+        this.block = block;
+        this.slots = new Object[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = handler.create();
+        }
+        this.current = handler.create();
+    }
+
+    /**
+     * Takes the lock and claims the next free slot, cleared, making room first if there is none. On success the lock
+     * is still held and must be released with {@link #publish()}. Returns null, without the lock, if the queue has
+     * been closed or the thread was interrupted while waiting for room.
+     */
+    S acquire() {
+        lock.lock();
+        if (closed) {
+            lock.unlock();
+            return null;
+        }
+        startConsumer();
+        while (size == slots.length) {
+            if (block) {
+                try {
+                    notFull.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    lock.unlock();
+                    return null;
+                }
+                if (closed) {
+                    lock.unlock();
+                    return null;
+                }
+            } else {
+                dropOldest();
+            }
+        }
+        S slot = slot((head + size) % slots.length);
+        handler.clear(slot);
+        size++;
+        return slot;
+    }
+
+    /**
+     * Hands the slot claimed by {@link #acquire()} to the consumer and releases the lock
+     */
+    void publish() {
+        notEmpty.signal();
+        lock.unlock();
+    }
+
+    /**
+     * Takes the lock, for producers that sometimes update a waiting slot instead of claiming a new one
+     */
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * True if every slot is waiting for the consumer. Must be called with the lock held.
+     */
+    boolean isFull() {
+        return size == slots.length;
+    }
+
+    /**
+     * Returns how many slots have been discarded because the buffer was full
+     */
+    long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the consumer thread. Slots that haven't been delivered yet are discarded.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private S slot(int index) {
+        return (S) slots[index];
+    }
+
+    private void dropOldest() {
+        S oldest = slot(head);
+        handler.removed(oldest);
+        handler.clear(oldest);
+        head = (head + 1) % slots.length;
+        size--;
+        dropped++;
+        if (dropped == 1 || dropped % 1000 == 0) {
+            LOG.warn("{} is falling behind, {} {} dropped so far", consumerName, dropped, itemName);
+        }
+    }
+
+    private void startConsumer() {
+        if (consumer != null) {
+            return;
+        }
+        consumer = new Thread(name) {
+            @Override
+            public void run() {
+                deliverSlots();
+            }
+        };
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    private void deliverSlots() {
+        while (true) {
+            lock.lock();
+            try {
+                while (size == 0 && !closed) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (closed) {
+                    return;
+                }
+                S slot = slot(head);
+                handler.copy(slot, current);
+                handler.removed(slot);
+                handler.clear(slot);
+                head = (head + 1) % slots.length;
+                size--;
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                handler.deliver(current);
+            } catch (RuntimeException e) {
+                LOG.warn(consumerName + " failed", e);
+            }
+            handler.clear(current);
+        }
+    }
+}
@@ -0,0 +1,505 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Opens connections through Tor's SOCKS5 port without blocking a thread per connection. All handshakes of a client
+ * run on one selector thread. Each {@link #connect} returns a future of the connected channel.
+ * <p>
+ * Destinations are always sent as domain names, so Tor resolves them and .onion addresses work. A username and
+ * password, which Tor uses for stream isolation by default (IsolateSOCKSAuth), can be given per connection. A refused
+ * request fails the future with a {@link Socks5Exception} that carries the reply code. This includes Tor's extended
+ * onion service codes when the SocksPort has the <code>ExtendedErrors</code> flag.
+ * <p>
+ * Futures are completed on the selector thread, so dependent stages that block should use the async variants. The
+ * channel is handed over in non-blocking mode and no longer registered with our selector, so it can be switched to
+ * blocking mode or registered with another selector. Cancelling a future closes the connection to the proxy if the
+ * handshake is still running, which makes Tor give up on the stream. On Android the futures require API level 24 or
+ * higher.
+ * <p>
+ * A client can also reach Tor over the unix domain socket of a socks listener configured with
+ * {@link TorConfig.Builder#socksSocketFile(File)}, which keeps local traffic off the loopback TCP stack.
+ */
+public final class Socks5Client implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(Socks5Client.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 60000;
+
+    private static final byte VERSION = 0x05;
+    private static final byte NO_AUTH = 0x00;
+    private static final byte USERNAME_PASSWORD = 0x02;
+    private static final byte AUTH_VERSION = 0x01;
+    private static final byte CONNECT = 0x01;
+    private static final byte IPV4 = 0x01;
+    private static final byte DOMAIN = 0x03;
+    private static final byte IPV6 = 0x04;
+    private static final int MAX_FIELD_LENGTH = 255;
+
+    private enum State {CONNECTING, GREETING, AUTH, REPLY}
+
+    private static final class Handshake {
+        final String host;
+        final int port;
+        final byte[] username;
+        final byte[] password;
+        final long deadlineNanos;
+        final CompletableFuture<SocketChannel> future = new CompletableFuture<>();
+        // Fits the largest message either way, an authentication request with 255 byte username and password
+        final ByteBuffer buffer = ByteBuffer.allocate(3 + 2 * MAX_FIELD_LENGTH);
+        SocketChannel channel;
+        SelectionKey key;
+        State state = State.CONNECTING;
+        boolean writing;
+
+        Handshake(String host, int port, byte[] username, byte[] password, long deadlineNanos) {
+            this.host = host;
+            this.port = port;
+            this.username = username;
+            this.password = password;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    // Either the TCP address of the proxy or the context and file of its unix domain socket
+    private final InetSocketAddress proxy;
+    private final OnionProxyContext context;
+    private final File socksSocket;
+    private final long timeoutNanos;
+    private final Selector selector;
+    private final Queue<Handshake> submitted = new ConcurrentLinkedQueue<>();
+    // Only touched by the selector thread
+    private final Set<Handshake> inFlight = new HashSet<>();
+    private final List<Handshake> succeeded = new ArrayList<>();
+    private volatile boolean closed;
+
+    public Socks5Client(InetSocketAddress proxy) throws IOException {
+        this(proxy, DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param proxy   Tor's SOCKS port
+     * @param timeout how long a connection may take, from connecting to the proxy until Tor has connected to the
+     *                destination
+     */
+    public Socks5Client(InetSocketAddress proxy, long timeout, TimeUnit unit) throws IOException {
+        this(checkNotNull(proxy, "proxy"), null, null, timeout, unit);
+    }
+
+    public Socks5Client(OnionProxyContext context, File socksSocket) throws IOException {
+        this(context, socksSocket, DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param context     opens the connections to the socket, see {@link OnionProxyContext#openUnixDomainSocket(File)}
+     * @param socksSocket the unix domain socket of Tor's socks listener, see {@link TorState#getSocksSocketFile()}
+     * @param timeout     how long a connection may take, from connecting to the proxy until Tor has connected to the
+     *                    destination
+     * @throws UnsupportedOperationException if the context has no unix domain socket support
+     */
+    public Socks5Client(OnionProxyContext context, File socksSocket, long timeout, TimeUnit unit) throws IOException {
+        this(null, checkSupportsUnixDomainSockets(context), checkNotNull(socksSocket, "socksSocket"), timeout, unit);
+    }
+
+    private Socks5Client(InetSocketAddress proxy, OnionProxyContext context, File socksSocket, long timeout,
+                         TimeUnit unit) throws IOException {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        this.proxy = proxy;
+        this.context = context;
+        this.socksSocket = socksSocket;
+        this.timeoutNanos = unit.toNanos(timeout);
+        this.selector = Selector.open();
+        Thread loop = new Thread("Socks5Client") {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        };
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    /**
+     * Connects to <code>host:port</code> through the proxy
+     */
+    public CompletableFuture<SocketChannel> connect(String host, int port) {
+        return connect(host, port, null, null);
+    }
+
+    /**
+     * Connects to <code>host:port</code> through the proxy, authenticating with <code>username</code> and
+     * <code>password</code>. Tor doesn't check them, but by default only puts streams with the same credentials on the
+     * same circuit.
+     */
+    public CompletableFuture<SocketChannel> connect(String host, int port, String username, String password) {
+        if (host == null) {
+            throw new IllegalArgumentException("host is null");
+        }
+        if (port < 0 || port > 0xFFFF) {
+            throw new IllegalArgumentException("port is out of range");
+        }
+        if ((username == null) != (password == null)) {
+            throw new IllegalArgumentException("username and password must be given together");
+        }
+        byte[] hostBytes = host.getBytes(UTF_8);
+        if (hostBytes.length == 0 || hostBytes.length > MAX_FIELD_LENGTH) {
+            throw new IllegalArgumentException("host must be 1 to 255 bytes");
+        }
+        byte[] usernameBytes = username == null ? null : username.getBytes(UTF_8);
+        byte[] passwordBytes = password == null ? null : password.getBytes(UTF_8);
+        if (usernameBytes != null && (usernameBytes.length == 0 || usernameBytes.length > MAX_FIELD_LENGTH
+                || passwordBytes.length > MAX_FIELD_LENGTH)) {
+            throw new IllegalArgumentException("username must be 1 to 255 bytes and password at most 255 bytes");
+        }
+
+        Handshake handshake = new Handshake(host, port, usernameBytes, passwordBytes,
+                System.nanoTime() + timeoutNanos);
+        submitted.add(handshake);
+        if (closed && submitted.remove(handshake)) {
+            handshake.future.completeExceptionally(new IOException("Socks5Client is closed"));
+        }
+        handshake.future.whenComplete(new BiConsumer<SocketChannel, Throwable>() {
+            @Override
+            public void accept(SocketChannel channel, Throwable failure) {
+                if (failure instanceof CancellationException) {
+                    // Let the selector thread drop the handshake now rather than when it times out
+                    selector.wakeup();
+                }
+            }
+        });
+        selector.wakeup();
+        return handshake.future;
+    }
+
+    /**
+     * Stops the selector thread. Connections still in their handshake fail, connections already handed out are left
+     * alone.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void runLoop() {
+        try {
+            while (!closed) {
+                startSubmitted();
+                long nextDeadline = expire();
+                if (inFlight.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextDeadline - System.nanoTime())));
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Handshake handshake = (Handshake) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        advance(handshake);
+                    } catch (IOException e) {
+                        fail(handshake, e);
+                    }
+                }
+                handOver();
+            }
+        } catch (IOException e) {
+            LOG.warn("SOCKS5 selector failed", e);
+        } finally {
+            closed = true;
+            IOException closedException = new IOException("Socks5Client is closed");
+            for (Handshake handshake : new ArrayList<>(inFlight)) {
+                fail(handshake, closedException);
+            }
+            Handshake handshake;
+            while ((handshake = submitted.poll()) != null) {
+                handshake.future.completeExceptionally(closedException);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOG.debug("Could not close selector", e);
+            }
+        }
+    }
+
+    private void startSubmitted() {
+        Handshake handshake;
+        while ((handshake = submitted.poll()) != null) {
+            if (handshake.future.isDone()) {
+                // Cancelled before we got to it
+                continue;
+            }
+            try {
+                // Connecting to a local socket doesn't wait on the network, so that is done on this thread
+                SocketChannel channel = socksSocket != null ? context.openUnixDomainSocket(socksSocket)
+                        : SocketChannel.open();
+                handshake.channel = channel;
+                inFlight.add(handshake);
+                channel.configureBlocking(false);
+                boolean connected = true;
+                if (socksSocket == null) {
+                    channel.socket().setTcpNoDelay(true);
+                    connected = channel.connect(proxy);
+                }
+                if (connected) {
+                    handshake.key = channel.register(selector, 0, handshake);
+                    sendGreeting(handshake);
+                } else {
+                    handshake.key = channel.register(selector, SelectionKey.OP_CONNECT, handshake);
+                }
+            } catch (IOException e) {
+                fail(handshake, e);
+            }
+        }
+    }
+
+    /**
+     * Drops cancelled handshakes, fails the ones that have run out of time and returns the earliest deadline of the rest
+     */
+    private long expire() {
+        long now = System.nanoTime();
+        long next = now + timeoutNanos;
+        for (Iterator<Handshake> iterator = inFlight.iterator(); iterator.hasNext(); ) {
+            Handshake handshake = iterator.next();
+            if (handshake.future.isCancelled()) {
+                iterator.remove();
+                closeQuietly(handshake.channel);
+            } else if (handshake.deadlineNanos - now <= 0) {
+                iterator.remove();
+                fail(handshake, new SocketTimeoutException("SOCKS5 connect to " + handshake.host + ":"
+                        + handshake.port + " timed out"));
+            } else if (handshake.deadlineNanos - next < 0) {
+                next = handshake.deadlineNanos;
+            }
+        }
+        return next;
+    }
+
+    private void advance(Handshake handshake) throws IOException {
+        if (handshake.state == State.CONNECTING) {
+            if (handshake.channel.finishConnect()) {
+                sendGreeting(handshake);
+            }
+        } else if (handshake.writing) {
+            flush(handshake);
+        } else {
+            read(handshake);
+        }
+    }
+
+    private void sendGreeting(Handshake handshake) throws IOException {
+        ByteBuffer buffer = handshake.buffer;
+        buffer.clear();
+        buffer.put(VERSION).put((byte) 1).put(handshake.username != null ? USERNAME_PASSWORD : NO_AUTH);
+        send(handshake, State.GREETING);
+    }
+
+    private void sendAuthentication(Handshake handshake) throws IOException {
+        ByteBuffer buffer = handshake.buffer;
+        buffer.clear();
+        buffer.put(AUTH_VERSION)
+                .put((byte) handshake.username.length).put(handshake.username)
+                .put((byte) handshake.password.length).put(handshake.password);
+        send(handshake, State.AUTH);
+    }
+
+    private void sendRequest(Handshake handshake) throws IOException {
+        byte[] host = handshake.host.getBytes(UTF_8);
+        ByteBuffer buffer = handshake.buffer;
+        buffer.clear();
+        buffer.put(VERSION).put(CONNECT).put((byte) 0).put(DOMAIN)
+                .put((byte) host.length).put(host)
+                .putShort((short) handshake.port);
+        send(handshake, State.REPLY);
+    }
+
+    /**
+     * Sends what is in the buffer and then waits for the reply of <code>state</code>
+     */
+    private void send(Handshake handshake, State state) throws IOException {
+        handshake.state = state;
+        handshake.writing = true;
+        handshake.buffer.flip();
+        flush(handshake);
+    }
+
+    private void flush(Handshake handshake) throws IOException {
+        handshake.channel.write(handshake.buffer);
+        if (handshake.buffer.hasRemaining()) {
+            handshake.key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        handshake.writing = false;
+        handshake.buffer.clear();
+        // Every reply starts with a fixed part: 2 bytes, or for the connect reply 5 bytes up to the address length
+        handshake.buffer.limit(handshake.state == State.REPLY ? 5 : 2);
+        handshake.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void read(Handshake handshake) throws IOException {
+        ByteBuffer buffer = handshake.buffer;
+        if (handshake.channel.read(buffer) < 0) {
+            throw new EOFException("SOCKS5 proxy closed the connection");
+        }
+        if (buffer.hasRemaining()) {
+            return;
+        }
+        switch (handshake.state) {
+            case GREETING:
+                checkVersion(buffer.get(0));
+                byte method = buffer.get(1);
+                if (method == USERNAME_PASSWORD && handshake.username != null) {
+                    sendAuthentication(handshake);
+                } else if (method == NO_AUTH) {
+                    sendRequest(handshake);
+                } else {
+                    throw new IOException("SOCKS5 proxy accepts none of our authentication methods");
+                }
+                break;
+            case AUTH:
+                if (buffer.get(1) != 0) {
+                    throw new IOException("SOCKS5 proxy rejected the username and password");
+                }
+                sendRequest(handshake);
+                break;
+            case REPLY:
+                if (buffer.limit() == 5) {
+                    checkVersion(buffer.get(0));
+                    int reply = buffer.get(1) & 0xFF;
+                    if (reply != 0) {
+                        throw new Socks5Exception(reply, handshake.host, handshake.port);
+                    }
+                    buffer.limit(replyLength(buffer.get(3), buffer.get(4)));
+                    if (buffer.hasRemaining()) {
+                        read(handshake);
+                        return;
+                    }
+                }
+                succeed(handshake);
+                break;
+            default:
+                throw new IllegalStateException("Unexpected state " + handshake.state);
+        }
+    }
+
+    /**
+     * Returns the length of a connect reply, which ends with the address Tor bound to
+     */
+    static int replyLength(byte addressType, byte firstAddressByte) throws IOException {
+        switch (addressType) {
+            case IPV4:
+                return 4 + 4 + 2;
+            case IPV6:
+                return 4 + 16 + 2;
+            case DOMAIN:
+                return 4 + 1 + (firstAddressByte & 0xFF) + 2;
+            default:
+                throw new IOException("SOCKS5 reply has unknown address type " + addressType);
+        }
+    }
+
+    private static void checkVersion(byte version) throws IOException {
+        if (version != VERSION) {
+            throw new IOException("Not a SOCKS5 reply, version " + version);
+        }
+    }
+
+    private void succeed(Handshake handshake) {
+        inFlight.remove(handshake);
+        handshake.key.cancel();
+        succeeded.add(handshake);
+    }
+
+    /**
+     * Completes the futures of the channels whose handshake is done. The selector only lets go of a cancelled key on
+     * its next selection, so we do one first and the channels can be switched to blocking mode straight away.
+     */
+    private void handOver() throws IOException {
+        if (succeeded.isEmpty()) {
+            return;
+        }
+        selector.selectNow();
+        for (Handshake handshake : succeeded) {
+            if (!handshake.future.complete(handshake.channel)) {
+                // Cancelled in the meantime
+                closeQuietly(handshake.channel);
+            }
+        }
+        succeeded.clear();
+    }
+
+    private void fail(Handshake handshake, IOException e) {
+        inFlight.remove(handshake);
+        closeQuietly(handshake.channel);
+        handshake.future.completeExceptionally(e);
+    }
+
+    private static <T> T checkNotNull(T value, String name) {
+        if (value == null) {
+            throw new IllegalArgumentException(name + " is null");
+        }
+        return value;
+    }
+
+    private static OnionProxyContext checkSupportsUnixDomainSockets(OnionProxyContext context) {
+        if (!checkNotNull(context, "context").supportsUnixDomainSockets()) {
+            throw new UnsupportedOperationException("Unix domain sockets are not supported");
+        }
+        return context;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.debug("Could not close channel", e);
+        }
+    }
+}
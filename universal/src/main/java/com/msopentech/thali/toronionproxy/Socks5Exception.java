@@ -0,0 +1,98 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import java.io.IOException;
+
+/**
+ * The SOCKS5 proxy refused a connect request. The reply code is one of RFC 1928's, or one of the extended codes Tor
+ * sends for onion services when the SocksPort has the <code>ExtendedErrors</code> flag (Tor 0.4.3 and later).
+ */
+public class Socks5Exception extends IOException {
+    public static final int GENERAL_FAILURE = 0x01;
+    public static final int NOT_ALLOWED = 0x02;
+    public static final int NETWORK_UNREACHABLE = 0x03;
+    public static final int HOST_UNREACHABLE = 0x04;
+    public static final int CONNECTION_REFUSED = 0x05;
+    public static final int TTL_EXPIRED = 0x06;
+    public static final int COMMAND_NOT_SUPPORTED = 0x07;
+    public static final int ADDRESS_TYPE_NOT_SUPPORTED = 0x08;
+    public static final int ONION_DESCRIPTOR_NOT_FOUND = 0xF0;
+    public static final int ONION_DESCRIPTOR_INVALID = 0xF1;
+    public static final int ONION_INTRO_FAILED = 0xF2;
+    public static final int ONION_REND_FAILED = 0xF3;
+    public static final int ONION_MISSING_CLIENT_AUTH = 0xF4;
+    public static final int ONION_WRONG_CLIENT_AUTH = 0xF5;
+    public static final int ONION_BAD_ADDRESS = 0xF6;
+    public static final int ONION_INTRO_TIMEOUT = 0xF7;
+
+    private static final long serialVersionUID = 1L;
+
+    private final int replyCode;
+
+    public Socks5Exception(int replyCode, String host, int port) {
+        super("SOCKS5 connect to " + host + ":" + port + " failed: " + describe(replyCode));
+        this.replyCode = replyCode;
+    }
+
+    public int getReplyCode() {
+        return replyCode;
+    }
+
+    /**
+     * True for the extended codes, which all concern onion services
+     */
+    public boolean isOnionServiceError() {
+        return replyCode >= ONION_DESCRIPTOR_NOT_FOUND && replyCode <= ONION_INTRO_TIMEOUT;
+    }
+
+    static String describe(int replyCode) {
+        switch (replyCode) {
+            case GENERAL_FAILURE:
+                return "general failure";
+            case NOT_ALLOWED:
+                return "not allowed by ruleset";
+            case NETWORK_UNREACHABLE:
+                return "network unreachable";
+            case HOST_UNREACHABLE:
+                return "host unreachable";
+            case CONNECTION_REFUSED:
+                return "connection refused";
+            case TTL_EXPIRED:
+                return "TTL expired";
+            case COMMAND_NOT_SUPPORTED:
+                return "command not supported";
+            case ADDRESS_TYPE_NOT_SUPPORTED:
+                return "address type not supported";
+            case ONION_DESCRIPTOR_NOT_FOUND:
+                return "onion service descriptor not found";
+            case ONION_DESCRIPTOR_INVALID:
+                return "onion service descriptor invalid";
+            case ONION_INTRO_FAILED:
+                return "onion service introduction failed";
+            case ONION_REND_FAILED:
+                return "onion service rendezvous failed";
+            case ONION_MISSING_CLIENT_AUTH:
+                return "onion service requires client authorization";
+            case ONION_WRONG_CLIENT_AUTH:
+                return "onion service client authorization rejected";
+            case ONION_BAD_ADDRESS:
+                return "invalid onion address";
+            case ONION_INTRO_TIMEOUT:
+                return "onion service introduction timed out";
+            default:
+                return "unknown reply 0x" + Integer.toHexString(replyCode);
+        }
+    }
+}
@@ -0,0 +1,523 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps connections made through Tor's SOCKS port open after use, so that repeated requests to the same onion
+ * service skip the SOCKS handshake and, more importantly, the rendezvous with the service.
+ * <p>
+ * Connections are pooled per route: destination host, port and isolation key. Connections with different isolation
+ * keys are never shared, and are opened with the key as SOCKS username so that Tor also keeps them on separate
+ * circuits. At most {@link #setMaxPerRoute(int) maxPerRoute} connections of a route exist at a time, leased or idle.
+ * Once that many are leased, {@link #acquire} waits for one to be returned.
+ * <p>
+ * A returned connection is handed out again, most recently used first, as long as it has been idle for less than
+ * the {@link #setIdleTimeout idle timeout} and still looks healthy. That means it is open, and no unread data or
+ * end of stream is waiting on it. Only return connections whose request and response have been read in full.
+ * Connections that fail while in use must be {@link Lease#invalidate() invalidated}.
+ */
+public final class SocksConnectionPool implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(SocksConnectionPool.class);
+    private static final String METRIC_PREFIX = "socks.pool.";
+    private static final long EVICTION_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * Opens a connection through Tor. The default connects through the SOCKS port of an OnionProxyManager.
+     */
+    public interface Connector {
+        /**
+         * @param isolationKey null if the connection needn't be isolated
+         */
+        Socket connect(String host, int port, String isolationKey) throws IOException;
+    }
+
+    private static final class Route {
+        final String host;
+        final int port;
+        final String isolationKey;
+
+        Route(String host, int port, String isolationKey) {
+            this.host = host;
+            this.port = port;
+            this.isolationKey = isolationKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Route)) {
+                return false;
+            }
+            Route other = (Route) o;
+            return port == other.port && host.equals(other.host)
+                    && (isolationKey == null ? other.isolationKey == null : isolationKey.equals(other.isolationKey));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * host.hashCode() + port) + (isolationKey == null ? 0 : isolationKey.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port + (isolationKey == null ? "" : " [" + isolationKey + "]");
+        }
+    }
+
+    private static final class Idle {
+        final Socket socket;
+        final long idleSinceNanos;
+
+        Idle(Socket socket, long idleSinceNanos) {
+            this.socket = socket;
+            this.idleSinceNanos = idleSinceNanos;
+        }
+    }
+
+    private static final class RouteState {
+        final Deque<Idle> idle = new ArrayDeque<>();
+        // Leased plus being opened
+        int active;
+    }
+
+    /**
+     * A pooled connection. Closing the lease returns the connection to the pool, it must not be used afterwards.
+     */
+    public final class Lease implements Closeable {
+        private final Route route;
+        private final Socket socket;
+        private final boolean reused;
+        private final long leasedAtNanos = System.nanoTime();
+        private boolean released;
+
+        private Lease(Route route, Socket socket, boolean reused) {
+            this.route = route;
+            this.socket = socket;
+            this.reused = reused;
+        }
+
+        public Socket getSocket() {
+            return socket;
+        }
+
+        /**
+         * True if the connection was used before, so no SOCKS handshake or rendezvous was needed
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        /**
+         * Closes the connection instead of returning it to the pool
+         */
+        public void invalidate() {
+            release(this, false);
+        }
+
+        /**
+         * Returns the connection to the pool
+         */
+        @Override
+        public void close() {
+            release(this, true);
+        }
+    }
+
+    private final Connector connector;
+    private final ScheduledThreadPoolExecutor evictor;
+
+    // Guarded by this
+    private final Map<Route, RouteState> routes = new HashMap<>();
+    private int maxPerRoute = 4;
+    private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+    private boolean closed;
+    private long leases;
+    private long reuses;
+    private long created;
+    private long connectFailures;
+    private long evicted;
+    private long waits;
+    private long leaseNanos;
+
+    /**
+     * Creates a pool that connects through the IPv4 SOCKS port of <code>onionProxyManager</code>, looked up for every
+     * new connection so that the pool follows the Tor OP across restarts
+     */
+    public SocksConnectionPool(OnionProxyManager onionProxyManager) {
+        this(new TorConnector(onionProxyManager));
+    }
+
+    public SocksConnectionPool(Connector connector) {
+        if (connector == null) {
+            throw new IllegalArgumentException("connector is null");
+        }
+        this.connector = connector;
+        this.evictor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SocksConnectionPool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets how many connections a route may have, leased or idle. Defaults to 4.
+     */
+    public synchronized void setMaxPerRoute(int maxPerRoute) {
+        if (maxPerRoute < 1) {
+            throw new IllegalArgumentException("maxPerRoute must be positive");
+        }
+        this.maxPerRoute = maxPerRoute;
+        notifyAll();
+    }
+
+    /**
+     * Sets how long a connection may sit in the pool before it is closed. Defaults to 30 seconds.
+     */
+    public synchronized void setIdleTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        this.idleTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    public Lease acquire(String host, int port, long timeout, TimeUnit unit) throws IOException {
+        return acquire(host, port, null, timeout, unit);
+    }
+
+    /**
+     * Leases a connection to <code>host:port</code> for the given isolation key, reusing an idle one if there is one
+     * and opening a new one otherwise
+     *
+     * @param isolationKey connections with different keys are never shared and use different circuits, null for none
+     * @param timeout      how long to wait for a connection of the route to be returned once maxPerRoute are leased
+     * @throws SocketTimeoutException if none was returned in time
+     */
+    public Lease acquire(String host, int port, String isolationKey, long timeout, TimeUnit unit)
+            throws IOException {
+        if (host == null) {
+            throw new IllegalArgumentException("host is null");
+        }
+        Route route = new Route(host, port, isolationKey);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            Idle candidate = null;
+            synchronized (this) {
+                checkNotClosed();
+                RouteState state = state(route);
+                boolean waited = false;
+                while (state.idle.isEmpty() && state.active >= maxPerRoute) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("No connection to " + route + " was returned in time");
+                    }
+                    if (!waited) {
+                        waits++;
+                        waited = true;
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for a connection to " + route);
+                    }
+                    checkNotClosed();
+                }
+                state.active++;
+                candidate = state.idle.pollFirst();
+            }
+
+            if (candidate == null) {
+                return open(route);
+            }
+            if (System.nanoTime() - candidate.idleSinceNanos < idleTimeoutNanos() && isHealthy(candidate.socket)) {
+                synchronized (this) {
+                    leases++;
+                    reuses++;
+                }
+                return new Lease(route, candidate.socket, true);
+            }
+            closeQuietly(candidate.socket);
+            synchronized (this) {
+                evicted++;
+                state(route).active--;
+                notifyAll();
+            }
+        }
+    }
+
+    private Lease open(Route route) throws IOException {
+        Socket socket;
+        try {
+            socket = connector.connect(route.host, route.port, route.isolationKey);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                connectFailures++;
+                state(route).active--;
+                notifyAll();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            leases++;
+            created++;
+        }
+        return new Lease(route, socket, false);
+    }
+
+    private void release(Lease lease, boolean reusable) {
+        synchronized (this) {
+            if (lease.released) {
+                return;
+            }
+            lease.released = true;
+            leaseNanos += System.nanoTime() - lease.leasedAtNanos;
+            RouteState state = state(lease.route);
+            state.active--;
+            notifyAll();
+            if (reusable && !closed && !lease.socket.isClosed()) {
+                state.idle.addFirst(new Idle(lease.socket, System.nanoTime()));
+                return;
+            }
+            if (state.active == 0 && state.idle.isEmpty()) {
+                routes.remove(lease.route);
+            }
+        }
+        closeQuietly(lease.socket);
+    }
+
+    /**
+     * Closes the connections that have been idle for longer than the idle timeout
+     */
+    void evictIdle() {
+        List<Socket> expired = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (Iterator<Map.Entry<Route, RouteState>> routeIterator = routes.entrySet().iterator();
+                 routeIterator.hasNext(); ) {
+                RouteState state = routeIterator.next().getValue();
+                // Oldest last
+                while (!state.idle.isEmpty() && now - state.idle.peekLast().idleSinceNanos >= idleTimeoutNanos) {
+                    expired.add(state.idle.pollLast().socket);
+                }
+                if (state.active == 0 && state.idle.isEmpty()) {
+                    routeIterator.remove();
+                }
+            }
+            evicted += expired.size();
+        }
+        for (Socket socket : expired) {
+            closeQuietly(socket);
+        }
+    }
+
+    public synchronized int getIdleCount() {
+        int count = 0;
+        for (RouteState state : routes.values()) {
+            count += state.idle.size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the lease metrics, named <code>socks.pool.&lt;name&gt;</code>: leases, reused, created,
+     * connect_failures, evicted, waits, idle, active and lease.ms, the total time connections were leased for
+     */
+    public synchronized Map<String, Long> toMetrics() {
+        int active = 0;
+        for (RouteState state : routes.values()) {
+            active += state.active;
+        }
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put(METRIC_PREFIX + "leases", leases);
+        metrics.put(METRIC_PREFIX + "reused", reuses);
+        metrics.put(METRIC_PREFIX + "created", created);
+        metrics.put(METRIC_PREFIX + "connect_failures", connectFailures);
+        metrics.put(METRIC_PREFIX + "evicted", evicted);
+        metrics.put(METRIC_PREFIX + "waits", waits);
+        metrics.put(METRIC_PREFIX + "idle", (long) getIdleCount());
+        metrics.put(METRIC_PREFIX + "active", (long) active);
+        metrics.put(METRIC_PREFIX + "lease.ms", TimeUnit.NANOSECONDS.toMillis(leaseNanos));
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * Closes the idle connections and stops pooling. Leased connections are closed when they are returned.
+     */
+    @Override
+    public void close() {
+        List<Socket> idle = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (RouteState state : routes.values()) {
+                for (Idle connection : state.idle) {
+                    idle.add(connection.socket);
+                }
+                state.idle.clear();
+            }
+            notifyAll();
+        }
+        evictor.shutdownNow();
+        for (Socket socket : idle) {
+            closeQuietly(socket);
+        }
+        if (connector instanceof Closeable) {
+            closeQuietly((Closeable) connector);
+        }
+    }
+
+    private RouteState state(Route route) {
+        RouteState state = routes.get(route);
+        if (state == null) {
+            state = new RouteState();
+            routes.put(route, state);
+        }
+        return state;
+    }
+
+    private synchronized long idleTimeoutNanos() {
+        return idleTimeoutNanos;
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("Pool has been closed.");
+        }
+    }
+
+    /**
+     * An idle connection is healthy if it is open and nothing, not even the end of the stream, is waiting to be read
+     */
+    static boolean isHealthy(Socket socket) {
+        if (socket.isClosed() || !socket.isConnected() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+            return false;
+        }
+        try {
+            SocketChannel channel = socket.getChannel();
+            if (channel == null) {
+                // A blocking socket can't look for the end of the stream without waiting
+                return socket.getInputStream().available() == 0;
+            }
+            channel.configureBlocking(false);
+            try {
+                return channel.read(ByteBuffer.allocate(1)) == 0;
+            } finally {
+                channel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOG.debug("Could not close " + closeable, e);
+        }
+    }
+
+    /**
+     * Connects through the SOCKS port of an OnionProxyManager with a {@link Socks5Client}, which is replaced when the
+     * port changes
+     */
+    private static final class TorConnector implements Connector, Closeable {
+        private final OnionProxyManager onionProxyManager;
+        private Socks5Client client;
+        private int clientPort = -1;
+
+        TorConnector(OnionProxyManager onionProxyManager) {
+            if (onionProxyManager == null) {
+                throw new IllegalArgumentException("onionProxyManager is null");
+            }
+            this.onionProxyManager = onionProxyManager;
+        }
+
+        @Override
+        public Socket connect(String host, int port, String isolationKey) throws IOException {
+            SocketChannel channel;
+            try {
+                channel = client().connect(host, port, isolationKey, isolationKey == null ? null : "").get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while connecting to " + host + ":" + port);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+            channel.configureBlocking(true);
+            return channel.socket();
+        }
+
+        private synchronized Socks5Client client() throws IOException {
+            int socksPort;
+            try {
+                socksPort = onionProxyManager.getIPv4LocalHostSocksPort();
+            } catch (RuntimeException e) {
+                throw new IOException("Tor is not running", e);
+            }
+            if (client == null || socksPort != clientPort) {
+                if (client != null) {
+                    client.close();
+                }
+                client = new Socks5Client(new InetSocketAddress("127.0.0.1", socksPort));
+                clientPort = socksPort;
+            }
+            return client;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (client != null) {
+                client.close();
+                client = null;
+            }
+        }
+    }
+}
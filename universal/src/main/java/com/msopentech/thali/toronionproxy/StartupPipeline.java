@@ -0,0 +1,285 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Installs, configures and starts the Tor OP with independent steps running concurrently:
+ * <pre>
+ *   install executable --+-- write torrc -- start Tor --+-- wait for bootstrap
+ *   build torrc ---------+                              |
+ *   install resources (geoip) --------------------------+-- point Tor at the geoip files
+ * </pre>
+ * Tor doesn't need the geoip files to launch, so they are extracted while Tor starts and handed to it over the
+ * control connection once both are ready. The control port and cookie files are waited for together by
+ * {@link OnionProxyManager#start()}.
+ * <p>
+ * On Android the returned future requires API level 24 or higher.
+ */
+public final class StartupPipeline {
+    private static final Logger LOG = LoggerFactory.getLogger(StartupPipeline.class);
+
+    static final String INSTALL_EXECUTABLE = "installExecutable";
+    static final String INSTALL_RESOURCES = "installResources";
+    static final String BUILD_TORRC = "buildTorrc";
+    static final String WRITE_TORRC = "writeTorrc";
+    static final String START = "start";
+    static final String GEOIP = "geoip";
+    static final String BOOTSTRAP = "bootstrap";
+
+    /**
+     * What a pipelined startup took
+     */
+    public static final class Result {
+        private final boolean bootstrapped;
+        private final long elapsedMillis;
+        private final Map<String, Long> stepMillis;
+
+        Result(boolean bootstrapped, long elapsedMillis, Map<String, Long> stepMillis) {
+            this.bootstrapped = bootstrapped;
+            this.elapsedMillis = elapsedMillis;
+            this.stepMillis = Collections.unmodifiableMap(new LinkedHashMap<>(stepMillis));
+        }
+
+        /**
+         * False if the Tor OP started but didn't finish bootstrapping within the timeout
+         */
+        public boolean isBootstrapped() {
+            return bootstrapped;
+        }
+
+        /**
+         * Wall clock time from the start of the pipeline until it finished
+         */
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * How long each step took, in the order they finished
+         */
+        public Map<String, Long> getStepMillis() {
+            return stepMillis;
+        }
+
+        /**
+         * The time the steps would have taken one after the other, as they do with setup() followed by start()
+         */
+        public long getSequentialMillis() {
+            long total = 0;
+            for (long millis : stepMillis.values()) {
+                total += millis;
+            }
+            return total;
+        }
+
+        /**
+         * The time saved by running steps concurrently
+         */
+        public long getSavedMillis() {
+            return Math.max(0, getSequentialMillis() - elapsedMillis);
+        }
+
+        @Override
+        public String toString() {
+            return "StartupPipeline.Result{bootstrapped=" + bootstrapped + ", elapsedMillis=" + elapsedMillis
+                    + ", savedMillis=" + getSavedMillis() + ", steps=" + stepMillis + '}';
+        }
+    }
+
+    private final OnionProxyManager onionProxyManager;
+    private final Map<String, Long> stepMillis = new LinkedHashMap<>();
+
+    StartupPipeline(OnionProxyManager onionProxyManager) {
+        this.onionProxyManager = onionProxyManager;
+    }
+
+    /**
+     * Runs the pipeline on its own threads
+     *
+     * @param bootstrapTimeoutSeconds how long to wait for bootstrapping once the Tor OP is running
+     */
+    CompletableFuture<Result> run(final int bootstrapTimeoutSeconds) {
+        final long startNanos = System.nanoTime();
+        final ExecutorService executor = Executors.newFixedThreadPool(3, new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "StartupPipeline-" + ++count);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final OnionProxyContext context = onionProxyManager.getContext();
+        final TorInstaller installer = onionProxyManager.getTorInstaller();
+        if (installer == null) {
+            CompletableFuture<Result> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("No TorInstaller found"));
+            return failed;
+        }
+        onionProxyManager.beginStartupProfile();
+
+        CompletableFuture<Void> executable = step(INSTALL_EXECUTABLE, executor, new Step<Void>() {
+            @Override
+            public Void run() throws Exception {
+                installer.setupExecutable();
+                onionProxyManager.recordMilestone(StartupProfile.Milestone.INSTALLED);
+                return null;
+            }
+        });
+        CompletableFuture<Void> resources = step(INSTALL_RESOURCES, executor, new Step<Void>() {
+            @Override
+            public Void run() throws Exception {
+                installer.setupResources();
+                return null;
+            }
+        });
+        CompletableFuture<String> torrc = step(BUILD_TORRC, executor, new Step<String>() {
+            @Override
+            public String run() throws Exception {
+                return context.newConfigBuilder().updateTorConfig().asString();
+            }
+        });
+
+        // Some installers only know where the torrc goes once they have installed
+        CompletableFuture<Void> started = executable.thenCombine(torrc, new BiFunction<Void, String, String>() {
+            @Override
+            public String apply(Void ignored, String content) {
+                return content;
+            }
+        }).thenCompose(new Function<String, CompletionStage<Void>>() {
+            @Override
+            public CompletionStage<Void> apply(final String content) {
+                return step(WRITE_TORRC, executor, new Step<Void>() {
+                    @Override
+                    public Void run() throws Exception {
+                        installer.updateTorConfigCustom(content);
+                        onionProxyManager.recordMilestone(StartupProfile.Milestone.TORRC_WRITTEN);
+                        return null;
+                    }
+                });
+            }
+        }).thenCompose(new Function<Void, CompletionStage<Void>>() {
+            @Override
+            public CompletionStage<Void> apply(Void ignored) {
+                return step(START, executor, new Step<Void>() {
+                    @Override
+                    public Void run() throws Exception {
+                        onionProxyManager.start();
+                        return null;
+                    }
+                });
+            }
+        });
+
+        CompletableFuture<Void> geoip = started.thenCombine(resources, new BiFunction<Void, Void, Void>() {
+            @Override
+            public Void apply(Void a, Void b) {
+                return null;
+            }
+        }).thenCompose(new Function<Void, CompletionStage<Void>>() {
+            @Override
+            public CompletionStage<Void> apply(Void ignored) {
+                return step(GEOIP, executor, new Step<Void>() {
+                    @Override
+                    public Void run() throws Exception {
+                        TorConfig config = context.getConfig();
+                        if (config.getGeoIpFile().exists() && config.getGeoIpv6File().exists()) {
+                            onionProxyManager.beginConfigTransaction()
+                                    .set("GeoIPFile", config.getGeoIpFile().getCanonicalPath())
+                                    .set("GeoIPv6File", config.getGeoIpv6File().getCanonicalPath())
+                                    .commit();
+                        }
+                        return null;
+                    }
+                });
+            }
+        });
+
+        CompletableFuture<Boolean> bootstrapped = started.thenCompose(
+                new Function<Void, CompletionStage<Boolean>>() {
+                    @Override
+                    public CompletionStage<Boolean> apply(Void ignored) {
+                        return step(BOOTSTRAP, executor, new Step<Boolean>() {
+                            @Override
+                            public Boolean run() throws Exception {
+                                return onionProxyManager.getBootstrapTracker()
+                                        .awaitCompletion(bootstrapTimeoutSeconds, TimeUnit.SECONDS);
+                            }
+                        });
+                    }
+                });
+
+        CompletableFuture<Result> result = bootstrapped.thenCombine(geoip, new BiFunction<Boolean, Void, Result>() {
+            @Override
+            public Result apply(Boolean isBootstrapped, Void ignored) {
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+                synchronized (stepMillis) {
+                    Result result = new Result(isBootstrapped, elapsed, stepMillis);
+                    LOG.info("Startup finished: " + result);
+                    return result;
+                }
+            }
+        });
+        result.whenComplete(new BiConsumer<Result, Throwable>() {
+            @Override
+            public void accept(Result ignored, Throwable failure) {
+                executor.shutdown();
+            }
+        });
+        return result;
+    }
+
+    private interface Step<T> {
+        T run() throws Exception;
+    }
+
+    private <T> CompletableFuture<T> step(final String name, Executor executor, final Step<T> step) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    T value = step.run();
+                    record(name, start);
+                    future.complete(value);
+                } catch (Exception e) {
+                    LOG.warn("Startup step " + name + " failed", e);
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    private void record(String name, long startNanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        synchronized (stepMillis) {
+            stepMillis.put(name, millis);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.toronionproxy;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * When each startup milestone of the Tor OP was reached, measured with {@link System#nanoTime()} from the moment the
+ * startup began. A startup begins with {@link OnionProxyManager#setup()}, {@link OnionProxyManager#installAndStart(int)}
+ * or, if neither came first, {@link OnionProxyManager#start()}.
+ * <p>
+ * Only the first time a milestone is reached is recorded, so reconnecting to a running Tor OP doesn't overwrite the
+ * startup figures. Milestones are recorded from several threads and can be read while the startup is in progress.
+ */
+public final class StartupProfile {
+
+    public enum Milestone {
+        /**
+         * The Tor executable has been installed and extracted
+         */
+        INSTALLED("installed"),
+        /**
+         * The torrc has been written. Only recorded when the manager writes it, as in
+         * {@link OnionProxyManager#installAndStart(int)}.
+         */
+        TORRC_WRITTEN("torrc_written"),
+        /**
+         * The Tor process has been spawned. Not recorded when we attach to a Tor OP that was already running.
+         */
+        PROCESS_SPAWNED("process_spawned"),
+        /**
+         * Tor has written the control port file
+         */
+        CONTROL_PORT_FILE("control_port_file"),
+        /**
+         * Tor has written the cookie auth file
+         */
+        COOKIE_AUTH_FILE("cookie_auth_file"),
+        /**
+         * The control connection is authenticated
+         */
+        AUTHENTICATED("authenticated"),
+        /**
+         * We own the Tor OP, it will exit when the control connection closes
+         */
+        OWNERSHIP_TAKEN("ownership_taken");
+
+        private final String metricName;
+
+        Milestone(String metricName) {
+            this.metricName = metricName;
+        }
+
+        private static final Milestone[] VALUES = values();
+    }
+
+    private static final long NOT_REACHED = -1;
+    private static final String METRIC_PREFIX = "tor.startup.";
+
+    private final long startNanos;
+    private final AtomicLongArray milestones = notReached(Milestone.VALUES.length);
+    // Indexed by bootstrap percentage
+    private final AtomicLongArray bootstrap = notReached(101);
+
+    StartupProfile() {
+        this(System.nanoTime());
+    }
+
+    StartupProfile(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    private static AtomicLongArray notReached(int length) {
+        AtomicLongArray array = new AtomicLongArray(length);
+        for (int i = 0; i < length; i++) {
+            array.set(i, NOT_REACHED);
+        }
+        return array;
+    }
+
+    void record(Milestone milestone) {
+        record(milestone, System.nanoTime());
+    }
+
+    void record(Milestone milestone, long nanos) {
+        milestones.compareAndSet(milestone.ordinal(), NOT_REACHED, Math.max(0, nanos - startNanos));
+    }
+
+    void recordBootstrap(int progress) {
+        recordBootstrap(progress, System.nanoTime());
+    }
+
+    void recordBootstrap(int progress, long nanos) {
+        if (progress >= 0 && progress <= 100) {
+            bootstrap.compareAndSet(progress, NOT_REACHED, Math.max(0, nanos - startNanos));
+        }
+    }
+
+    /**
+     * True once the Tor OP has been launched or attached to, after which a new start begins a new profile
+     */
+    boolean isLaunched() {
+        return isReached(Milestone.PROCESS_SPAWNED) || isReached(Milestone.AUTHENTICATED);
+    }
+
+    public boolean isReached(Milestone milestone) {
+        return milestones.get(milestone.ordinal()) != NOT_REACHED;
+    }
+
+    /**
+     * Returns the time from the start until <code>milestone</code> was reached, or -1 if it hasn't been
+     */
+    public long getElapsed(Milestone milestone, TimeUnit unit) {
+        return convert(milestones.get(milestone.ordinal()), unit);
+    }
+
+    /**
+     * Returns the time from the start until Tor first reported <code>progress</code> percent bootstrapped, or -1 if
+     * it hasn't. Tor skips most percentages, so only the ones it reported are set.
+     */
+    public long getBootstrapElapsed(int progress, TimeUnit unit) {
+        if (progress < 0 || progress > 100) {
+            throw new IllegalArgumentException("progress must be between 0 and 100");
+        }
+        return convert(bootstrap.get(progress), unit);
+    }
+
+    /**
+     * Returns the time until each bootstrap percentage Tor reported, in increasing order of percentage
+     */
+    public Map<Integer, Long> getBootstrapElapsed(TimeUnit unit) {
+        Map<Integer, Long> result = new LinkedHashMap<>();
+        for (int progress = 0; progress <= 100; progress++) {
+            long nanos = bootstrap.get(progress);
+            if (nanos != NOT_REACHED) {
+                result.put(progress, unit.convert(nanos, TimeUnit.NANOSECONDS));
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Returns the milestones reached so far as metrics in milliseconds, named
+     * <code>tor.startup.&lt;milestone&gt;.ms</code> and <code>tor.startup.bootstrap.&lt;percent&gt;.ms</code>, for
+     * example <code>tor.startup.control_port_file.ms</code> and <code>tor.startup.bootstrap.100.ms</code>.
+     */
+    public Map<String, Long> toMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        for (Milestone milestone : Milestone.VALUES) {
+            long nanos = milestones.get(milestone.ordinal());
+            if (nanos != NOT_REACHED) {
+                metrics.put(METRIC_PREFIX + milestone.metricName + ".ms", TimeUnit.NANOSECONDS.toMillis(nanos));
+            }
+        }
+        for (Map.Entry<Integer, Long> entry : getBootstrapElapsed(TimeUnit.MILLISECONDS).entrySet()) {
+            metrics.put(METRIC_PREFIX + "bootstrap." + entry.getKey() + ".ms", entry.getValue());
+        }
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    private static long convert(long nanos, TimeUnit unit) {
+        return nanos == NOT_REACHED ? NOT_REACHED : unit.convert(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "StartupProfile" + toMetrics();
+    }
+}
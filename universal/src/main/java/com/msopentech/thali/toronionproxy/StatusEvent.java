@@ -0,0 +1,142 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+/**
+ * A STATUS_CLIENT, STATUS_GENERAL or STATUS_SERVER event of the form
+ * <code>SEVERITY ACTION KEY=VALUE ...</code>, for example
+ * <code>NOTICE BOOTSTRAP PROGRESS=100 TAG=done SUMMARY="Done"</code>.
+ * <p>
+ * The event keeps Tor's message and only records where its parts start, so nothing is allocated unless a listener
+ * asks for the action or an argument as a string. Instances are reused by {@link TorEventDispatcher} for every
+ * event, so listeners must copy anything they want to keep after the callback returns.
+ */
+public final class StatusEvent {
+
+    public enum Type {CLIENT, GENERAL, SERVER}
+
+    public enum Severity {
+        DEBUG, INFO, NOTICE, WARN, ERR, UNKNOWN;
+
+        static Severity parse(String value, int start, int end) {
+            int length = end - start;
+            for (Severity severity : VALUES) {
+                String name = severity.name();
+                if (name.length() == length && value.regionMatches(true, start, name, 0, length)) {
+                    return severity;
+                }
+            }
+            return UNKNOWN;
+        }
+
+        private static final Severity[] VALUES = values();
+    }
+
+    private Type type;
+    private Severity severity = Severity.UNKNOWN;
+    private String message = "";
+    private int actionStart;
+    private int actionEnd;
+
+    /**
+     * Fills in this event from a status message
+     */
+    void set(Type type, String message) {
+        this.type = type;
+        this.message = message == null ? "" : message;
+        int severityEnd = indexOfSpace(this.message, 0);
+        this.severity = Severity.parse(this.message, 0, severityEnd);
+        this.actionStart = Math.min(severityEnd + 1, this.message.length());
+        this.actionEnd = indexOfSpace(this.message, actionStart);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Severity getSeverity() {
+        return severity;
+    }
+
+    /**
+     * Returns the action, for example "BOOTSTRAP" or "CIRCUIT_ESTABLISHED". Allocates a new string, use
+     * {@link #isAction(String)} to test for a particular action.
+     */
+    public String getAction() {
+        return message.substring(actionStart, actionEnd);
+    }
+
+    public boolean isAction(String action) {
+        return action.length() == actionEnd - actionStart
+                && message.regionMatches(actionStart, action, 0, action.length());
+    }
+
+    /**
+     * Returns the value of the argument <code>key</code> without any surrounding quotes, or null if the event doesn't
+     * have that argument
+     */
+    public String getArgument(String key) {
+        int index = actionEnd;
+        while (index < message.length()) {
+            index++;
+            if (message.regionMatches(index, key, 0, key.length())
+                    && index + key.length() < message.length()
+                    && message.charAt(index + key.length()) == '=') {
+                int start = index + key.length() + 1;
+                if (start < message.length() && message.charAt(start) == '"') {
+                    int end = message.indexOf('"', start + 1);
+                    return message.substring(start + 1, end == -1 ? message.length() : end);
+                }
+                return message.substring(start, indexOfSpace(message, start));
+            }
+            index = nextArgument(message, index);
+        }
+        return null;
+    }
+
+    /**
+     * The whole message as Tor sent it, without the event type
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    private static int indexOfSpace(String value, int from) {
+        int index = value.indexOf(' ', from);
+        return index == -1 ? value.length() : index;
+    }
+
+    /**
+     * Returns the index of the space that ends the argument starting at <code>index</code>, skipping quoted values
+     */
+    private static int nextArgument(String value, int index) {
+        boolean quoted = false;
+        for (int i = index; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == '\\' && quoted) {
+                i++;
+            } else if (c == ' ' && !quoted) {
+                return i;
+            }
+        }
+        return value.length();
+    }
+
+    @Override
+    public String toString() {
+        return "StatusEvent{type=" + type + ", message=" + message + '}';
+    }
+}
@@ -38,7 +38,10 @@ public final class TorConfig {
     private File libraryPath;
     private File resolveConf;
     private File controlPortFile;
+    private File controlSocketFile;
+    private File socksSocketFile;
     private File installDir;
+    private File cacheSnapshotDir;
     private int fileCreationTimeout;
 
     /**
@@ -121,6 +124,30 @@ public final class TorConfig {
         return controlPortFile;
     }
 
+    /**
+     * The unix domain socket the control port listens on, or null if the control port is a TCP port. Only used when
+     * the OnionProxyContext supports unix domain sockets.
+     */
+    public File getControlSocketFile() {
+        return controlSocketFile;
+    }
+
+    /**
+     * The unix domain socket of an additional socks listener, or null if there is none. Only used when the
+     * OnionProxyContext supports unix domain sockets.
+     */
+    public File getSocksSocketFile() {
+        return socksSocketFile;
+    }
+
+    /**
+     * A directory, possibly shared with other Tor OPs, holding a cache snapshot to seed an empty data directory from,
+     * or null if there is none. See {@link OnionProxyContext#seedDataDirFromSnapshot()}.
+     */
+    public File getCacheSnapshotDir() {
+        return cacheSnapshotDir;
+    }
+
     /**
      * Resolves the tor configuration file. If the torrc file hasn't been set, then this method will attempt to
      * resolve the config file by looking in the root of the $configDir and then in $user.home directory
@@ -211,7 +238,10 @@ public final class TorConfig {
         private File hostnameFile;
         private File resolveConf;
         private File controlPortFile;
+        private File controlSocketFile;
+        private File socksSocketFile;
         private File installDir;
+        private File cacheSnapshotDir;
         private int fileCreationTimeout;
 
         /**
@@ -350,6 +380,36 @@ public final class TorConfig {
             return this;
         }
 
+        /**
+         * Has the Tor OP listen for control connections on a unix domain socket instead of a TCP port. Tor requires
+         * the socket's directory to be readable only by its owner, so it is created that way if it doesn't exist.
+         */
+        public Builder controlSocketFile(File file) {
+            this.controlSocketFile = file;
+            return this;
+        }
+
+        /**
+         * Has the Tor OP accept socks connections on a unix domain socket, in addition to its socks port. As for the
+         * control socket, its directory is created readable only by its owner if it doesn't exist. Once Tor is
+         * running the socket is reported by {@link TorState#getSocksSocketFile()}.
+         */
+        public Builder socksSocketFile(File file) {
+            this.socksSocketFile = file;
+            return this;
+        }
+
+        /**
+         * Seeds an empty data directory from the cache snapshot in this directory, so the Tor OP doesn't have to
+         * download a consensus and microdescriptors before it can bootstrap. The directory is only read.
+         * <p>
+         * Default value: none
+         */
+        public Builder cacheSnapshotDir(File directory) {
+            this.cacheSnapshotDir = directory;
+            return this;
+        }
+
         /**
          * When tor starts it waits for the control port and cookie auth files to be created before it proceeds to the
          * next step in startup. If these files are not created after a certain amount of time, then the startup has
@@ -437,7 +497,10 @@ public final class TorConfig {
             config.libraryPath = libraryPath;
             config.resolveConf = resolveConf;
             config.controlPortFile = controlPortFile;
+            config.controlSocketFile = controlSocketFile;
+            config.socksSocketFile = socksSocketFile;
             config.installDir = installDir;
+            config.cacheSnapshotDir = cacheSnapshotDir;
             config.fileCreationTimeout = fileCreationTimeout;
             return config;
         }
@@ -49,6 +49,10 @@ public final class TorConfigBuilder {
         return this;
     }
 
+    private static String unixSocket(String path) {
+        return "unix:\"" + path.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
     private static boolean isNullOrEmpty(String value) {
         return value == null || value.isEmpty();
     }
@@ -155,9 +159,37 @@ public final class TorConfigBuilder {
         return this;
     }
 
+    /**
+     * Listens for control connections on the unix domain socket <code>controlSocket</code> rather than a TCP port
+     */
+    public TorConfigBuilder controlPortWriteToFileUnix(String controlPortFile, String controlSocket) {
+        buffer.append("ControlPortWriteToFile ").append(controlPortFile).append('\n');
+        buffer.append("ControlPort ").append(unixSocket(controlSocket)).append('\n');
+        return this;
+    }
+
     @SettingsConfig
     public TorConfigBuilder controlPortWriteToFileFromConfig() {
-        return controlPortWriteToFile(context.config.getControlPortFile().getAbsolutePath());
+        String controlPortFile = context.config.getControlPortFile().getAbsolutePath();
+        File controlSocket = context.config.getControlSocketFile();
+        if (controlSocket != null && context.supportsUnixDomainSockets()) {
+            return controlPortWriteToFileUnix(controlPortFile, controlSocket.getAbsolutePath());
+        }
+        return controlPortWriteToFile(controlPortFile);
+    }
+
+    public TorConfigBuilder dataDirectory(String dataDir) {
+        buffer.append("DataDirectory ").append(dataDir).append('\n');
+        return this;
+    }
+
+    /**
+     * Keeps Tor's caches and state in the configured data directory, which is where the manager looks when it
+     * clears them, rather than Tor's default under the home directory
+     */
+    @SettingsConfig
+    public TorConfigBuilder dataDirectoryFromConfig() {
+        return dataDirectory(context.config.getDataDir().getAbsolutePath());
     }
 
     public TorConfigBuilder debugLogs() {
@@ -430,6 +462,23 @@ public final class TorConfigBuilder {
         return this;
     }
 
+    /**
+     * Accepts socks connections on the unix domain socket <code>socksSocket</code>
+     */
+    public TorConfigBuilder socksPortUnix(String socksSocket, String isolationFlag) {
+        return socksPort(unixSocket(socksSocket), isolationFlag);
+    }
+
+    @SettingsConfig
+    public TorConfigBuilder socksSocketFromConfig() {
+        File socksSocket = context.config.getSocksSocketFile();
+        if (socksSocket == null || !context.supportsUnixDomainSockets()) {
+            return this;
+        }
+        return socksPortUnix(socksSocket.getAbsolutePath(), settings.hasIsolationAddressFlagForTunnel() ?
+                "IsolateDestAddr" : null);
+    }
+
     @SettingsConfig
     public TorConfigBuilder socksPortFromSettings() {
         String socksPort = settings.getSocksPort();
@@ -1,10 +1,33 @@
 package com.msopentech.thali.toronionproxy;
 
+import net.freehaven.tor.control.ConfigEntry;
+
 import java.io.*;
+import java.lang.reflect.Field;
 import java.net.Socket;
-import java.util.Collections;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 public final class TorControlConnection extends net.freehaven.tor.control.TorControlConnection {
+    private static final String CONF_CHANGED = "CONF_CHANGED";
+    // jtorctl keeps the text of a reply line in a package private field
+    private static final Field REPLY_LINE_MSG = replyLineMsgField();
+
+    /**
+     * Receives the options changed by any controller. Called on the reader thread so implementations must not
+     * block or send commands on this connection.
+     */
+    interface ConfChangedListener {
+        /**
+         * @param changes the new values, in the order Tor reported them. Options that were reset to their default
+         *                are entries without a value.
+         */
+        void confChanged(List<ConfigEntry> changes);
+    }
+
+    private volatile Thread readerThread;
+    private volatile ConfChangedListener confChangedListener;
+
     public TorControlConnection(Socket socket) throws IOException {
         super(socket);
     }
@@ -17,6 +40,121 @@ public final class TorControlConnection extends net.freehaven.tor.control.TorCon
         super(reader, writer);
     }
     
+    @Override
+    public synchronized Thread launchThread(boolean daemon) {
+        readerThread = super.launchThread(daemon);
+        return readerThread;
+    }
+
+    /**
+     * Returns false once the thread reading replies and events has exited, after which every command on this
+     * connection will fail or hang. True if the thread hasn't been launched yet.
+     */
+    public boolean isReaderThreadAlive() {
+        Thread thread = readerThread;
+        return thread == null || thread.isAlive();
+    }
+
+    /**
+     * Waits for the thread reading replies and events to exit, which it does once the Tor OP has closed the
+     * connection, for example because it is exiting
+     *
+     * @return true if the thread has exited, false if it is still running or hasn't been launched
+     */
+    public boolean awaitReaderThreadExit(long timeout, TimeUnit unit) throws InterruptedException {
+        Thread thread = readerThread;
+        if (thread == null) {
+            return false;
+        }
+        unit.timedJoin(thread, timeout);
+        return !thread.isAlive();
+    }
+
+    /**
+     * Runs <code>listener</code> on a new daemon thread once the reader thread has exited
+     */
+    void onReaderThreadExit(final Runnable listener) {
+        final Thread thread = readerThread;
+        if (thread == null) {
+            throw new IllegalStateException("Reader thread hasn't been launched.");
+        }
+        Thread watcher = new Thread("ControlConnectionWatcher") {
+            @Override
+            public void run() {
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                listener.run();
+            }
+        };
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * False if we can't read CONF_CHANGED events, in which case subscribing to them would kill the reader thread
+     */
+    static boolean isConfChangedSupported() {
+        return REPLY_LINE_MSG != null;
+    }
+
+    void setConfChangedListener(ConfChangedListener listener) {
+        confChangedListener = listener;
+    }
+
+    /**
+     * jtorctl expects every event line to start with the event type followed by a space. CONF_CHANGED is a multi
+     * line event whose first line is just its type, which jtorctl fails to parse, so we handle it here.
+     */
+    @Override
+    protected void handleEvent(ArrayList<ReplyLine> events) {
+        if (events.isEmpty() || !CONF_CHANGED.equals(replyLineMsg(events.get(0)))) {
+            super.handleEvent(events);
+            return;
+        }
+        ConfChangedListener listener = confChangedListener;
+        if (listener == null) {
+            return;
+        }
+        List<ConfigEntry> changes = new ArrayList<>();
+        // The last line is the closing "650 OK"
+        for (ReplyLine line : events.subList(1, events.size() - 1)) {
+            String msg = replyLineMsg(line);
+            if (msg == null || msg.isEmpty()) {
+                continue;
+            }
+            int equals = msg.indexOf('=');
+            changes.add((equals < 0) ? new ConfigEntry(msg)
+                    : new ConfigEntry(msg.substring(0, equals), msg.substring(equals + 1)));
+        }
+        listener.confChanged(changes);
+    }
+
+    private static String replyLineMsg(ReplyLine line) {
+        if (REPLY_LINE_MSG == null) {
+            return null;
+        }
+        try {
+            return (String) REPLY_LINE_MSG.get(line);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static Field replyLineMsgField() {
+        try {
+            Field field = ReplyLine.class.getDeclaredField("msg");
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     public void takeownership() throws IOException {
         sendAndWaitForResponse("TAKEOWNERSHIP\r\n", null);
     }
@@ -28,4 +166,66 @@ public final class TorControlConnection extends net.freehaven.tor.control.TorCon
     public void reloadConf() throws IOException {
         signal("HUP");
     }
+
+    /**
+     * Sends a single GETCONF for all of the keys. Options that are set more than once map to several values and
+     * options that are not set map to an empty list.
+     */
+    public Map<String, List<String>> getConfMap(Collection<String> keys) throws IOException {
+        Map<String, List<String>> result = new LinkedHashMap<>();
+        for (ConfigEntry entry : getConf(keys)) {
+            List<String> values = result.get(entry.key);
+            if (values == null) {
+                values = new ArrayList<>();
+                result.put(entry.key, values);
+            }
+            if (entry.value != null && !entry.value.isEmpty()) {
+                values.add(entry.value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Applies all of the entries with a single RESETCONF. Entries with a value set the option to that value and
+     * entries created without one (<code>new ConfigEntry(key)</code>) reset it to its default. Tor applies the
+     * command atomically, so if any entry is rejected none of them take effect. An option that appears more than once
+     * gets all of its values, in order.
+     */
+    public void applyConf(List<ConfigEntry> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        StringBuilder command = new StringBuilder("RESETCONF");
+        for (ConfigEntry entry : entries) {
+            command.append(' ').append(entry.key);
+            if (!entry.is_default) {
+                command.append('=').append(quoteValue(entry.value));
+            }
+        }
+        command.append("\r\n");
+        sendAndWaitForResponse(command.toString(), null);
+    }
+
+    private static String quoteValue(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                case '"':
+                    quoted.append('\\').append(c);
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                default:
+                    quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
 }
@@ -0,0 +1,155 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import net.freehaven.tor.control.EventHandler;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Turns the raw strings jtorctl reports into {@link TorEventListener} callbacks. The dispatcher owns one record per
+ * event type and refills it for each event, so steady event traffic doesn't create garbage. Events for which no
+ * listener is registered aren't parsed at all.
+ * <p>
+ * Reusing the records is safe because events arrive on a single thread, either jtorctl's reader thread or the
+ * consumer thread of an {@link AsyncEventHandler}.
+ */
+public final class TorEventDispatcher implements EventHandler {
+    private final List<TorEventListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final CircuitEvent circuitEvent = new CircuitEvent();
+    private final OrConnEvent orConnEvent = new OrConnEvent();
+    private final BandwidthEvent bandwidthEvent = new BandwidthEvent();
+    private final StatusEvent statusEvent = new StatusEvent();
+
+    public void addListener(TorEventListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener is null");
+        }
+        listeners.add(listener);
+    }
+
+    public void removeListener(TorEventListener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    @Override
+    public void circuitStatus(String status, String id, String path) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        circuitEvent.set(status, id, path);
+        for (TorEventListener listener : listeners) {
+            listener.circuitStatus(circuitEvent);
+        }
+    }
+
+    @Override
+    public void streamStatus(String status, String id, String target) {
+        // We don't subscribe to STREAM events
+    }
+
+    @Override
+    public void orConnStatus(String status, String orName) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        orConnEvent.set(status, orName);
+        for (TorEventListener listener : listeners) {
+            listener.orConnStatus(orConnEvent);
+        }
+    }
+
+    @Override
+    public void bandwidthUsed(long read, long written) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        bandwidthEvent.set(read, written);
+        for (TorEventListener listener : listeners) {
+            listener.bandwidthUsed(bandwidthEvent);
+        }
+    }
+
+    @Override
+    public void newDescriptors(List<String> orList) {
+        // We don't subscribe to NEWDESC events
+    }
+
+    @Override
+    public void message(String severity, String msg) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        StatusEvent.Severity parsed = severity == null ? StatusEvent.Severity.UNKNOWN
+                : StatusEvent.Severity.parse(severity, 0, severity.length());
+        for (TorEventListener listener : listeners) {
+            listener.message(parsed, msg);
+        }
+    }
+
+    @Override
+    public void unrecognized(String type, String msg) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        StatusEvent.Type statusType = parseStatusType(type);
+        if (statusType == null) {
+            return;
+        }
+        statusEvent.set(statusType, msg);
+        for (TorEventListener listener : listeners) {
+            listener.status(statusEvent);
+        }
+    }
+
+    private static StatusEvent.Type parseStatusType(String type) {
+        if (type == null) {
+            return null;
+        }
+        switch (type) {
+            case "STATUS_CLIENT":
+                return StatusEvent.Type.CLIENT;
+            case "STATUS_GENERAL":
+                return StatusEvent.Type.GENERAL;
+            case "STATUS_SERVER":
+                return StatusEvent.Type.SERVER;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Parses a non-negative decimal without allocating. Returns -1 if the value isn't one.
+     */
+    static long parseLong(String value) {
+        if (value == null || value.isEmpty() || value.length() > 18) {
+            return -1;
+        }
+        long result = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+}
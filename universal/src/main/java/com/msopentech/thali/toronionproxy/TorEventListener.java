@@ -0,0 +1,38 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+/**
+ * Receives control events from the Tor OP as structured records. Register with
+ * {@link OnionProxyManager#addTorEventListener(TorEventListener)}.
+ * <p>
+ * The manager makes the callbacks on its event thread, one at a time, and reuses the event objects for the next
+ * event, so copy anything you need to keep. A slow listener doesn't delay command replies, but events may be
+ * dropped or coalesced if it falls far behind, see {@link AsyncEventHandler.OverflowPolicy}.
+ */
+public interface TorEventListener {
+
+    void circuitStatus(CircuitEvent event);
+
+    void orConnStatus(OrConnEvent event);
+
+    void bandwidthUsed(BandwidthEvent event);
+
+    void status(StatusEvent event);
+
+    /**
+     * A NOTICE, WARN or ERR log message from the Tor OP
+     */
+    void message(StatusEvent.Severity severity, String message);
+}
@@ -0,0 +1,29 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.toronionproxy;
+
+/**
+ * Told when the Tor OP exits without being stopped through the OnionProxyManager
+ */
+public interface TorExitListener {
+    /**
+     * Called on an internal thread as soon as the exit has been noticed
+     *
+     * @param exitValue  the exit value of the Tor process, or -1 if it isn't known because Tor ran in the background
+     *                   or was already running when we attached to it
+     * @param restarting true if the {@link RestartPolicy} will restart the Tor OP
+     */
+    void torExited(int exitValue, boolean restarting);
+}
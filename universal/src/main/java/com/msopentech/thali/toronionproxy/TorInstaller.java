@@ -23,6 +23,31 @@ public abstract class TorInstaller {
      */
     public abstract void setup() throws IOException;
 
+    /**
+     * Installs what is needed to launch the Tor OP: the executable and, for installers that keep it with the
+     * executable, the torrc. {@link StartupPipeline} runs this concurrently with {@link #setupResources()}. Defaults to
+     * {@link #setup()}.
+     */
+    public void setupExecutable() throws IOException {
+        setup();
+    }
+
+    /**
+     * Installs the files the Tor OP can be pointed at after it has launched, such as the geoip databases. Installers
+     * that override this must leave those files out of {@link #setupExecutable()}. Does nothing by default.
+     */
+    public void setupResources() throws IOException {
+    }
+
+    /**
+     * Opens a zipped cache snapshot shipped with the installer, to seed an empty data directory from when the
+     * {@link TorConfig#getCacheSnapshotDir()} doesn't hold a usable one. Returns null, the default, if there is none.
+     * See {@link OnionProxyContext#seedDataDirFromSnapshot()} for the format.
+     */
+    public InputStream openCacheSnapshotStream() throws IOException {
+        return null;
+    }
+
     public abstract void updateTorConfigCustom(String content) throws IOException, TimeoutException;
 
     public final InputStream getAssetOrResourceByName(String fileName) {
@@ -0,0 +1,390 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.toronionproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one active Tor OP plus one or more standbys that are bootstrapped and idle with the network enabled, so that
+ * when the active one fails a standby takes over at once instead of after a full spawn and bootstrap.
+ * <p>
+ * Every instance occupies a slot, numbered from 0 to the number of standbys. The {@link Factory} must give each slot
+ * its own data directory and listeners, for example a data directory per slot and SOCKS ports set to auto. A failed
+ * instance is stopped and its replacement is started in the same slot, so the replacement reuses its caches.
+ * <p>
+ * The active instance is checked periodically and a standby is promoted once it has lost its Tor OP. Applications
+ * that detect a failure themselves, for example from failing SOCKS connections, can call {@link #failover()}.
+ * On Android this requires API level 24 or higher, as it uses {@link OnionProxyManager#installAndStart(int)}.
+ */
+public final class TorInstancePool implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(TorInstancePool.class);
+    private static final long DEFAULT_HEALTH_CHECK_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+    private static final long RELAUNCH_DELAY = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Creates the OnionProxyManager for a slot. It will be installed and started by the pool.
+     */
+    public interface Factory {
+        OnionProxyManager create(int slot) throws IOException;
+    }
+
+    /**
+     * Told when a standby has been promoted, so that the application can move to its SOCKS port
+     */
+    public interface Listener {
+        void activeChanged(OnionProxyManager previous, OnionProxyManager active);
+    }
+
+    private static final class Instance {
+        final int slot;
+        final OnionProxyManager manager;
+
+        Instance(int slot, OnionProxyManager manager) {
+            this.slot = slot;
+            this.manager = manager;
+        }
+    }
+
+    private final Factory factory;
+    private final int standbyCount;
+    private final int bootstrapTimeoutSeconds;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService launcher;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    // Guarded by this
+    private final Deque<Instance> standbys = new ArrayDeque<>();
+    private volatile Instance active;
+    private ScheduledFuture<?> healthChecks;
+    // Set while start() launches slot 0 and after it has succeeded, so a second start can't launch it as well
+    private boolean started;
+    private boolean closed;
+
+    public TorInstancePool(Factory factory, int standbyCount, int bootstrapTimeoutSeconds) {
+        if (factory == null) {
+            throw new IllegalArgumentException("factory is null");
+        }
+        if (standbyCount < 1) {
+            throw new IllegalArgumentException("standbyCount must be at least 1");
+        }
+        if (bootstrapTimeoutSeconds <= 0) {
+            throw new IllegalArgumentException("bootstrapTimeoutSeconds must be positive");
+        }
+        this.factory = factory;
+        this.standbyCount = standbyCount;
+        this.bootstrapTimeoutSeconds = bootstrapTimeoutSeconds;
+        this.launcher = Executors.newCachedThreadPool(daemonThreads("TorInstancePool-launcher"));
+        this.scheduler = new ScheduledThreadPoolExecutor(1, daemonThreads("TorInstancePool"));
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    public void addListener(Listener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener is null");
+        }
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts the active instance in slot 0 and waits for it to bootstrap. The standbys are started in the background.
+     *
+     * @throws IOException if the active instance didn't start or bootstrap
+     * @throws IllegalStateException if the pool was already started, is being started or has been closed
+     */
+    public void start() throws IOException, InterruptedException {
+        synchronized (this) {
+            if (closed || started) {
+                throw new IllegalStateException("Pool has already been started.");
+            }
+            started = true;
+        }
+        Instance first = null;
+        try {
+            first = launch(0);
+        } finally {
+            if (first == null) {
+                // Lets start() be called again
+                synchronized (this) {
+                    started = false;
+                }
+            }
+        }
+        if (first == null) {
+            throw new IOException("Tor OP in slot 0 didn't bootstrap within " + bootstrapTimeoutSeconds + "s");
+        }
+        synchronized (this) {
+            if (closed) {
+                closeQuietly(first);
+                throw new IllegalStateException("Pool has been closed.");
+            }
+            active = first;
+            for (int slot = 1; slot <= standbyCount; slot++) {
+                launchInBackground(slot, 0);
+            }
+            scheduleHealthChecks(DEFAULT_HEALTH_CHECK_INTERVAL);
+        }
+    }
+
+    /**
+     * Returns the active instance, or null if the pool hasn't been started
+     */
+    public OnionProxyManager getActive() {
+        Instance current = active;
+        return current == null ? null : current.manager;
+    }
+
+    /**
+     * Returns how many standbys are bootstrapped and waiting
+     */
+    public synchronized int getReadyStandbyCount() {
+        return standbys.size();
+    }
+
+    /**
+     * Sets how often the active instance is checked. The default is 5 seconds.
+     */
+    public synchronized void setHealthCheckInterval(long interval, TimeUnit unit) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        if (healthChecks != null) {
+            scheduleHealthChecks(unit.toMillis(interval));
+        }
+    }
+
+    private void scheduleHealthChecks(long intervalMillis) {
+        if (healthChecks != null) {
+            healthChecks.cancel(false);
+        }
+        healthChecks = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkActive();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void checkActive() {
+        Instance current = active;
+        if (current == null || current.manager.getTorState().isConnected()) {
+            return;
+        }
+        LOG.warn("Active Tor OP in slot {} has failed, promoting a standby", current.slot);
+        try {
+            failover();
+        } catch (IOException e) {
+            LOG.warn("Failover failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replaces the active instance with a ready standby. The previous instance is stopped and a replacement is
+     * started in its slot in the background.
+     *
+     * @return the new active instance
+     * @throws IOException if no standby is ready
+     * @throws IllegalStateException if the pool hasn't been started or has been closed
+     */
+    public OnionProxyManager failover() throws IOException {
+        Instance previous;
+        Instance promoted;
+        synchronized (this) {
+            if (closed || active == null) {
+                throw new IllegalStateException("Pool is not running.");
+            }
+            promoted = nextReadyStandby();
+            if (promoted == null) {
+                throw new IOException("No standby Tor OP is ready");
+            }
+            previous = active;
+            active = promoted;
+            replace(previous);
+        }
+        LOG.info("Promoted Tor OP in slot {} to active", promoted.slot);
+        for (Listener listener : listeners) {
+            listener.activeChanged(previous.manager, promoted.manager);
+        }
+        return promoted.manager;
+    }
+
+    /**
+     * Takes the first standby that is still running, replacing any that have died while waiting
+     */
+    private Instance nextReadyStandby() {
+        Instance standby;
+        while ((standby = standbys.poll()) != null) {
+            if (standby.manager.isRunning()) {
+                return standby;
+            }
+            LOG.warn("Standby Tor OP in slot {} has failed", standby.slot);
+            replace(standby);
+        }
+        return null;
+    }
+
+    /**
+     * Stops <code>instance</code> and starts a new one in its slot, in the background
+     */
+    private void replace(final Instance instance) {
+        launcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                // close() returns once the Tor OP has exited and let go of the slot's data directory
+                closeQuietly(instance);
+                launchStandby(instance.slot);
+            }
+        });
+    }
+
+    private void launchInBackground(final int slot, long delayMillis) {
+        final Runnable launch = new Runnable() {
+            @Override
+            public void run() {
+                launchStandby(slot);
+            }
+        };
+        if (delayMillis == 0) {
+            launcher.execute(launch);
+            return;
+        }
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                launcher.execute(launch);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void launchStandby(int slot) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+        }
+        Instance instance;
+        try {
+            instance = launch(slot);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (IOException e) {
+            LOG.warn("Couldn't start Tor OP in slot " + slot, e);
+            instance = null;
+        }
+        synchronized (this) {
+            if (closed) {
+                if (instance != null) {
+                    closeQuietly(instance);
+                }
+                return;
+            }
+            if (instance != null) {
+                standbys.add(instance);
+                LOG.info("Standby Tor OP in slot {} is ready", slot);
+                return;
+            }
+            launchInBackground(slot, RELAUNCH_DELAY);
+        }
+    }
+
+    /**
+     * Creates, installs and starts an instance. Returns null, with the instance stopped, if it didn't bootstrap.
+     */
+    private Instance launch(int slot) throws IOException, InterruptedException {
+        Instance instance = new Instance(slot, factory.create(slot));
+        // The pool replaces a failed instance with a standby, a restart in place would hide the failure from it
+        instance.manager.setRestartPolicy(RestartPolicy.NEVER);
+        boolean bootstrapped;
+        try {
+            bootstrapped = instance.manager.installAndStart(bootstrapTimeoutSeconds).get().isBootstrapped();
+        } catch (ExecutionException e) {
+            closeQuietly(instance);
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+        if (!bootstrapped) {
+            closeQuietly(instance);
+            return null;
+        }
+        return instance;
+    }
+
+    private static void closeQuietly(Instance instance) {
+        try {
+            instance.manager.close();
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Couldn't stop Tor OP in slot " + instance.slot, e);
+        }
+    }
+
+    /**
+     * Stops every instance, including the active one
+     */
+    @Override
+    public void close() {
+        Instance current;
+        Instance[] waiting;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (healthChecks != null) {
+                healthChecks.cancel(false);
+            }
+            current = active;
+            active = null;
+            waiting = standbys.toArray(new Instance[0]);
+            standbys.clear();
+        }
+        scheduler.shutdownNow();
+        if (current != null) {
+            closeQuietly(current);
+        }
+        for (Instance standby : waiting) {
+            closeQuietly(standby);
+        }
+        launcher.shutdown();
+    }
+}
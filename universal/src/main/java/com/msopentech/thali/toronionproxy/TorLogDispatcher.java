@@ -0,0 +1,92 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import java.io.Closeable;
+
+/**
+ * Hands the lines a Tor process writes to a listener on a thread of its own. The {@link TorLogPump} drains the output
+ * of every Tor process on one thread, so it must never wait for a slow listener or broadcast.
+ * <p>
+ * Lines wait in a bounded {@link SlotQueue}. When it is full the oldest waiting line is discarded, Tor's output is
+ * only drained as fast as the pump can read it either way.
+ */
+final class TorLogDispatcher implements TorLogListener, Closeable {
+    private static final class Slot {
+        String line;
+        boolean stderr;
+    }
+
+    private final SlotQueue<Slot> queue;
+
+    TorLogDispatcher(final TorLogListener delegate, int capacity) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate is null");
+        }
+        queue = new SlotQueue<Slot>("TorLog", "Tor log listeners", "lines", new SlotQueue.Slots<Slot>() {
+            // Only touched by the consumer thread
+            private final TorLogLine current = new TorLogLine();
+
+            @Override
+            Slot create() {
+                return new Slot();
+            }
+
+            @Override
+            void copy(Slot from, Slot to) {
+                to.line = from.line;
+                to.stderr = from.stderr;
+            }
+
+            @Override
+            void clear(Slot slot) {
+                slot.line = null;
+            }
+
+            @Override
+            void deliver(Slot slot) {
+                current.set(slot.line, slot.stderr);
+                delegate.log(current);
+            }
+        }, capacity, false);
+    }
+
+    /**
+     * Queues a copy of the line and returns at once
+     */
+    @Override
+    public void log(TorLogLine line) {
+        Slot slot = queue.acquire();
+        if (slot != null) {
+            slot.line = line.getLine();
+            slot.stderr = line.isStderr();
+            queue.publish();
+        }
+    }
+
+    /**
+     * Returns how many lines have been discarded because the buffer was full
+     */
+    long getDroppedCount() {
+        return queue.getDroppedCount();
+    }
+
+    /**
+     * Stops the consumer thread. Lines that haven't been delivered yet are discarded.
+     */
+    @Override
+    public void close() {
+        queue.close();
+    }
+}
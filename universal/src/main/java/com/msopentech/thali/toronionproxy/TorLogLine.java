@@ -0,0 +1,125 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+/**
+ * A line the Tor process wrote to stdout or stderr, of the form
+ * <code>Oct 16 12:00:00.000 [warn] {NET} connection_connect(): Message</code>, where the domain and the function name
+ * are both optional.
+ * <p>
+ * Like {@link StatusEvent} the line only records where its parts start, and one instance is reused for every line a
+ * Tor process writes, so listeners must copy anything they want to keep after the callback returns.
+ */
+public final class TorLogLine {
+    private String line = "";
+    private boolean stderr;
+    private StatusEvent.Severity severity = StatusEvent.Severity.UNKNOWN;
+    private int componentStart;
+    private int componentEnd;
+    private int messageStart;
+
+    /**
+     * Fills in this line from what Tor wrote
+     */
+    void set(String line, boolean stderr) {
+        this.line = line;
+        this.stderr = stderr;
+        severity = StatusEvent.Severity.UNKNOWN;
+        componentStart = 0;
+        componentEnd = 0;
+        messageStart = 0;
+
+        int levelStart = line.indexOf(" [");
+        int levelEnd = levelStart == -1 ? -1 : line.indexOf("] ", levelStart + 2);
+        if (levelEnd == -1) {
+            return;
+        }
+        severity = StatusEvent.Severity.parse(line, levelStart + 2, levelEnd);
+        int index = levelEnd + 2;
+        if (index < line.length() && line.charAt(index) == '{') {
+            int domainEnd = line.indexOf("} ", index);
+            if (domainEnd != -1) {
+                componentStart = index + 1;
+                componentEnd = domainEnd;
+                index = domainEnd + 2;
+            }
+        }
+        int functionEnd = functionNameEnd(line, index);
+        if (functionEnd != -1) {
+            if (componentEnd == 0) {
+                componentStart = index;
+                componentEnd = functionEnd;
+            }
+            index = functionEnd + "(): ".length();
+        }
+        messageStart = Math.min(index, line.length());
+    }
+
+    /**
+     * Returns the end of a function name followed by <code>(): </code> at <code>start</code>, or -1 if there is none
+     */
+    private static int functionNameEnd(String line, int start) {
+        int i = start;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (c != '_' && (c < 'a' || c > 'z') && (c < 'A' || c > 'Z') && (c < '0' || c > '9')) {
+                break;
+            }
+            i++;
+        }
+        return i > start && line.startsWith("(): ", i) ? i : -1;
+    }
+
+    /**
+     * True if the line came from stderr, where Tor only writes before its logging has been set up
+     */
+    public boolean isStderr() {
+        return stderr;
+    }
+
+    /**
+     * The level in square brackets, or UNKNOWN if the line isn't in Tor's log format
+     */
+    public StatusEvent.Severity getSeverity() {
+        return severity;
+    }
+
+    /**
+     * Returns the log domain, for example "NET", or failing that the function that logged the line, or null if the
+     * line has neither. Tor only includes domains with <code>LogMessageDomains 1</code>, and function names for some
+     * levels.
+     */
+    public String getComponent() {
+        return componentEnd == 0 ? null : line.substring(componentStart, componentEnd);
+    }
+
+    /**
+     * The message without timestamp, level and component
+     */
+    public String getMessage() {
+        return line.substring(messageStart);
+    }
+
+    /**
+     * The whole line as Tor wrote it
+     */
+    public String getLine() {
+        return line;
+    }
+
+    @Override
+    public String toString() {
+        return "TorLogLine{" + line + '}';
+    }
+}
@@ -0,0 +1,210 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Drains stdout and stderr of every Tor process we spawn on one shared thread, so that Tor never blocks on a full
+ * pipe and we don't need two threads per process.
+ * <p>
+ * The pipes of a {@link Process} aren't selectable channels, on Java 8 or on Android, so the pump asks each stream
+ * how much it can read without blocking and only reads that much. While nothing arrives it polls less and less
+ * often. The thread ends once all the processes have exited and their output has been read, and starts again with
+ * the next process.
+ * <p>
+ * Each stream has a fixed line buffer. The part of a line that doesn't fit is discarded.
+ */
+final class TorLogPump {
+    private static final Logger LOG = LoggerFactory.getLogger(TorLogPump.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final int MAX_LINE_LENGTH = 4096;
+    private static final long MIN_POLL_MILLIS = 10;
+    private static final long MAX_POLL_MILLIS = 200;
+
+    private static final class Source {
+        final InputStream inputStream;
+        final TorProcess process;
+        final boolean stderr;
+        final TorLogListener listener;
+        final byte[] line = new byte[MAX_LINE_LENGTH];
+        int length;
+        boolean truncated;
+
+        Source(InputStream inputStream, TorProcess process, boolean stderr, TorLogListener listener) {
+            this.inputStream = inputStream;
+            this.process = process;
+            this.stderr = stderr;
+            this.listener = listener;
+        }
+    }
+
+    // Only touched by the pump thread
+    private final byte[] readBuffer = new byte[8192];
+    private final TorLogLine logLine = new TorLogLine();
+
+    // Guarded by this
+    private Source[] sources = new Source[0];
+    private Thread pump;
+
+    /**
+     * Starts draining <code>inputStream</code>, which belongs to <code>process</code>, and hands each line to
+     * <code>listener</code>. The stream is closed once the process has exited and everything has been read. The
+     * listener is called on the pump thread and holds up every other stream while it runs, so it should only queue
+     * the line, as {@link TorLogDispatcher} does.
+     */
+    synchronized void register(InputStream inputStream, TorProcess process, boolean stderr,
+                               TorLogListener listener) {
+        if (inputStream == null) {
+            throw new IllegalArgumentException("inputStream is null");
+        }
+        if (process == null) {
+            throw new IllegalArgumentException("process is null");
+        }
+        if (listener == null) {
+            throw new IllegalArgumentException("listener is null");
+        }
+        Source[] added = Arrays.copyOf(sources, sources.length + 1);
+        added[sources.length] = new Source(inputStream, process, stderr, listener);
+        sources = added;
+        if (pump == null) {
+            pump = new Thread("TorLogPump") {
+                @Override
+                public void run() {
+                    pumpStreams();
+                }
+            };
+            pump.setDaemon(true);
+            pump.start();
+        }
+    }
+
+    synchronized int getSourceCount() {
+        return sources.length;
+    }
+
+    private void pumpStreams() {
+        long pollMillis = MIN_POLL_MILLIS;
+        while (true) {
+            Source[] current;
+            synchronized (this) {
+                if (sources.length == 0) {
+                    pump = null;
+                    return;
+                }
+                current = sources;
+            }
+            boolean progress = false;
+            for (Source source : current) {
+                try {
+                    progress |= drain(source);
+                } catch (IOException e) {
+                    LOG.debug("Tor output stream failed", e);
+                    finish(source);
+                }
+            }
+            if (progress) {
+                pollMillis = MIN_POLL_MILLIS;
+            } else {
+                try {
+                    Thread.sleep(pollMillis);
+                } catch (InterruptedException e) {
+                    // Nobody but us interrupts this thread
+                }
+                pollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Reads what is available without blocking. Returns true if anything was read.
+     */
+    private boolean drain(Source source) throws IOException {
+        boolean progress = false;
+        int available;
+        while ((available = source.inputStream.available()) > 0) {
+            int read = source.inputStream.read(readBuffer, 0, Math.min(available, readBuffer.length));
+            if (read < 0) {
+                finish(source);
+                return progress;
+            }
+            append(source, read);
+            progress = true;
+        }
+        // The process may have written its last words after we looked, so look once more after it has exited
+        if (!progress && !source.process.isAlive() && source.inputStream.available() == 0) {
+            finish(source);
+        }
+        return progress;
+    }
+
+    private void append(Source source, int count) {
+        for (int i = 0; i < count; i++) {
+            byte b = readBuffer[i];
+            if (b == '\n') {
+                emit(source);
+            } else if (source.length < source.line.length) {
+                source.line[source.length++] = b;
+            } else {
+                source.truncated = true;
+            }
+        }
+    }
+
+    private void emit(Source source) {
+        int length = source.length;
+        if (length > 0 && source.line[length - 1] == '\r') {
+            length--;
+        }
+        if (source.truncated) {
+            LOG.debug("Tor wrote a line longer than " + MAX_LINE_LENGTH + " bytes, the rest was discarded");
+        }
+        source.length = 0;
+        source.truncated = false;
+        logLine.set(new String(source.line, 0, length, UTF_8), source.stderr);
+        try {
+            source.listener.log(logLine);
+        } catch (RuntimeException e) {
+            LOG.warn("Tor log listener failed", e);
+        }
+    }
+
+    private void finish(Source source) {
+        if (source.length > 0) {
+            emit(source);
+        }
+        try {
+            source.inputStream.close();
+        } catch (IOException e) {
+            LOG.debug("Couldn't close Tor output stream", e);
+        }
+        synchronized (this) {
+            int index = Arrays.asList(sources).indexOf(source);
+            if (index == -1) {
+                return;
+            }
+            Source[] removed = new Source[sources.length - 1];
+            System.arraycopy(sources, 0, removed, 0, index);
+            System.arraycopy(sources, index + 1, removed, index, sources.length - index - 1);
+            sources = removed;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.toronionproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Tor process that we spawned. A daemon thread sits in {@link Process#waitFor()} and records the exit, so that
+ * waiting for the process to end returns as soon as it has, with a timeout, on Java 8 and on every Android version.
+ * Neither has ProcessHandle, and Android only has the timed {@link Process#waitFor(long, TimeUnit)} from API level 26.
+ */
+final class TorProcess {
+
+    interface ExitListener {
+        /**
+         * Called on the waiter thread once the process has exited
+         */
+        void exited(TorProcess process, int exitValue);
+    }
+
+    private final Process process;
+    private final CountDownLatch exited = new CountDownLatch(1);
+    // Guarded by this
+    private final List<Runnable> exitActions = new ArrayList<>();
+    private volatile int exitValue = -1;
+
+    private TorProcess(Process process) {
+        this.process = process;
+    }
+
+    static TorProcess watch(Process process, final ExitListener listener) {
+        final TorProcess torProcess = new TorProcess(process);
+        Thread waiter = new Thread("TorProcessWaiter") {
+            @Override
+            public void run() {
+                torProcess.waitForExit();
+                if (listener != null) {
+                    listener.exited(torProcess, torProcess.exitValue);
+                }
+            }
+        };
+        waiter.setDaemon(true);
+        waiter.start();
+        return torProcess;
+    }
+
+    private void waitForExit() {
+        while (true) {
+            try {
+                exitValue = process.waitFor();
+                break;
+            } catch (InterruptedException e) {
+                // Nobody but us interrupts this thread, keep waiting
+            }
+        }
+        exited.countDown();
+        List<Runnable> actions;
+        synchronized (this) {
+            actions = new ArrayList<>(exitActions);
+            exitActions.clear();
+        }
+        for (Runnable action : actions) {
+            action.run();
+        }
+    }
+
+    Process getProcess() {
+        return process;
+    }
+
+    boolean isAlive() {
+        return exited.getCount() > 0;
+    }
+
+    /**
+     * Returns the exit value, or -1 while the process is running
+     */
+    int getExitValue() {
+        return exitValue;
+    }
+
+    /**
+     * Runs <code>action</code> on the waiter thread once the process has exited, or right away if it has already
+     */
+    void onExit(Runnable action) {
+        synchronized (this) {
+            if (isAlive()) {
+                exitActions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Waits for the process to exit
+     *
+     * @return true if it has exited
+     */
+    boolean awaitExit(long timeout, TimeUnit unit) throws InterruptedException {
+        return exited.await(timeout, unit);
+    }
+
+    /**
+     * Asks the process to exit. On Unix Java sends SIGTERM, which Tor handles by shutting down cleanly.
+     */
+    void destroy() {
+        process.destroy();
+    }
+
+    /**
+     * Kills the process. Falls back to {@link Process#destroy()}, which sends SIGKILL, on Android versions before API
+     * level 26.
+     */
+    void destroyForcibly() {
+        try {
+            process.destroyForcibly();
+        } catch (NoSuchMethodError e) {
+            process.destroy();
+        }
+    }
+
+    /**
+     * Asks the process to exit and waits for it, then kills it if it hasn't exited within <code>gracePeriod</code>
+     *
+     * @return true if the process has exited
+     */
+    boolean terminate(boolean forcibly, long gracePeriod, TimeUnit unit) throws InterruptedException {
+        if (forcibly) {
+            destroyForcibly();
+        } else {
+            destroy();
+        }
+        if (awaitExit(gracePeriod, unit)) {
+            return true;
+        }
+        destroyForcibly();
+        return awaitExit(gracePeriod, unit);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable snapshot of what we know about the Tor OP. Snapshots are replaced as control events arrive, so reading
+ * one never touches the control connection.
+ */
+public final class TorState {
+    private static final String UNIX_PREFIX = "unix:";
+
+    /**
+     * State of a Tor OP that we are not connected to
+     */
+    public static final TorState DISCONNECTED = new TorState(false, 0, false, -1,
+            Collections.<String>emptyList());
+
+    private final boolean connected;
+    private final int bootstrapProgress;
+    private final boolean networkEnabled;
+    private final int pid;
+    private final List<String> socksListeners;
+
+    private TorState(boolean connected, int bootstrapProgress, boolean networkEnabled, int pid,
+                     List<String> socksListeners) {
+        this.connected = connected;
+        this.bootstrapProgress = bootstrapProgress;
+        this.networkEnabled = networkEnabled;
+        this.pid = pid;
+        this.socksListeners = socksListeners;
+    }
+
+    /**
+     * True if we hold a control connection to the Tor OP
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public int getBootstrapProgress() {
+        return bootstrapProgress;
+    }
+
+    public boolean isBootstrapped() {
+        return bootstrapProgress >= 100;
+    }
+
+    public boolean isNetworkEnabled() {
+        return networkEnabled;
+    }
+
+    /**
+     * True if the Tor OP is fully bootstrapped and open to network connections
+     */
+    public boolean isRunning() {
+        return connected && isBootstrapped() && networkEnabled;
+    }
+
+    /**
+     * Returns the process id of the Tor OP or -1 if it isn't known
+     */
+    public int getPid() {
+        return pid;
+    }
+
+    /**
+     * Returns the addresses the Tor OP is accepting socks connections on, for example "127.0.0.1:9050"
+     */
+    public List<String> getSocksListeners() {
+        return socksListeners;
+    }
+
+    /**
+     * Returns the socks port on the IPv4 localhost address or -1 if there is no such listener
+     */
+    public int getIPv4LocalHostSocksPort() {
+        for (String address : socksListeners) {
+            if (address.startsWith("127.0.0.1:")) {
+                return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the unix domain socket the Tor OP is accepting socks connections on or null if there is none. Connect to
+     * it with {@link Socks5Client#Socks5Client(OnionProxyContext, File)} or
+     * {@link Utilities#socks5SocketConnection(String, int, OnionProxyContext, File, String, String)}.
+     */
+    public File getSocksSocketFile() {
+        for (String address : socksListeners) {
+            if (address.startsWith(UNIX_PREFIX)) {
+                return new File(address.substring(UNIX_PREFIX.length()));
+            }
+        }
+        return null;
+    }
+
+    TorState withConnected(boolean connected) {
+        return new TorState(connected, bootstrapProgress, networkEnabled, pid, socksListeners);
+    }
+
+    TorState withBootstrapProgress(int bootstrapProgress) {
+        return new TorState(connected, bootstrapProgress, networkEnabled, pid, socksListeners);
+    }
+
+    TorState withNetworkEnabled(boolean networkEnabled) {
+        return new TorState(connected, bootstrapProgress, networkEnabled, pid, socksListeners);
+    }
+
+    TorState withPid(int pid) {
+        return new TorState(connected, bootstrapProgress, networkEnabled, pid, socksListeners);
+    }
+
+    /**
+     * @param listeners the value of <code>GETINFO net/listeners/socks</code>, a space delimited list of quoted
+     *                  addresses which could be IPv4, IPv6 or unix sockets
+     */
+    TorState withSocksListeners(String listeners) {
+        List<String> addresses = new ArrayList<>();
+        if (listeners != null) {
+            for (String address : listeners.split(" ")) {
+                if (address.length() > 1 && address.startsWith("\"") && address.endsWith("\"")) {
+                    address = address.substring(1, address.length() - 1);
+                }
+                if (!address.isEmpty()) {
+                    addresses.add(address);
+                }
+            }
+        }
+        return new TorState(connected, bootstrapProgress, networkEnabled, pid,
+                Collections.unmodifiableList(addresses));
+    }
+
+    @Override
+    public String toString() {
+        return "TorState{" +
+                "connected=" + connected +
+                ", bootstrapProgress=" + bootstrapProgress +
+                ", networkEnabled=" + networkEnabled +
+                ", pid=" + pid +
+                ", socksListeners=" + socksListeners +
+                '}';
+    }
+}
@@ -0,0 +1,173 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.freehaven.tor.control.ConfigEntry;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Keeps the {@link TorState} snapshot of an OnionProxyManager up to date. Bootstrap progress comes from the
+ * BootstrapTracker and network changes from the CONF_CHANGED events Tor sends whenever any controller changes its
+ * configuration. The socks listeners and pid are refreshed with a single GETINFO on a background thread whenever
+ * they may have changed. Readers only ever do a volatile read of the current snapshot.
+ */
+final class TorStateMonitor implements BootstrapTracker.Listener, TorControlConnection.ConfChangedListener {
+    private static final Logger LOG = LoggerFactory.getLogger(TorStateMonitor.class);
+
+    private static final String DISABLE_NETWORK = "DisableNetwork";
+    private static final String PID = "process/pid";
+    private static final String SOCKS_LISTENERS = "net/listeners/socks";
+    private static final List<String> REFRESH_KEYS = Arrays.asList(PID, SOCKS_LISTENERS);
+
+    private final Object updateLock = new Object();
+    private final ExecutorService refresher;
+
+    private volatile TorState state = TorState.DISCONNECTED;
+    private volatile TorControlConnection connection;
+
+    TorStateMonitor() {
+        // No core threads, the refresher thread only lives while there is work for it
+        refresher = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "TorStateMonitor");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    TorState get() {
+        return state;
+    }
+
+    /**
+     * Called once we are authenticated on a new control connection
+     */
+    void connected(TorControlConnection connection, boolean networkEnabled) {
+        synchronized (updateLock) {
+            this.connection = connection;
+            state = TorState.DISCONNECTED.withConnected(true).withNetworkEnabled(networkEnabled);
+        }
+    }
+
+    void disconnected() {
+        synchronized (updateLock) {
+            connection = null;
+            state = TorState.DISCONNECTED;
+        }
+    }
+
+    /**
+     * Called after we change DisableNetwork. Tor opens or closes its listeners in response so they are refreshed too.
+     */
+    void networkEnabled(boolean enabled) {
+        synchronized (updateLock) {
+            if (connection == null) {
+                return;
+            }
+            state = state.withNetworkEnabled(enabled);
+        }
+        scheduleRefresh();
+    }
+
+    /**
+     * Any change may have moved the socks listeners, so they are refreshed whatever changed
+     */
+    @Override
+    public void confChanged(List<ConfigEntry> changes) {
+        synchronized (updateLock) {
+            if (connection == null) {
+                return;
+            }
+            for (ConfigEntry change : changes) {
+                if (DISABLE_NETWORK.equalsIgnoreCase(change.key)) {
+                    // Reset to its default of 0
+                    state = state.withNetworkEnabled(change.is_default || !"1".equals(change.value));
+                }
+            }
+        }
+        scheduleRefresh();
+    }
+
+    /**
+     * BootstrapTracker calls its listeners outside of its lock, so an older report can arrive after a newer one.
+     * Progress only goes down with a new connection, which {@link #connected} starts from 0.
+     */
+    @Override
+    public void bootstrapProgress(int progress, String tag, String summary) {
+        synchronized (updateLock) {
+            if (connection == null || progress < state.getBootstrapProgress()) {
+                return;
+            }
+            state = state.withBootstrapProgress(progress);
+        }
+    }
+
+    /**
+     * Refreshes the pid and socks listeners on the calling thread
+     */
+    void refresh() throws IOException {
+        TorControlConnection current = connection;
+        if (current == null) {
+            return;
+        }
+        Map<String, String> values = current.getInfo(REFRESH_KEYS);
+        int pid = parsePid(values.get(PID));
+        synchronized (updateLock) {
+            // The connection may have been replaced while we were waiting for the reply
+            if (connection != current) {
+                return;
+            }
+            state = state.withPid(pid).withSocksListeners(values.get(SOCKS_LISTENERS));
+        }
+    }
+
+    /**
+     * Refreshes the pid and socks listeners in the background. Control events are delivered on the control
+     * connection's reader thread, which would deadlock if it waited on a reply itself.
+     */
+    void scheduleRefresh() {
+        refresher.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (IOException e) {
+                    LOG.warn("Could not refresh tor state", e);
+                }
+            }
+        });
+    }
+
+    private static int parsePid(String pid) {
+        if (pid == null || pid.isEmpty()) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(pid.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -14,15 +14,22 @@ See the Apache 2 License for the specific language governing permissions and lim
 package com.msopentech.thali.toronionproxy;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
 
 public class Utilities {
     private static final int READ_TIMEOUT_MILLISECONDS = 60000;
     private static final int CONNECT_TIMEOUT_MILLISECONDS = 60000;
+    // Version, command, port, invalid IP address and the empty user id's terminating null
+    private static final int SOCKS4A_REQUEST_HEADER = 9;
+    private static final int SOCKS4A_REPLY_LENGTH = 8;
 
     private Utilities() {}
 
@@ -47,6 +54,43 @@ public class Utilities {
         // https://android.googlesource.com/platform/libcore/+/master/luni/src/main/java/java/net/PlainSocketImpl.java
         // See also: http://www.mit.edu/~foley/TinFoil/src/tinfoil/TorLib.java, for a similar implementation
 
+        Socket socket = new Socket();
+        socket.setSoTimeout(READ_TIMEOUT_MILLISECONDS);
+        socket.setTcpNoDelay(true);
+        SocketAddress socksAddress = new InetSocketAddress(socksHost, socksPort);
+        socket.connect(socksAddress, CONNECT_TIMEOUT_MILLISECONDS);
+
+        try {
+            socks4aHandshake(socket.getInputStream(), socket.getOutputStream(), networkHost, networkPort,
+                    "socksHost=" + socksHost + ",socksPort=" + socksPort);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Like {@link #socks4aSocketConnection(String, int, String, int)} but reaches the Tor Onion Proxy over the unix
+     * domain socket of its socks listener, see {@link TorState#getSocksSocketFile()}. The returned channel is in
+     * blocking mode and, unlike the socket, has no read timeout.
+     * @throws UnsupportedOperationException if the context has no unix domain socket support
+     */
+    public static SocketChannel socks4aSocketConnection(String networkHost, int networkPort, OnionProxyContext context,
+                                                        File socksSocket) throws IOException {
+        SocketChannel channel = context.openUnixDomainSocket(socksSocket);
+        try {
+            socks4aHandshake(Channels.newInputStream(channel), Channels.newOutputStream(channel), networkHost,
+                    networkPort, "socksSocket=" + socksSocket);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private static void socks4aHandshake(InputStream in, OutputStream outputStream, String networkHost,
+                                         int networkPort, String proxy) throws IOException {
         // From http://en.wikipedia.org/wiki/SOCKS#SOCKS4a:
         //
         // field 1: SOCKS version number, 1 byte, must be 0x04 for this version
@@ -58,31 +102,150 @@ public class Utilities {
         // field 5: the user ID string, variable length, terminated with a null (0x00)
         // field 6: the domain name of the host we want to contact, variable length, terminated with a null (0x00)
 
-        Socket socket = new Socket();
-        socket.setSoTimeout(READ_TIMEOUT_MILLISECONDS);
-        SocketAddress socksAddress = new InetSocketAddress(socksHost, socksPort);
-        socket.connect(socksAddress, CONNECT_TIMEOUT_MILLISECONDS);
+        // The request goes out in one write and one TCP segment, rather than one per field
+        byte[] host = networkHost.getBytes();
+        byte[] request = new byte[SOCKS4A_REQUEST_HEADER + host.length + 1];
+        request[0] = 0x04;
+        request[1] = 0x01;
+        request[2] = (byte) (networkPort >>> 8);
+        request[3] = (byte) networkPort;
+        request[7] = 0x01;
+        System.arraycopy(host, 0, request, SOCKS4A_REQUEST_HEADER, host.length);
+
+        outputStream.write(request);
+        outputStream.flush();
 
-        DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-        outputStream.write((byte)0x04);
-        outputStream.write((byte)0x01);
-        outputStream.writeShort((short)networkPort);
-        outputStream.writeInt(0x01);
-        outputStream.write((byte)0x00);
-        outputStream.write(networkHost.getBytes());
-        outputStream.write((byte)0x00);
-
-        DataInputStream inputStream = new DataInputStream(socket.getInputStream());
-        byte firstByte = inputStream.readByte();
-        byte secondByte = inputStream.readByte();
+        // The reply is 8 bytes: 0x00, status, then port and address which we don't need
+        byte[] reply = new byte[SOCKS4A_REPLY_LENGTH];
+        DataInputStream inputStream = new DataInputStream(in);
+        inputStream.readFully(reply);
+        byte firstByte = reply[0];
+        byte secondByte = reply[1];
         if (firstByte != (byte)0x00 || secondByte != (byte)0x5a) {
-            socket.close();
             throw new IOException("SOCKS4a connect failed, got " + firstByte + " - " + secondByte +
                     ", but expected 0x00 - 0x5a:, networkHost= " + networkHost + ", networkPort = " + networkPort
-                    + ", socksHost=" + socksHost + ",socksPort=" + socksPort);
+                    + ", " + proxy);
         }
-        inputStream.readShort();
-        inputStream.readInt();
-        return socket;
+    }
+
+    /**
+     * Connects through Tor's SOCKS5 port, optionally with a username and password. Tor doesn't check the credentials
+     * but, with IsolateSOCKSAuth which is on by default, only puts streams with the same credentials on the same
+     * circuit. {@link IsolationKeyAllocator} hands out credentials that spread streams over circuits.
+     * @param networkHost DNS or IP address of destination host, sent to Tor as a name so onion addresses work
+     * @param networkPort Port of destination host
+     * @param socksHost DNS or IP address of the Tor Onion Proxy's SOCKS port
+     * @param socksPort Port of the Tor Onion Proxy's SOCKS port
+     * @param username SOCKS5 username, or null to connect without credentials
+     * @param password SOCKS5 password, or null to connect without credentials
+     * @return A socket set up to relay via the Tor Network to the destination host
+     * @throws Socks5Exception if Tor refused the request, with Tor's reply code
+     * @throws IOException Networking issues
+     */
+    public static Socket socks5SocketConnection(String networkHost, int networkPort, String socksHost, int socksPort,
+                                                String username, String password) throws IOException {
+        checkSocks5Arguments(networkHost, username, password);
+
+        Socket socket = new Socket();
+        socket.setSoTimeout(READ_TIMEOUT_MILLISECONDS);
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(socksHost, socksPort), CONNECT_TIMEOUT_MILLISECONDS);
+        try {
+            socks5Handshake(socket.getInputStream(), socket.getOutputStream(), networkHost, networkPort, username,
+                    password);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Like {@link #socks5SocketConnection(String, int, String, int, String, String)} but reaches the Tor Onion Proxy
+     * over the unix domain socket of its socks listener, see {@link TorState#getSocksSocketFile()}. The returned
+     * channel is in blocking mode and, unlike the socket, has no read timeout.
+     * @throws UnsupportedOperationException if the context has no unix domain socket support
+     */
+    public static SocketChannel socks5SocketConnection(String networkHost, int networkPort, OnionProxyContext context,
+                                                       File socksSocket, String username, String password)
+            throws IOException {
+        checkSocks5Arguments(networkHost, username, password);
+
+        SocketChannel channel = context.openUnixDomainSocket(socksSocket);
+        try {
+            socks5Handshake(Channels.newInputStream(channel), Channels.newOutputStream(channel), networkHost,
+                    networkPort, username, password);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void checkSocks5Arguments(String networkHost, String username, String password)
+            throws IOException {
+        if ((username == null) != (password == null)) {
+            throw new IllegalArgumentException("username and password must be given together");
+        }
+        byte[] host = networkHost.getBytes("UTF-8");
+        byte[] user = username == null ? null : username.getBytes("UTF-8");
+        byte[] pass = password == null ? null : password.getBytes("UTF-8");
+        if (host.length > 255 || (user != null && (user.length == 0 || user.length > 255 || pass.length > 255))) {
+            throw new IllegalArgumentException("host, username and password must be at most 255 bytes");
+        }
+    }
+
+    /**
+     * RFC 1928 and, for the credentials, RFC 1929. Each message goes out in a single write.
+     */
+    private static void socks5Handshake(InputStream in, OutputStream outputStream, String networkHost,
+                                        int networkPort, String username, String password) throws IOException {
+        byte[] host = networkHost.getBytes("UTF-8");
+        byte[] user = username == null ? null : username.getBytes("UTF-8");
+        byte[] pass = password == null ? null : password.getBytes("UTF-8");
+        DataInputStream inputStream = new DataInputStream(in);
+        byte method = user == null ? (byte) 0x00 : (byte) 0x02;
+        outputStream.write(new byte[]{0x05, 0x01, method});
+        byte[] reply = new byte[2];
+        inputStream.readFully(reply);
+        if (reply[0] != 0x05 || reply[1] != method) {
+            throw new IOException("SOCKS5 proxy doesn't accept our authentication method, got " + reply[0]
+                    + " - " + reply[1]);
+        }
+
+        if (user != null) {
+            byte[] auth = new byte[3 + user.length + pass.length];
+            auth[0] = 0x01;
+            auth[1] = (byte) user.length;
+            System.arraycopy(user, 0, auth, 2, user.length);
+            auth[2 + user.length] = (byte) pass.length;
+            System.arraycopy(pass, 0, auth, 3 + user.length, pass.length);
+            outputStream.write(auth);
+            inputStream.readFully(reply);
+            if (reply[1] != 0x00) {
+                throw new IOException("SOCKS5 proxy rejected the username and password");
+            }
+        }
+
+        byte[] request = new byte[7 + host.length];
+        request[0] = 0x05;
+        request[1] = 0x01;
+        request[3] = 0x03;
+        request[4] = (byte) host.length;
+        System.arraycopy(host, 0, request, 5, host.length);
+        request[5 + host.length] = (byte) (networkPort >>> 8);
+        request[6 + host.length] = (byte) networkPort;
+        outputStream.write(request);
+
+        // Version, reply code, reserved, address type and the first address byte, then the rest of the address
+        byte[] head = new byte[5];
+        inputStream.readFully(head);
+        if (head[0] != 0x05) {
+            throw new IOException("Not a SOCKS5 reply, version " + head[0]);
+        }
+        if (head[1] != 0x00) {
+            throw new Socks5Exception(head[1] & 0xFF, networkHost, networkPort);
+        }
+        inputStream.readFully(new byte[Socks5Client.replyLength(head[3], head[4]) - head.length]);
     }
 }
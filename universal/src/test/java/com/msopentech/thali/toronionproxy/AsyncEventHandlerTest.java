@@ -0,0 +1,135 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import net.freehaven.tor.control.EventHandler;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncEventHandlerTest {
+
+    /**
+     * Blocks on the first event until released and records the bandwidth and messages it sees. Bandwidth events show up
+     * as "+" among the messages.
+     */
+    private static class SlowHandler implements EventHandler {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final StringBuffer messages = new StringBuffer();
+        volatile long read;
+        volatile int bandwidthEvents;
+        final CountDownLatch done;
+
+        SlowHandler(int expectedEvents) {
+            done = new CountDownLatch(expectedEvents);
+        }
+
+        private void block() {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void circuitStatus(String status, String id, String path) {
+            block();
+            done.countDown();
+        }
+
+        public void streamStatus(String status, String id, String target) {
+        }
+
+        public void orConnStatus(String status, String orName) {
+        }
+
+        public void bandwidthUsed(long read, long written) {
+            this.read += read;
+            bandwidthEvents++;
+            messages.append('+');
+            done.countDown();
+        }
+
+        public void newDescriptors(List<String> orList) {
+        }
+
+        public void message(String severity, String msg) {
+            messages.append(msg);
+            done.countDown();
+        }
+
+        public void unrecognized(String type, String msg) {
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void coalescesBandwidthBehindSlowHandler() throws InterruptedException {
+        SlowHandler slow = new SlowHandler(5);
+        AsyncEventHandler handler = new AsyncEventHandler(slow, 4,
+                AsyncEventHandler.OverflowPolicy.COALESCE_BANDWIDTH);
+        handler.circuitStatus("BUILT", "1", "");
+        slow.started.await();
+        // The reader thread isn't held up while the handler is stuck. Once the buffer is full, the rest is added to
+        // the last bandwidth event.
+        for (int i = 0; i < 100; i++) {
+            handler.bandwidthUsed(10, 0);
+        }
+        slow.release.countDown();
+        assertTrue(slow.done.await(5, TimeUnit.SECONDS));
+        assertEquals(1000, slow.read);
+        assertEquals(4, slow.bandwidthEvents);
+        assertEquals(0, handler.getDroppedCount());
+        handler.close();
+    }
+
+    @Test(timeout = 10000)
+    public void keepsBandwidthInOrderWhileThereIsRoom() throws InterruptedException {
+        SlowHandler slow = new SlowHandler(4);
+        AsyncEventHandler handler = new AsyncEventHandler(slow, 4,
+                AsyncEventHandler.OverflowPolicy.COALESCE_BANDWIDTH);
+        handler.circuitStatus("BUILT", "1", "");
+        slow.started.await();
+        handler.bandwidthUsed(10, 0);
+        handler.message("NOTICE", "a");
+        handler.bandwidthUsed(20, 0);
+        slow.release.countDown();
+        assertTrue(slow.done.await(5, TimeUnit.SECONDS));
+        assertEquals("+a+", slow.messages.toString());
+        assertEquals(30, slow.read);
+        handler.close();
+    }
+
+    @Test(timeout = 10000)
+    public void dropsOldestWhenFull() throws InterruptedException {
+        SlowHandler slow = new SlowHandler(3);
+        AsyncEventHandler handler = new AsyncEventHandler(slow, 2, AsyncEventHandler.OverflowPolicy.DROP_OLDEST);
+        handler.circuitStatus("BUILT", "1", "");
+        slow.started.await();
+        handler.message("NOTICE", "a");
+        handler.message("NOTICE", "b");
+        handler.message("NOTICE", "c");
+        slow.release.countDown();
+        assertTrue(slow.done.await(5, TimeUnit.SECONDS));
+        assertEquals("bc", slow.messages.toString());
+        assertEquals(1, handler.getDroppedCount());
+        handler.close();
+    }
+}
@@ -0,0 +1,201 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncTorControlClientTest {
+
+    /**
+     * Records each command and answers GETINFO with <code>key=value-of-key</code> lines, or with 552 if a key
+     * starts with "bad". Holds the reply to the first command until released, so that later requests queue up.
+     */
+    private static final class FakeTor extends Writer {
+        final List<String> commands = new ArrayList<>();
+        final CountDownLatch firstCommand = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final PipedWriter replies = new PipedWriter();
+        final PipedReader reader;
+        private final StringBuilder command = new StringBuilder();
+        volatile boolean broken;
+
+        FakeTor() throws IOException {
+            reader = new PipedReader(replies, 8192);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            command.append(chars, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            String line = command.toString().trim();
+            command.setLength(0);
+            synchronized (commands) {
+                commands.add(line);
+            }
+            firstCommand.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            replies.write(reply(line));
+            replies.flush();
+        }
+
+        private String reply(String line) {
+            if (broken) {
+                return "551 Internal error\r\n";
+            }
+            String[] words = line.split(" ");
+            if (!words[0].equals("GETINFO")) {
+                return "250 OK\r\n";
+            }
+            StringBuilder reply = new StringBuilder();
+            for (int i = 1; i < words.length; i++) {
+                if (words[i].startsWith("bad")) {
+                    return "552 Unrecognized key \"" + words[i] + "\"\r\n";
+                }
+                reply.append("250-").append(words[i]).append("=value-of-").append(words[i]).append("\r\n");
+            }
+            return reply.append("250 OK\r\n").toString();
+        }
+
+        List<String> getCommands() {
+            synchronized (commands) {
+                return new ArrayList<>(commands);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private FakeTor tor;
+    private AsyncTorControlClient client;
+
+    private void connect() throws IOException {
+        tor = new FakeTor();
+        TorControlConnection connection = new TorControlConnection(tor.reader, tor);
+        connection.launchThread(true);
+        client = new AsyncTorControlClient(connection);
+    }
+
+    @After
+    public void tearDown() {
+        if (client != null) {
+            client.close();
+        }
+        if (tor != null) {
+            tor.release.countDown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void coalescesQueuedGetInfoIntoOneCommand() throws Exception {
+        connect();
+        CompletableFuture<String> first = client.getInfo("version");
+        tor.firstCommand.await();
+        List<CompletableFuture<String>> queued = new ArrayList<>();
+        for (String key : Arrays.asList("a", "b", "c")) {
+            queued.add(client.getInfo(key));
+        }
+        tor.release.countDown();
+
+        assertEquals("value-of-version", first.get());
+        assertEquals("value-of-a", queued.get(0).get());
+        assertEquals("value-of-b", queued.get(1).get());
+        assertEquals("value-of-c", queued.get(2).get());
+        assertEquals(Arrays.asList("GETINFO version", "GETINFO a b c"), tor.getCommands());
+    }
+
+    @Test(timeout = 10000)
+    public void badKeyOnlyFailsItsOwnRequest() throws Exception {
+        connect();
+        client.getInfo("version");
+        tor.firstCommand.await();
+        CompletableFuture<String> good = client.getInfo("a");
+        CompletableFuture<String> bad = client.getInfo("bad-key");
+        tor.release.countDown();
+
+        assertEquals("value-of-a", good.get());
+        try {
+            bad.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(Arrays.asList("GETINFO version", "GETINFO a bad-key", "GETINFO a", "GETINFO bad-key"),
+                tor.getCommands());
+    }
+
+    @Test(timeout = 10000)
+    public void failureReachesEveryWaiter() throws Exception {
+        connect();
+        tor.broken = true;
+        CompletableFuture<String> first = client.getInfo("version");
+        tor.firstCommand.await();
+        List<CompletableFuture<?>> queued = new ArrayList<>();
+        queued.add(first);
+        queued.add(client.getInfo("a"));
+        queued.add(client.getInfo("b"));
+        queued.add(client.getConf("SocksPort"));
+        tor.release.countDown();
+
+        for (CompletableFuture<?> future : queued) {
+            try {
+                future.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void closeFailsPendingRequests() throws Exception {
+        connect();
+        client.getInfo("version");
+        tor.firstCommand.await();
+        CompletableFuture<String> pending = client.getInfo("a");
+        CompletableFuture<Void> signal = client.signal("NEWNYM");
+
+        client.close();
+        assertTrue(client.isClosed());
+        for (CompletableFuture<?> future : Arrays.asList(pending, signal, client.getInfo("b"))) {
+            try {
+                future.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertEquals("AsyncTorControlClient is closed", e.getCause().getMessage());
+            }
+        }
+    }
+}
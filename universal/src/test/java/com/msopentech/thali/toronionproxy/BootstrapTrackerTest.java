@@ -0,0 +1,91 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BootstrapTrackerTest {
+
+    @Test
+    public void parsesStatusClientEvent() {
+        BootstrapTracker tracker = new BootstrapTracker();
+        tracker.unrecognized("STATUS_CLIENT",
+                "NOTICE BOOTSTRAP PROGRESS=45 TAG=requesting_descriptors SUMMARY=\"Asking for relay descriptors\"");
+        assertEquals(45, tracker.getProgress());
+        assertEquals("requesting_descriptors", tracker.getTag());
+        assertEquals("Asking for relay descriptors", tracker.getSummary());
+        assertFalse(tracker.isComplete());
+    }
+
+    @Test
+    public void ignoresOtherStatusEvents() {
+        BootstrapTracker tracker = new BootstrapTracker();
+        assertFalse(tracker.update("NOTICE CIRCUIT_ESTABLISHED"));
+        tracker.unrecognized("STATUS_GENERAL", "NOTICE BOOTSTRAP PROGRESS=100 TAG=done SUMMARY=\"Done\"");
+        assertEquals(0, tracker.getProgress());
+    }
+
+    @Test
+    public void completesOnDone() throws InterruptedException {
+        BootstrapTracker tracker = new BootstrapTracker();
+        assertFalse(tracker.awaitCompletion(1, TimeUnit.MILLISECONDS));
+        tracker.update("NOTICE BOOTSTRAP PROGRESS=100 TAG=done SUMMARY=\"Done\"");
+        assertTrue(tracker.awaitCompletion(0, TimeUnit.MILLISECONDS));
+        assertTrue(tracker.isComplete());
+    }
+
+    @Test
+    public void ignoresStaleProgress() {
+        BootstrapTracker tracker = new BootstrapTracker();
+        tracker.update("NOTICE BOOTSTRAP PROGRESS=80 TAG=ap_conn SUMMARY=\"Connecting\"");
+        tracker.update("NOTICE BOOTSTRAP PROGRESS=50 TAG=loading_descriptors SUMMARY=\"Loading\"");
+        assertEquals(80, tracker.getProgress());
+    }
+
+    @Test
+    public void resetWaitsForNextBootstrap() throws InterruptedException {
+        BootstrapTracker tracker = new BootstrapTracker();
+        tracker.update("NOTICE BOOTSTRAP PROGRESS=100 TAG=done SUMMARY=\"Done\"");
+        tracker.reset();
+        assertEquals(0, tracker.getProgress());
+        assertFalse(tracker.awaitCompletion(1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void resetReleasesWaiters() throws InterruptedException {
+        final BootstrapTracker tracker = new BootstrapTracker();
+        Thread stopper = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                tracker.reset();
+            }
+        };
+        stopper.start();
+        long start = System.nanoTime();
+        assertFalse(tracker.awaitCompletion(10, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        stopper.join();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CacheSnapshotTest {
+    // 2019-06-01 14:00:00 UTC
+    private static final long NOW = 1559397600000L;
+    private static final String FRESH_CONSENSUS = "network-status-version 3 microdesc\n"
+            + "valid-after 2019-06-01 12:00:00\n"
+            + "valid-until 2019-06-01 15:00:00\nr relay1\n"
+            + "-----BEGIN SIGNATURE-----\nAAAA\n-----END SIGNATURE-----\n";
+    private static final String STALE_CONSENSUS = FRESH_CONSENSUS.replace("15:00:00", "13:00:00");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void seedsFromFreshDirectorySnapshot() throws IOException {
+        File snapshot = snapshotDir("1", FRESH_CONSENSUS);
+        File dataDir = folder.newFolder("data");
+
+        assertTrue(CacheSnapshot.needsSeed(dataDir, NOW));
+        List<File> seeded = CacheSnapshot.seedFromDirectory(snapshot, dataDir, NOW);
+        assertEquals(3, seeded.size());
+        assertFalse(CacheSnapshot.needsSeed(dataDir, NOW));
+        // The shared snapshot is only read
+        assertTrue(new File(snapshot, CacheSnapshot.CONSENSUS).exists());
+    }
+
+    @Test
+    public void ignoresStaleOrUnknownSnapshots() throws IOException {
+        File dataDir = folder.newFolder("data");
+        assertTrue(CacheSnapshot.seedFromDirectory(snapshotDir("1", STALE_CONSENSUS), dataDir, NOW).isEmpty());
+        assertTrue(CacheSnapshot.seedFromDirectory(snapshotDir("2", FRESH_CONSENSUS), dataDir, NOW).isEmpty());
+        assertEquals(0, dataDir.list().length);
+    }
+
+    @Test
+    public void seedsFromZipAndSkipsUnknownEntries() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        entry(zip, CacheSnapshot.MANIFEST, "format=1\n");
+        entry(zip, CacheSnapshot.CONSENSUS, FRESH_CONSENSUS);
+        entry(zip, DataDirInspector.CACHED_CERTS, "dir-key-certificate-version 3\n");
+        entry(zip, "../torrc", "SocksPort 9050\n");
+        zip.close();
+        File dataDir = folder.newFolder("data");
+
+        List<File> seeded = CacheSnapshot.seedFromZip(new ByteArrayInputStream(bytes.toByteArray()), dataDir, NOW);
+        assertEquals(2, seeded.size());
+        assertEquals(2, dataDir.list().length);
+        assertFalse(new File(folder.getRoot(), "torrc").exists());
+    }
+
+    @Test
+    public void stopsReadingStaleZipAfterConsensus() throws IOException {
+        byte[] microdescs = new byte[256 * 1024];
+        new Random(1).nextBytes(microdescs);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        entry(zip, CacheSnapshot.MANIFEST, "format=1\n");
+        entry(zip, CacheSnapshot.CONSENSUS, STALE_CONSENSUS);
+        zip.putNextEntry(new ZipEntry("cached-microdescs"));
+        zip.write(microdescs);
+        zip.closeEntry();
+        zip.close();
+        final int[] read = new int[1];
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes.toByteArray()) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                int n = super.read(b, off, len);
+                read[0] += Math.max(n, 0);
+                return n;
+            }
+        };
+        File dataDir = folder.newFolder("data");
+
+        assertTrue(CacheSnapshot.seedFromZip(in, dataDir, NOW).isEmpty());
+        assertTrue(read[0] < microdescs.length);
+        assertEquals(0, dataDir.list().length);
+    }
+
+    @Test
+    public void rejectsZipWithoutConsensusFirst() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        entry(zip, CacheSnapshot.MANIFEST, "format=1\n");
+        entry(zip, DataDirInspector.CACHED_CERTS, "dir-key-certificate-version 3\n");
+        entry(zip, CacheSnapshot.CONSENSUS, FRESH_CONSENSUS);
+        zip.close();
+        File dataDir = folder.newFolder("data");
+
+        assertTrue(CacheSnapshot.seedFromZip(new ByteArrayInputStream(bytes.toByteArray()), dataDir, NOW).isEmpty());
+        assertEquals(0, dataDir.list().length);
+    }
+
+    private File snapshotDir(String format, String consensus) throws IOException {
+        File dir = folder.newFolder();
+        write(new File(dir, CacheSnapshot.MANIFEST), "format=" + format + "\n");
+        write(new File(dir, CacheSnapshot.CONSENSUS), consensus);
+        write(new File(dir, DataDirInspector.CACHED_CERTS), "dir-key-certificate-version 3\n");
+        write(new File(dir, "cached-microdescs"), "onion-key\n");
+        return dir;
+    }
+
+    private static void entry(ZipOutputStream zip, String name, String content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content.getBytes("UTF-8"));
+        zip.closeEntry();
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A short-lived stand-in for a Tor process, run in a JVM of its own. Each argument is a step:
+ * <code>out:text</code> and <code>err:text</code> write a line, <code>tail:text</code> writes text without a line
+ * end, <code>long:n</code> writes a line of n characters, <code>sleep:millis</code> waits, <code>hang:</code> makes
+ * the process ignore a polite {@link Process#destroy()} and <code>exit:code</code> exits.
+ */
+final class ChildProcess {
+
+    static Process start(String... steps) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ChildProcess.class.getName());
+        command.addAll(Arrays.asList(steps));
+        return new ProcessBuilder(command).start();
+    }
+
+    public static void main(String[] steps) throws InterruptedException {
+        for (String step : steps) {
+            int colon = step.indexOf(':');
+            String action = step.substring(0, colon);
+            String argument = step.substring(colon + 1);
+            switch (action) {
+                case "out":
+                    System.out.print(argument + "\n");
+                    break;
+                case "err":
+                    System.err.print(argument + "\n");
+                    break;
+                case "tail":
+                    System.out.print(argument);
+                    break;
+                case "long":
+                    char[] line = new char[Integer.parseInt(argument)];
+                    Arrays.fill(line, 'x');
+                    System.out.print(new String(line) + "\n");
+                    break;
+                case "sleep":
+                    System.out.flush();
+                    Thread.sleep(Long.parseLong(argument));
+                    break;
+                case "hang":
+                    // Shutdown hooks run on SIGTERM and the JVM doesn't exit until they're done
+                    Runtime.getRuntime().addShutdownHook(new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                Thread.sleep(Long.MAX_VALUE);
+                            } catch (InterruptedException e) {
+                                // Exit
+                            }
+                        }
+                    });
+                    break;
+                case "exit":
+                    System.out.flush();
+                    System.exit(Integer.parseInt(argument));
+                    break;
+                default:
+                    throw new IllegalArgumentException(step);
+            }
+        }
+        System.out.flush();
+    }
+
+    private ChildProcess() {
+    }
+}
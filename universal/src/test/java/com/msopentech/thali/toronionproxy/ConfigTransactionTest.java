@@ -0,0 +1,76 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import net.freehaven.tor.control.ConfigEntry;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigTransactionTest {
+
+    private static ConfigTransaction transaction() {
+        // Nothing here commits, so no manager is needed
+        return new ConfigTransaction(null);
+    }
+
+    @Test
+    public void resetSendsDefaultEntry() {
+        List<ConfigEntry> entries = transaction().set("ExitNodes", "{de}").reset("StrictNodes").getEntries();
+        assertEquals(2, entries.size());
+        assertEquals("ExitNodes", entries.get(0).key);
+        assertEquals("{de}", entries.get(0).value);
+        assertFalse(entries.get(0).is_default);
+        assertEquals("StrictNodes", entries.get(1).key);
+        assertTrue(entries.get(1).is_default);
+    }
+
+    @Test
+    public void networkStateFollowsLastDisableNetwork() {
+        assertNull(transaction().set("ExitNodes", "{de}").getNetworkEnabled());
+        assertEquals(Boolean.FALSE, transaction().set("DisableNetwork", true).getNetworkEnabled());
+        assertEquals(Boolean.TRUE, transaction().set("DisableNetwork", true).set("DisableNetwork", false)
+                .getNetworkEnabled());
+        assertEquals(Boolean.TRUE, transaction().set("DisableNetwork", true).reset("DisableNetwork")
+                .getNetworkEnabled());
+    }
+
+    @Test
+    public void restartNetworkDisablesNetworkOnce() {
+        ConfigTransaction transaction = transaction().set("DisableNetwork", false).set("ExitNodes", "{de}")
+                .restartNetwork(true);
+        List<ConfigEntry> entries = transaction.getEntries();
+        assertEquals(2, entries.size());
+        assertEquals("ExitNodes", entries.get(0).key);
+        assertEquals("DisableNetwork", entries.get(1).key);
+        assertEquals("1", entries.get(1).value);
+        assertTrue(transaction.isRestartNetwork());
+        assertEquals(Boolean.TRUE, transaction.getNetworkEnabled());
+    }
+
+    @Test
+    public void restartNetworkLeavesDisabledNetworkAlone() {
+        ConfigTransaction transaction = transaction().set("DisableNetwork", true).restartNetwork(true);
+        List<ConfigEntry> entries = transaction.getEntries();
+        assertEquals(1, entries.size());
+        assertEquals("1", entries.get(0).value);
+        assertFalse(transaction.isRestartNetwork());
+        assertEquals(Boolean.FALSE, transaction.getNetworkEnabled());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import java.io.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ControlConnectionSupervisorTest {
+
+    private static final class Recorder implements ControlConnectionSupervisor.Supervised {
+        final TorControlConnection connection;
+        TorControlConnection recovered;
+
+        Recorder(TorControlConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public TorControlConnection getSupervisedConnection() {
+            return connection;
+        }
+
+        @Override
+        public void recoverControlConnection(TorControlConnection deadConnection) {
+            recovered = deadConnection;
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void recoversWhenReaderThreadExits() throws InterruptedException {
+        TorControlConnection connection = new TorControlConnection(new StringReader(""), new StringWriter());
+        connection.launchThread(true).join();
+        Recorder recorder = new Recorder(connection);
+        new ControlConnectionSupervisor(recorder).check(1000);
+        assertEquals(connection, recorder.recovered);
+    }
+
+    @Test(timeout = 10000)
+    public void recoversWhenHeartbeatIsNotAnswered() throws IOException {
+        // Tor never replies on this connection
+        PipedWriter replies = new PipedWriter();
+        TorControlConnection connection = new TorControlConnection(new PipedReader(replies), new StringWriter());
+        connection.launchThread(true);
+        Recorder recorder = new Recorder(connection);
+        new ControlConnectionSupervisor(recorder).check(100);
+        assertEquals(connection, recorder.recovered);
+    }
+
+    @Test(timeout = 10000)
+    public void reusesHeartbeatThreadAfterTimeouts() throws IOException, InterruptedException {
+        PipedWriter replies = new PipedWriter();
+        TorControlConnection connection = new TorControlConnection(new PipedReader(replies), new StringWriter());
+        connection.launchThread(true);
+        ControlConnectionSupervisor supervisor = new ControlConnectionSupervisor(new Recorder(connection));
+        int before = threads("ControlConnectionHeartbeat");
+        for (int i = 0; i < 3; i++) {
+            supervisor.check(100);
+        }
+        // Each unanswered heartbeat is cancelled rather than left behind on a thread of its own
+        assertTrue(threads("ControlConnectionHeartbeat") <= before + 1);
+    }
+
+    @Test(timeout = 10000)
+    public void closeEndsSupervisorThread() throws InterruptedException {
+        ControlConnectionSupervisor supervisor = new ControlConnectionSupervisor(new Recorder(null));
+        int before = threads("ControlConnectionSupervisor");
+        supervisor.start(60000);
+        assertEquals(before + 1, threads("ControlConnectionSupervisor"));
+
+        supervisor.close();
+        while (threads("ControlConnectionSupervisor") > before) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static int threads(String name) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name) && thread.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void ignoresMissingConnection() {
+        Recorder recorder = new Recorder(null);
+        new ControlConnectionSupervisor(recorder).check(100);
+        assertNull(recorder.recovered);
+    }
+}
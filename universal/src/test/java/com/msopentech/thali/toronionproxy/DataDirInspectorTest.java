@@ -0,0 +1,102 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class DataDirInspectorTest {
+    // 2019-06-01 14:00:00 UTC
+    private static final long NOW = 1559397600000L;
+    private static final String CONSENSUS_HEADER = "network-status-version 3 microdesc\n"
+            + "vote-status consensus\n"
+            + "valid-after 2019-06-01 12:00:00\n"
+            + "fresh-until 2019-06-01 13:00:00\n";
+    private static final String CONSENSUS_TRAILER = "directory-signature 0232AF9\n"
+            + "-----BEGIN SIGNATURE-----\nAAAA\n-----END SIGNATURE-----\n";
+
+    @Rule
+    public TemporaryFolder dataDir = new TemporaryFolder();
+
+    @Test
+    public void keepsHealthyCache() throws IOException {
+        write("cached-microdesc-consensus",
+                CONSENSUS_HEADER + "valid-until 2019-06-01 15:00:00\nr relay1\n" + CONSENSUS_TRAILER);
+        write("cached-microdescs", "onion-key\n");
+        write("cached-certs", "dir-key-certificate-version 3\n");
+        write("state", "# Tor state file\nGuard in=default\nLastWritten 2019-06-01 12:00:00\n");
+        dataDir.newFolder("keys");
+
+        assertEquals(0, DataDirInspector.findStaleFiles(dataDir.getRoot(), NOW).size());
+    }
+
+    @Test
+    public void findsStaleAndDamagedFiles() throws IOException {
+        write("cached-microdesc-consensus",
+                CONSENSUS_HEADER + "valid-until 2019-06-01 13:30:00\nr relay1\n" + CONSENSUS_TRAILER);
+        write("cached-consensus", CONSENSUS_HEADER + "valid-until 2019-06-01 15:00:00\nr relay1\nr rel");
+        write("cached-microdescs", "onion-key\n");
+        write("cached-microdescs.new.tmp", "onion");
+        write("cached-certs", "");
+        write("state", "# Tor state file\nGuard in=default\nLastWri");
+        write("lock", "");
+
+        assertEquals(names("cached-microdesc-consensus", "cached-consensus", "cached-microdescs.new.tmp",
+                "cached-certs", "state", "lock"),
+                names(DataDirInspector.findStaleFiles(dataDir.getRoot(), NOW)));
+    }
+
+    @Test
+    public void rejectsMissingOrMalformedValidUntil() {
+        assertEquals(-1, DataDirInspector.parseValidUntil(CONSENSUS_HEADER));
+        assertEquals(-1, DataDirInspector.parseValidUntil(CONSENSUS_HEADER + "valid-until yesterday\n"));
+        assertEquals(NOW, DataDirInspector.parseValidUntil(CONSENSUS_HEADER + "valid-until 2019-06-01 14:00:00\n"));
+    }
+
+    private void write(String name, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(new File(dataDir.getRoot(), name));
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Set<String> names(String... names) {
+        Set<String> result = new HashSet<>();
+        for (String name : names) {
+            result.add(name);
+        }
+        return result;
+    }
+
+    private static Set<String> names(List<File> files) {
+        Set<String> result = new HashSet<>();
+        for (File file : files) {
+            result.add(file.getName());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.toronionproxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plays an OnionProxyManager without a Tor OP. {@link #start()} launches nothing but reports a finished bootstrap, so
+ * {@link #installAndStart(int)} runs the real pipeline around it. Status queries answer from {@link #state}, which
+ * tests change to make the Tor OP look running or not, and {@link #stop()} only records that it was called.
+ */
+class FakeOnionProxyManager extends OnionProxyManager {
+    static final TorState RUNNING = TorState.DISCONNECTED.withConnected(true).withBootstrapProgress(100)
+            .withNetworkEnabled(true);
+
+    /**
+     * The slot or shard the manager was created for
+     */
+    final int index;
+    volatile TorState state = RUNNING;
+    volatile boolean started;
+    volatile boolean stopped;
+    /**
+     * How many of the first calls to {@link #start()} fail
+     */
+    volatile int failingStarts;
+    final AtomicInteger starts = new AtomicInteger();
+
+    FakeOnionProxyManager(int index, File configDir) {
+        this(index, new Context(configDir));
+    }
+
+    FakeOnionProxyManager(int index, OnionProxyContext context) {
+        super(context);
+        this.index = index;
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (starts.incrementAndGet() <= failingStarts) {
+            throw new IOException("Start " + starts.get() + " failed");
+        }
+        started = true;
+        getBootstrapTracker().update("NOTICE BOOTSTRAP PROGRESS=100 TAG=done SUMMARY=\"Done\"");
+    }
+
+    @Override
+    public TorState getTorState() {
+        return state;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return state.isRunning();
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+        state = TorState.DISCONNECTED;
+    }
+
+    /**
+     * A context with, unless given them, a default config in <code>configDir</code> and an installer that does nothing
+     */
+    static class Context extends OnionProxyContext {
+        /**
+         * When set, unix domain sockets are "supported" and every one of them is a TCP connection to this address
+         */
+        volatile InetSocketAddress unixSocketStandIn;
+
+        Context(File configDir) {
+            this(TorConfig.createDefault(configDir));
+        }
+
+        Context(TorConfig config) {
+            this(config, new TorInstaller() {
+                @Override
+                public void setup() {
+                }
+
+                @Override
+                public void updateTorConfigCustom(String content) {
+                }
+
+                @Override
+                public InputStream openBridgesStream() {
+                    return null;
+                }
+            }, null);
+        }
+
+        Context(File configDir, TorInstaller installer, TorSettings settings) {
+            this(TorConfig.createDefault(configDir), installer, settings);
+        }
+
+        Context(TorConfig config, TorInstaller installer, TorSettings settings) {
+            super(config, installer, settings);
+        }
+
+        @Override
+        public String getProcessId() {
+            return "1";
+        }
+
+        @Override
+        public WriteObserver generateWriteObserver(final File file) {
+            return new WriteObserver() {
+                @Override
+                public boolean poll(long timeout, TimeUnit unit) {
+                    long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+                    while (file.length() == 0) {
+                        if (System.currentTimeMillis() >= deadline) {
+                            return false;
+                        }
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            };
+        }
+
+        @Override
+        public boolean supportsUnixDomainSockets() {
+            return unixSocketStandIn != null;
+        }
+
+        @Override
+        public SocketChannel openUnixDomainSocket(File socketFile) throws IOException {
+            if (unixSocketStandIn == null) {
+                return super.openUnixDomainSocket(socketFile);
+            }
+            return SocketChannel.open(unixSocketStandIn);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Plays a SOCKS4a proxy on the loopback interface. Each connection gets the reply as soon as its request is
+ * complete, and then the connection is closed.
+ */
+final class FakeSocks4aServer extends Thread {
+    static final byte GRANTED = 0x5a;
+    static final byte REJECTED = 0x5b;
+
+    private final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    private final byte status;
+    volatile byte[] lastRequest;
+
+    FakeSocks4aServer(byte status) throws IOException {
+        super("FakeSocks4aServer");
+        this.status = status;
+        setDaemon(true);
+        start();
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    void close() throws IOException {
+        server.close();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                try {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    ByteArrayOutputStream request = new ByteArrayOutputStream();
+                    byte[] fixed = new byte[8];
+                    in.readFully(fixed);
+                    request.write(fixed);
+                    // User id and host name, each terminated by a null
+                    for (int nulls = 0; nulls < 2; ) {
+                        int b = in.read();
+                        if (b == -1) {
+                            throw new IOException("Request cut short");
+                        }
+                        request.write(b);
+                        if (b == 0) {
+                            nulls++;
+                        }
+                    }
+                    lastRequest = request.toByteArray();
+                    OutputStream out = socket.getOutputStream();
+                    out.write(new byte[]{0, status, 0, 0, 0, 0, 0, 0});
+                    out.flush();
+                } catch (IOException e) {
+                    // Next connection
+                } finally {
+                    socket.close();
+                }
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+}
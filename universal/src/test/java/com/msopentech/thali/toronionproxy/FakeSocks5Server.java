@@ -0,0 +1,97 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Plays a SOCKS5 proxy on the loopback interface and records the last request. The reply carries a domain address and
+ * is split over two writes, and is followed by one byte, 42, as if from the destination.
+ */
+final class FakeSocks5Server extends Thread {
+    final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    final boolean requireAuth;
+    final int reply;
+    final ByteArrayOutputStream request = new ByteArrayOutputStream();
+    volatile String username;
+    volatile String password;
+
+    FakeSocks5Server(boolean requireAuth, int reply) throws IOException {
+        super("FakeSocks5Server");
+        this.requireAuth = requireAuth;
+        this.reply = reply;
+        setDaemon(true);
+        start();
+    }
+
+    InetSocketAddress address() {
+        return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            try {
+                handle(socket);
+            } catch (IOException e) {
+                // The test sees the failure through the client
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        in.readByte();
+        byte[] methods = new byte[in.readUnsignedByte()];
+        in.readFully(methods);
+        out.write(new byte[]{5, (byte) (requireAuth ? 2 : 0)});
+        if (requireAuth) {
+            in.readByte();
+            byte[] user = new byte[in.readUnsignedByte()];
+            in.readFully(user);
+            byte[] pass = new byte[in.readUnsignedByte()];
+            in.readFully(pass);
+            username = new String(user, "UTF-8");
+            password = new String(pass, "UTF-8");
+            out.write(new byte[]{1, 0});
+        }
+        byte[] header = new byte[5];
+        in.readFully(header);
+        byte[] rest = new byte[(header[4] & 0xFF) + 2];
+        in.readFully(rest);
+        synchronized (request) {
+            request.reset();
+            request.write(header);
+            request.write(rest);
+        }
+        out.write(new byte[]{5, (byte) reply, 0, 3, 4});
+        out.flush();
+        out.write(new byte[]{'h', 'o', 's', 't', 0, 80, 42});
+        out.flush();
+    }
+}
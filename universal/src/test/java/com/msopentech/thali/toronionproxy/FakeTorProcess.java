@@ -0,0 +1,124 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A stand-in for the Tor executable, run in a JVM of its own by the script {@link #install} writes. It opens a
+ * control port, writes the control port and cookie files and answers every command with 250 OK, or with the pid,
+ * socks listener and bootstrap phase for GETINFO. How many times it was launched is kept in a file; every launch up
+ * to <code>crashes</code> reports 10% bootstrap progress and exits with 1 once the manager has finished starting
+ * it and sent nothing for a moment, later launches report 100% and run until they are told to halt.
+ */
+final class FakeTorProcess {
+    private static final int CRASH_AFTER_IDLE_MILLIS = 500;
+
+    /**
+     * Writes a script that runs this class and returns it, for {@link TorConfig.Builder#torExecutable(File)}
+     */
+    static File install(File dir, TorConfig config, File launches, int crashes) throws IOException {
+        File script = new File(dir, "fake-tor");
+        List<String> lines = new ArrayList<>();
+        lines.add("#!/bin/sh");
+        lines.add("exec " + quote(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java")
+                + " -cp " + quote(System.getProperty("java.class.path")) + " " + FakeTorProcess.class.getName()
+                + " " + quote(config.getControlPortFile().getAbsolutePath())
+                + " " + quote(config.getCookieAuthFile().getAbsolutePath())
+                + " " + quote(launches.getAbsolutePath()) + " " + crashes);
+        Files.write(script.toPath(), lines, StandardCharsets.UTF_8);
+        if (!script.setExecutable(true)) {
+            throw new IOException("Could not make " + script + " executable");
+        }
+        return script;
+    }
+
+    /**
+     * Returns how many times the fake has been launched
+     */
+    static int launches(File launches) throws IOException {
+        if (!launches.exists()) {
+            return 0;
+        }
+        return Integer.parseInt(new String(Files.readAllBytes(launches.toPath()), StandardCharsets.UTF_8).trim());
+    }
+
+    private static String quote(String argument) {
+        return "'" + argument.replace("'", "'\\''") + "'";
+    }
+
+    public static void main(String[] args) throws IOException {
+        File controlPortFile = new File(args[0]);
+        File cookieFile = new File(args[1]);
+        File launchesFile = new File(args[2]);
+        int launch = launches(launchesFile) + 1;
+        Files.write(launchesFile.toPath(), Integer.toString(launch).getBytes(StandardCharsets.UTF_8));
+        boolean crash = launch <= Integer.parseInt(args[3]);
+
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        Files.write(cookieFile.toPath(), new byte[32]);
+        Files.write(controlPortFile.toPath(),
+                ("PORT=127.0.0.1:" + server.getLocalPort() + "\n").getBytes(StandardCharsets.UTF_8));
+
+        Socket socket = server.accept();
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        OutputStream out = socket.getOutputStream();
+        if (crash) {
+            socket.setSoTimeout(CRASH_AFTER_IDLE_MILLIS);
+        }
+        String command;
+        while ((command = readCommand(in)) != null) {
+            if (command.startsWith("GETINFO")) {
+                out.write(("250-process/pid=4242\r\n"
+                        + "250-net/listeners/socks=\"127.0.0.1:9050\"\r\n"
+                        + "250-status/bootstrap-phase=NOTICE BOOTSTRAP PROGRESS=" + (crash ? 10 : 100)
+                        + " TAG=conn SUMMARY=\"Connecting\"\r\n"
+                        + "250 OK\r\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } else {
+                out.write("250 OK\r\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                if (command.startsWith("SIGNAL HALT") || command.startsWith("SIGNAL SHUTDOWN")) {
+                    break;
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Returns the next command, or exits with 1 if the manager has been quiet for long enough to have finished
+     * starting us
+     */
+    private static String readCommand(BufferedReader in) throws IOException {
+        try {
+            return in.readLine();
+        } catch (SocketTimeoutException e) {
+            System.exit(1);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HashRingTest {
+    private static final int SHARDS = 4;
+    private static final int KEYS = 10000;
+
+    @Test
+    public void spreadsDestinationsEvenly() {
+        HashRing ring = new HashRing(SHARDS, 160);
+        boolean[] available = all(true);
+        int[] counts = new int[SHARDS];
+        for (int i = 0; i < KEYS; i++) {
+            counts[ring.shardFor("host" + i + ".onion", available)]++;
+        }
+        for (int count : counts) {
+            // Within 25% of a fair share
+            assertTrue(Arrays.toString(counts), Math.abs(count - KEYS / SHARDS) < KEYS / SHARDS / 4);
+        }
+    }
+
+    @Test
+    public void onlyMovesDestinationsOfUnavailableShard() {
+        HashRing ring = new HashRing(SHARDS, 160);
+        boolean[] available = all(true);
+        boolean[] withoutTwo = all(true);
+        withoutTwo[2] = false;
+        for (int i = 0; i < KEYS; i++) {
+            String host = "host" + i + ".onion";
+            int before = ring.shardFor(host, available);
+            int after = ring.shardFor(host, withoutTwo);
+            if (before == 2) {
+                assertNotEquals(2, after);
+            } else {
+                assertEquals(before, after);
+            }
+        }
+        assertEquals(-1, ring.shardFor("host.onion", all(false)));
+    }
+
+    private static boolean[] all(boolean value) {
+        boolean[] available = new boolean[SHARDS];
+        Arrays.fill(available, value);
+        return available;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HedgedConnectorTest {
+    private final List<Socks5Client> clients = new ArrayList<>();
+    private ServerSocket silent;
+    private HedgedConnector connector;
+
+    @After
+    public void tearDown() throws IOException {
+        if (connector != null) {
+            connector.close();
+        }
+        for (Socks5Client client : clients) {
+            client.close();
+        }
+        if (silent != null) {
+            silent.close();
+        }
+    }
+
+    private Socks5Client client(InetSocketAddress proxy) throws IOException {
+        Socks5Client client = new Socks5Client(proxy, 5, TimeUnit.SECONDS);
+        clients.add(client);
+        return client;
+    }
+
+    @Test(timeout = 10000)
+    public void hedgeWinsWhenTheFirstAttemptStalls() throws Exception {
+        silent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        FakeSocks5Server proxy = new FakeSocks5Server(true, 0);
+        connector = new HedgedConnector(Arrays.asList(
+                client(new InetSocketAddress(silent.getInetAddress(), silent.getLocalPort())),
+                client(proxy.address())));
+        connector.setInitialDelay(100, TimeUnit.MILLISECONDS);
+
+        SocketChannel channel = connector.connect("abc.onion", 80, "interactive", "0").get();
+        channel.close();
+
+        assertEquals("interactive", proxy.username);
+        assertEquals("0#1", proxy.password);
+        assertEquals(Long.valueOf(1), connector.toMetrics().get("socks.hedge.hedge_wins"));
+    }
+
+    @Test(timeout = 20000)
+    public void hedgedConnectsCountFromTheFirstAttempt() throws Exception {
+        silent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        FakeSocks5Server proxy = new FakeSocks5Server(false, 0);
+        connector = new HedgedConnector(Arrays.asList(
+                client(new InetSocketAddress(silent.getInetAddress(), silent.getLocalPort())),
+                client(proxy.address())));
+        connector.setInitialDelay(100, TimeUnit.MILLISECONDS);
+        connector.setMinDelay(0, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 20; i++) {
+            connector.connect("abc.onion", 80).get().close();
+        }
+        // Timing the hedges alone would have brought the delay down to a few milliseconds
+        assertTrue(connector.getHedgeDelay(TimeUnit.MILLISECONDS) >= 100);
+    }
+
+    @Test(timeout = 10000)
+    public void failsOnceEveryAttemptHasFailed() throws Exception {
+        FakeSocks5Server first = new FakeSocks5Server(false, Socks5Exception.HOST_UNREACHABLE);
+        FakeSocks5Server second = new FakeSocks5Server(true, Socks5Exception.HOST_UNREACHABLE);
+        connector = new HedgedConnector(Arrays.asList(client(first.address()), client(second.address())));
+        // Failures start the next attempt without waiting for the hedge delay
+        connector.setInitialDelay(1, TimeUnit.HOURS);
+
+        try {
+            connector.connect("abc.onion", 80).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof Socks5Exception);
+        }
+        assertEquals("hedge", second.username);
+        assertEquals(Long.valueOf(1), connector.toMetrics().get("socks.hedge.failures"));
+    }
+
+    @Test
+    public void delayFollowsThePercentileOfConnectTimes() throws IOException {
+        connector = new HedgedConnector(client(new InetSocketAddress(InetAddress.getLoopbackAddress(), 9)));
+        connector.setPercentile(0.9);
+        connector.setInitialDelay(3, TimeUnit.SECONDS);
+        assertEquals(3000, connector.getHedgeDelay(TimeUnit.MILLISECONDS));
+
+        for (int i = 100; i >= 1; i--) {
+            connector.recordConnectTime(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(90, connector.getHedgeDelay(TimeUnit.MILLISECONDS));
+
+        connector.setMinDelay(200, TimeUnit.MILLISECONDS);
+        assertEquals(200, connector.getHedgeDelay(TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class IsolationKeyAllocatorTest {
+
+    @Test
+    public void spreadsStreamsOverCircuits() {
+        IsolationKeyAllocator allocator = new IsolationKeyAllocator(3);
+        for (int i = 0; i < 7; i++) {
+            allocator.acquire("bulk");
+        }
+        assertArrayEquals(new int[]{3, 2, 2}, allocator.getStreamCounts("bulk"));
+    }
+
+    @Test
+    public void reusesTheLeastBusyCircuit() {
+        IsolationKeyAllocator allocator = new IsolationKeyAllocator(2);
+        IsolationKeyAllocator.Key first = allocator.acquire("bulk");
+        allocator.acquire("bulk");
+        allocator.acquire("bulk");
+        first.close();
+        first.close();
+
+        assertArrayEquals(new int[]{1, 1}, allocator.getStreamCounts("bulk"));
+        assertEquals(first.getPassword(), allocator.acquire("bulk").getPassword());
+    }
+
+    @Test
+    public void keepsClassesApart() {
+        IsolationKeyAllocator allocator = new IsolationKeyAllocator(4);
+        allocator.setCircuits("interactive", 1);
+        IsolationKeyAllocator.Key bulk = allocator.acquire("bulk");
+        IsolationKeyAllocator.Key interactive = allocator.acquire("interactive");
+        allocator.acquire("interactive");
+
+        assertNotEquals(bulk.getUsername(), interactive.getUsername());
+        assertArrayEquals(new int[]{2}, allocator.getStreamCounts("interactive"));
+        assertArrayEquals(new int[]{1, 0, 0, 0}, allocator.getStreamCounts("bulk"));
+    }
+}
@@ -0,0 +1,48 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OnionProxyContextTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void createsUnixSocketDirsForOwnerOnly() throws Exception {
+        File socketDir = new File(folder.getRoot(), "sockets");
+        TorConfig config = new TorConfig.Builder(folder.getRoot(), folder.getRoot())
+                .socksSocketFile(new File(socketDir, "socks"))
+                .build();
+        FakeOnionProxyManager.Context context = new FakeOnionProxyManager.Context(config);
+        // Only turns on unix domain socket support, nothing is connected
+        context.unixSocketStandIn = new InetSocketAddress(0);
+
+        assertTrue(context.createUnixSocketDirs());
+        assertTrue(socketDir.isDirectory());
+        assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(socketDir.toPath())));
+    }
+}
@@ -0,0 +1,51 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class OnionProxyManagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 60000)
+    public void startWithRepeatRetriesWhenTorExitsDuringBootstrap() throws Exception {
+        // The fake Tor executable is a shell script
+        assumeTrue(File.separatorChar == '/');
+        File launches = new File(folder.getRoot(), "launches");
+        TorConfig defaults = TorConfig.createDefault(folder.newFolder("config"));
+        TorConfig config = new TorConfig.Builder(defaults.getInstallDir(), defaults.getConfigDir())
+                .torExecutable(FakeTorProcess.install(folder.getRoot(), defaults, launches, 1))
+                .build();
+        Files.write(config.getTorrcFile().toPath(), new byte[0]);
+
+        OnionProxyManager manager = new OnionProxyManager(new FakeOnionProxyManager.Context(config));
+        try {
+            assertTrue(manager.startWithRepeat(30, 2, false));
+            assertEquals(2, FakeTorProcess.launches(launches));
+        } finally {
+            manager.close();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class RestartPolicyTest {
+
+    @Test
+    public void delayDoublesUpToTheMaximum() {
+        RestartPolicy policy = new RestartPolicy(6, 1, 10, TimeUnit.SECONDS);
+        assertEquals(1000, policy.getDelayMillis(0));
+        assertEquals(2000, policy.getDelayMillis(1));
+        assertEquals(4000, policy.getDelayMillis(2));
+        assertEquals(8000, policy.getDelayMillis(3));
+        assertEquals(10000, policy.getDelayMillis(4));
+        assertEquals(10000, policy.getDelayMillis(5));
+    }
+
+    @Test
+    public void noDelayOnceAttemptsAreUsedUp() {
+        RestartPolicy policy = new RestartPolicy(2, 1, 10, TimeUnit.SECONDS);
+        assertEquals(-1, policy.getDelayMillis(2));
+        assertEquals(-1, RestartPolicy.NEVER.getDelayMillis(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMaxDelayBelowInitialDelay() {
+        new RestartPolicy(1, 10, 1, TimeUnit.SECONDS);
+    }
+}
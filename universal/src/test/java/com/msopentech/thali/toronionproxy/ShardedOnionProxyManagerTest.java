@@ -0,0 +1,174 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ShardedOnionProxyManagerTest {
+    private static final int SHARDS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<FakeOnionProxyManager> created = new ArrayList<>();
+
+    private final ShardedOnionProxyManager.ShardFactory factory = new ShardedOnionProxyManager.ShardFactory() {
+        @Override
+        public OnionProxyManager create(int shard, TorSettings settings) throws IOException {
+            FakeOnionProxyManager manager = new FakeOnionProxyManager(shard, folder.newFolder());
+            manager.state = FakeOnionProxyManager.RUNNING.withSocksListeners("\"127.0.0.1:" + (9050 + shard) + "\"");
+            created.add(manager);
+            return manager;
+        }
+    };
+
+    private ShardedOnionProxyManager sharded;
+
+    @After
+    public void close() throws IOException {
+        if (sharded != null) {
+            sharded.close();
+        }
+    }
+
+    private ShardedOnionProxyManager create(ShardedOnionProxyManager.Balancing balancing) throws IOException {
+        sharded = new ShardedOnionProxyManager(factory, null, SHARDS, balancing);
+        return sharded;
+    }
+
+    @Test
+    public void breaksTiesRoundRobin() throws IOException {
+        ShardedOnionProxyManager sharded = create(ShardedOnionProxyManager.Balancing.LEAST_CONNECTIONS);
+        for (int i = 0; i < 2 * SHARDS; i++) {
+            ShardedOnionProxyManager.Lease lease = sharded.acquire("example.com");
+            assertEquals(i % SHARDS, lease.getShard());
+            lease.close();
+        }
+    }
+
+    @Test
+    public void picksShardWithFewestLeases() throws IOException {
+        ShardedOnionProxyManager sharded = create(ShardedOnionProxyManager.Balancing.LEAST_CONNECTIONS);
+        sharded.acquire(null);
+        ShardedOnionProxyManager.Lease second = sharded.acquire(null);
+        sharded.acquire(null);
+        second.close();
+
+        ShardedOnionProxyManager.Lease lease = sharded.acquire(null);
+        assertEquals(second.getShard(), lease.getShard());
+        assertSame(created.get(lease.getShard()), lease.getManager());
+        assertEquals(9050 + lease.getShard(), lease.getSocksPort());
+    }
+
+    @Test
+    public void skipsShardsThatAreNotRunning() throws IOException {
+        ShardedOnionProxyManager sharded = create(ShardedOnionProxyManager.Balancing.LEAST_CONNECTIONS);
+        created.get(1).state = TorState.DISCONNECTED;
+        for (int i = 0; i < 2 * SHARDS; i++) {
+            assertNotEquals(1, sharded.acquire("example.com").getShard());
+        }
+        assertEquals(SHARDS, sharded.getConnectionCount(0));
+        assertEquals(0, sharded.getConnectionCount(1));
+        assertEquals(SHARDS, sharded.getConnectionCount(2));
+    }
+
+    @Test
+    public void failsWhenNoShardIsRunning() throws IOException {
+        ShardedOnionProxyManager sharded = create(ShardedOnionProxyManager.Balancing.LEAST_CONNECTIONS);
+        for (FakeOnionProxyManager manager : created) {
+            manager.state = TorState.DISCONNECTED;
+        }
+        try {
+            sharded.acquire("example.com");
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void releasesLeaseOnce() throws IOException {
+        ShardedOnionProxyManager sharded = create(ShardedOnionProxyManager.Balancing.LEAST_CONNECTIONS);
+        ShardedOnionProxyManager.Lease first = sharded.acquire(null);
+        ShardedOnionProxyManager.Lease second = sharded.acquire(null);
+        ShardedOnionProxyManager.Lease third = sharded.acquire(null);
+        ShardedOnionProxyManager.Lease fourth = sharded.acquire(null);
+        assertEquals(first.getShard(), fourth.getShard());
+        assertEquals(2, sharded.getConnectionCount(first.getShard()));
+
+        first.close();
+        first.close();
+        assertEquals(1, sharded.getConnectionCount(first.getShard()));
+        fourth.close();
+        second.close();
+        third.close();
+        for (int shard = 0; shard < SHARDS; shard++) {
+            assertEquals(0, sharded.getConnectionCount(shard));
+        }
+    }
+
+    @Test
+    public void keepsDestinationOnItsShard() throws IOException {
+        ShardedOnionProxyManager sharded = create(ShardedOnionProxyManager.Balancing.CONSISTENT_HASH);
+        int shard = sharded.acquire("example.com").getShard();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(shard, sharded.acquire("example.com").getShard());
+        }
+
+        created.get(shard).state = TorState.DISCONNECTED;
+        int moved = sharded.acquire("example.com").getShard();
+        assertNotEquals(shard, moved);
+        assertEquals(moved, sharded.acquire("example.com").getShard());
+    }
+
+    @Test(timeout = 10000)
+    public void retriesShardsThatFailedToStart() throws Exception {
+        ShardedOnionProxyManager sharded = create(ShardedOnionProxyManager.Balancing.LEAST_CONNECTIONS);
+        sharded.setRetryPolicy(new RestartPolicy(5, 10, 10, TimeUnit.MILLISECONDS));
+        created.get(1).failingStarts = 2;
+
+        assertEquals(SHARDS - 1, sharded.start(5));
+        while (!sharded.getFailedShards().isEmpty()) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, created.get(1).starts.get());
+        assertTrue(created.get(1).started);
+    }
+
+    @Test(timeout = 10000)
+    public void reportsShardsItGaveUpOn() throws Exception {
+        ShardedOnionProxyManager sharded = create(ShardedOnionProxyManager.Balancing.LEAST_CONNECTIONS);
+        sharded.setRetryPolicy(RestartPolicy.NEVER);
+        created.get(2).failingStarts = 1;
+
+        assertEquals(SHARDS - 1, sharded.start(5));
+        assertEquals(Collections.singletonList(2), sharded.getFailedShards());
+        assertEquals(1, created.get(2).starts.get());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * Measures the latency of a SOCKS4a handshake with {@link Utilities#socks4aSocketConnection} against a fake proxy on
+ * the loopback interface, next to the handshake it replaced, which wrote the request a field at a time with Nagle's
+ * algorithm on and read the reply in four reads. Not run as part of the tests. Run the main method, optionally with
+ * the number of connections per round.
+ */
+public final class Socks4aHandshakeBenchmark {
+    private static final String HOST = "expyuzz4wqqyqhjn.onion";
+    private static final int ROUNDS = 5;
+
+    private Socks4aHandshakeBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        FakeSocks4aServer server = new FakeSocks4aServer(FakeSocks4aServer.GRANTED);
+        try {
+            // Warm up both paths before measuring
+            run(server.getPort(), connections / 4, true);
+            run(server.getPort(), connections / 4, false);
+            for (int round = 1; round <= ROUNDS; round++) {
+                long[] legacy = run(server.getPort(), connections, true);
+                long[] current = run(server.getPort(), connections, false);
+                System.out.println("round " + round + ": field by field " + summary(legacy)
+                        + " | single write " + summary(current));
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private static long[] run(int port, int connections, boolean legacy) throws IOException {
+        long[] micros = new long[connections];
+        for (int i = 0; i < connections; i++) {
+            long start = System.nanoTime();
+            Socket socket = legacy ? legacyConnection(HOST, 80, "127.0.0.1", port)
+                    : Utilities.socks4aSocketConnection(HOST, 80, "127.0.0.1", port);
+            micros[i] = (System.nanoTime() - start) / 1000;
+            socket.close();
+        }
+        Arrays.sort(micros);
+        return micros;
+    }
+
+    private static String summary(long[] sortedMicros) {
+        return "p50=" + sortedMicros[sortedMicros.length / 2] + "us p99="
+                + sortedMicros[sortedMicros.length * 99 / 100] + "us";
+    }
+
+    /**
+     * The handshake as socks4aSocketConnection did it before
+     */
+    private static Socket legacyConnection(String networkHost, int networkPort, String socksHost, int socksPort)
+            throws IOException {
+        Socket socket = new Socket();
+        socket.setSoTimeout(60000);
+        socket.connect(new InetSocketAddress(socksHost, socksPort), 60000);
+
+        DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+        outputStream.write((byte)0x04);
+        outputStream.write((byte)0x01);
+        outputStream.writeShort((short)networkPort);
+        outputStream.writeInt(0x01);
+        outputStream.write((byte)0x00);
+        outputStream.write(networkHost.getBytes());
+        outputStream.write((byte)0x00);
+
+        DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+        byte firstByte = inputStream.readByte();
+        byte secondByte = inputStream.readByte();
+        if (firstByte != (byte)0x00 || secondByte != (byte)0x5a) {
+            socket.close();
+            throw new IOException("SOCKS4a connect failed");
+        }
+        inputStream.readShort();
+        inputStream.readInt();
+        return socket;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Socks5ClientTest {
+    private static final String ONION = "expyuzz4wqqyqhjn.onion";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Socks5Client client;
+
+    @After
+    public void tearDown() {
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void connectsToOnionByName() throws Exception {
+        FakeSocks5Server proxy = new FakeSocks5Server(false, 0);
+        client = new Socks5Client(proxy.address());
+
+        SocketChannel channel = client.connect(ONION, 80).get();
+        // The handshake reply has been consumed, what follows is from the destination
+        channel.configureBlocking(true);
+        ByteBuffer next = ByteBuffer.allocate(1);
+        channel.read(next);
+        assertEquals(42, next.get(0));
+        channel.close();
+
+        byte[] request = proxy.request.toByteArray();
+        assertEquals(3, request[3]);
+        assertEquals(ONION, new String(request, 5, request[4], "UTF-8"));
+        assertArrayEquals(new byte[]{0, 80}, new byte[]{request[request.length - 2], request[request.length - 1]});
+    }
+
+    @Test(timeout = 10000)
+    public void authenticatesWithUsernameAndPassword() throws Exception {
+        FakeSocks5Server proxy = new FakeSocks5Server(true, 0);
+        client = new Socks5Client(proxy.address());
+
+        client.connect(ONION, 80, "isolation-1", "").get().close();
+        assertEquals("isolation-1", proxy.username);
+    }
+
+    @Test(timeout = 10000)
+    public void reportsExtendedErrorCodes() throws Exception {
+        FakeSocks5Server proxy = new FakeSocks5Server(false, Socks5Exception.ONION_DESCRIPTOR_NOT_FOUND);
+        client = new Socks5Client(proxy.address());
+
+        try {
+            client.connect(ONION, 80).get();
+            fail();
+        } catch (ExecutionException e) {
+            Socks5Exception cause = (Socks5Exception) e.getCause();
+            assertEquals(Socks5Exception.ONION_DESCRIPTOR_NOT_FOUND, cause.getReplyCode());
+            assertTrue(cause.isOnionServiceError());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void timesOutWhenTheProxyDoesNotAnswer() throws Exception {
+        ServerSocket silent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        client = new Socks5Client(new InetSocketAddress(silent.getInetAddress(), silent.getLocalPort()),
+                200, TimeUnit.MILLISECONDS);
+        try {
+            client.connect(ONION, 80).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        } finally {
+            silent.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void connectsOverUnixDomainSocket() throws Exception {
+        FakeSocks5Server proxy = new FakeSocks5Server(true, 0);
+        FakeOnionProxyManager.Context context = new FakeOnionProxyManager.Context(folder.getRoot());
+        context.unixSocketStandIn = proxy.address();
+        client = new Socks5Client(context, new File(folder.getRoot(), "socks.sock"));
+
+        client.connect(ONION, 80, "isolation-1", "").get().close();
+        assertEquals("isolation-1", proxy.username);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void refusesUnixDomainSocketWithoutSupport() throws IOException {
+        new Socks5Client(new FakeOnionProxyManager.Context(folder.getRoot()), new File(folder.getRoot(), "socks.sock"));
+    }
+}
@@ -0,0 +1,156 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SocksConnectionPoolTest {
+    private static final String ONION = "expyuzz4wqqyqhjn.onion";
+
+    private ServerSocket server;
+    private final List<Socket> accepted = new CopyOnWriteArrayList<>();
+    private SocksConnectionPool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        accepted.add(server.accept());
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        // Stands in for Tor: every destination is the local server
+        pool = new SocksConnectionPool(new SocksConnectionPool.Connector() {
+            @Override
+            public Socket connect(String host, int port, String isolationKey) throws IOException {
+                return SocketChannel.open(new InetSocketAddress(server.getInetAddress(), server.getLocalPort()))
+                        .socket();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        pool.close();
+        server.close();
+        for (Socket socket : accepted) {
+            socket.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void reusesReturnedConnection() throws IOException {
+        SocksConnectionPool.Lease first = pool.acquire(ONION, 80, 1, TimeUnit.SECONDS);
+        Socket socket = first.getSocket();
+        assertFalse(first.isReused());
+        first.close();
+
+        SocksConnectionPool.Lease second = pool.acquire(ONION, 80, 1, TimeUnit.SECONDS);
+        assertSame(socket, second.getSocket());
+        assertTrue(second.isReused());
+        second.close();
+
+        assertEquals(Long.valueOf(1), pool.toMetrics().get("socks.pool.created"));
+        assertEquals(Long.valueOf(1), pool.toMetrics().get("socks.pool.reused"));
+        assertEquals(Long.valueOf(1), pool.toMetrics().get("socks.pool.idle"));
+    }
+
+    @Test(timeout = 10000)
+    public void neverSharesAcrossIsolationKeys() throws IOException {
+        SocksConnectionPool.Lease first = pool.acquire(ONION, 80, "alice", 1, TimeUnit.SECONDS);
+        Socket socket = first.getSocket();
+        first.close();
+
+        SocksConnectionPool.Lease second = pool.acquire(ONION, 80, "bob", 1, TimeUnit.SECONDS);
+        assertNotSame(socket, second.getSocket());
+        second.close();
+    }
+
+    @Test(timeout = 10000)
+    public void waitsOnceMaxPerRouteAreLeased() throws IOException {
+        pool.setMaxPerRoute(1);
+        SocksConnectionPool.Lease first = pool.acquire(ONION, 80, 1, TimeUnit.SECONDS);
+        try {
+            pool.acquire(ONION, 80, 100, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (SocketTimeoutException e) {
+            // Expected
+        }
+        // Another route isn't affected
+        pool.acquire(ONION, 443, 100, TimeUnit.MILLISECONDS).close();
+        first.close();
+        pool.acquire(ONION, 80, 100, TimeUnit.MILLISECONDS).close();
+        assertEquals(Long.valueOf(1), pool.toMetrics().get("socks.pool.waits"));
+    }
+
+    @Test(timeout = 10000)
+    public void discardsConnectionClosedByPeer() throws Exception {
+        SocksConnectionPool.Lease first = pool.acquire(ONION, 80, 1, TimeUnit.SECONDS);
+        Socket socket = first.getSocket();
+        first.close();
+        while (accepted.isEmpty()) {
+            Thread.sleep(10);
+        }
+        accepted.get(0).close();
+        Thread.sleep(100);
+
+        SocksConnectionPool.Lease second = pool.acquire(ONION, 80, 1, TimeUnit.SECONDS);
+        assertNotSame(socket, second.getSocket());
+        assertTrue(socket.isClosed());
+        second.close();
+    }
+
+    @Test(timeout = 10000)
+    public void evictsIdleConnections() throws Exception {
+        pool.setIdleTimeout(10, TimeUnit.MILLISECONDS);
+        SocksConnectionPool.Lease lease = pool.acquire(ONION, 80, 1, TimeUnit.SECONDS);
+        Socket socket = lease.getSocket();
+        lease.close();
+        Thread.sleep(50);
+        pool.evictIdle();
+
+        assertTrue(socket.isClosed());
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(Long.valueOf(1), pool.toMetrics().get("socks.pool.evicted"));
+    }
+}
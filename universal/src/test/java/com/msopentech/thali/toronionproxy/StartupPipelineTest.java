@@ -0,0 +1,164 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StartupPipelineTest {
+    private static final long STEP_MILLIS = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Installing the executable, installing the resources and building the torrc each wait here until all three
+     * have started, so the pipeline only gets past them if they run at the same time
+     */
+    private final CountDownLatch independentSteps = new CountDownLatch(3);
+    private volatile IOException resourcesFailure;
+    private volatile String writtenTorrc;
+    private FakeOnionProxyManager manager;
+
+    private void awaitIndependentSteps() {
+        independentSteps.countDown();
+        try {
+            if (!independentSteps.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Independent steps didn't run concurrently");
+            }
+            Thread.sleep(STEP_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final TorInstaller installer = new TorInstaller() {
+        @Override
+        public void setup() {
+        }
+
+        @Override
+        public void setupExecutable() {
+            awaitIndependentSteps();
+        }
+
+        @Override
+        public void setupResources() throws IOException {
+            awaitIndependentSteps();
+            if (resourcesFailure != null) {
+                throw resourcesFailure;
+            }
+        }
+
+        @Override
+        public void updateTorConfigCustom(String content) {
+            writtenTorrc = content;
+        }
+
+        @Override
+        public InputStream openBridgesStream() {
+            return null;
+        }
+    };
+
+    private final TorSettings settings = new DefaultSettings() {
+        private volatile boolean waited;
+
+        @Override
+        public String getSocksPort() {
+            // Called while the torrc is built
+            if (!waited) {
+                waited = true;
+                awaitIndependentSteps();
+            }
+            return super.getSocksPort();
+        }
+    };
+
+    @After
+    public void tearDown() throws IOException {
+        if (manager != null) {
+            manager.close();
+        }
+    }
+
+    private FakeOnionProxyManager createManager() throws IOException {
+        return new FakeOnionProxyManager(0, new FakeOnionProxyManager.Context(folder.newFolder(), installer, settings));
+    }
+
+    @Test(timeout = 10000)
+    public void runsIndependentStepsConcurrently() throws Exception {
+        manager = createManager();
+        StartupPipeline.Result result = manager.installAndStart(5).get();
+
+        assertTrue(result.isBootstrapped());
+        assertTrue(manager.started);
+        assertNotNull(writtenTorrc);
+        assertEquals(new HashSet<>(Arrays.asList(StartupPipeline.INSTALL_EXECUTABLE,
+                StartupPipeline.INSTALL_RESOURCES, StartupPipeline.BUILD_TORRC, StartupPipeline.WRITE_TORRC,
+                StartupPipeline.START, StartupPipeline.GEOIP, StartupPipeline.BOOTSTRAP)),
+                result.getStepMillis().keySet());
+        // The three independent steps took STEP_MILLIS each but overlapped
+        assertTrue(result.getSequentialMillis() >= 3 * STEP_MILLIS);
+        assertTrue(result.getElapsedMillis() < result.getSequentialMillis());
+        assertTrue(result.getSavedMillis() > 0);
+    }
+
+    @Test(timeout = 10000)
+    public void failedStepFailsTheResult() throws Exception {
+        resourcesFailure = new IOException("geoip missing");
+        manager = createManager();
+        try {
+            manager.installAndStart(5).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(resourcesFailure, e.getCause());
+        }
+        // Tor doesn't need the resources to launch
+        assertTrue(manager.started);
+    }
+
+    @Test
+    public void resultAddsUpStepTimings() {
+        Map<String, Long> steps = new LinkedHashMap<>();
+        steps.put(StartupPipeline.INSTALL_EXECUTABLE, 300L);
+        steps.put(StartupPipeline.BUILD_TORRC, 100L);
+        steps.put(StartupPipeline.START, 200L);
+        StartupPipeline.Result result = new StartupPipeline.Result(false, 450, steps);
+
+        assertFalse(result.isBootstrapped());
+        assertEquals(600, result.getSequentialMillis());
+        assertEquals(150, result.getSavedMillis());
+        assertEquals(0, new StartupPipeline.Result(true, 700, steps).getSavedMillis());
+    }
+}
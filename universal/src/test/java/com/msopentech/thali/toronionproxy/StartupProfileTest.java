@@ -0,0 +1,59 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StartupProfileTest {
+    private static final long START = 1000000000L;
+
+    @Test
+    public void keepsFirstTimeMilestoneIsReached() {
+        StartupProfile profile = new StartupProfile(START);
+        assertFalse(profile.isReached(StartupProfile.Milestone.AUTHENTICATED));
+        assertEquals(-1, profile.getElapsed(StartupProfile.Milestone.AUTHENTICATED, TimeUnit.MILLISECONDS));
+
+        profile.record(StartupProfile.Milestone.AUTHENTICATED, START + TimeUnit.MILLISECONDS.toNanos(40));
+        // A reconnect authenticates again, which must not move the startup figure
+        profile.record(StartupProfile.Milestone.AUTHENTICATED, START + TimeUnit.MILLISECONDS.toNanos(900));
+
+        assertTrue(profile.isReached(StartupProfile.Milestone.AUTHENTICATED));
+        assertTrue(profile.isLaunched());
+        assertEquals(40, profile.getElapsed(StartupProfile.Milestone.AUTHENTICATED, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void exportsMetricsInMilestoneOrder() {
+        StartupProfile profile = new StartupProfile(START);
+        profile.recordBootstrap(100, START + TimeUnit.MILLISECONDS.toNanos(3000));
+        profile.record(StartupProfile.Milestone.PROCESS_SPAWNED, START + TimeUnit.MILLISECONDS.toNanos(5));
+        profile.recordBootstrap(5, START + TimeUnit.MILLISECONDS.toNanos(200));
+        profile.record(StartupProfile.Milestone.CONTROL_PORT_FILE, START + TimeUnit.MILLISECONDS.toNanos(30));
+
+        Map<String, Long> metrics = profile.toMetrics();
+        assertEquals("[tor.startup.process_spawned.ms, tor.startup.control_port_file.ms, "
+                + "tor.startup.bootstrap.5.ms, tor.startup.bootstrap.100.ms]", metrics.keySet().toString());
+        assertEquals(Long.valueOf(30), metrics.get("tor.startup.control_port_file.ms"));
+        assertEquals(Long.valueOf(3000), metrics.get("tor.startup.bootstrap.100.ms"));
+        assertEquals(-1, profile.getBootstrapElapsed(50, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import net.freehaven.tor.control.ConfigEntry;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TorControlConnectionTest {
+
+    /**
+     * Records what is sent and answers every command with the same reply, 250 OK unless given
+     */
+    private static final class FakeTor extends Writer {
+        final StringWriter sent = new StringWriter();
+        final PipedWriter replies = new PipedWriter();
+        final PipedReader reader;
+        final String reply;
+
+        FakeTor() throws IOException {
+            this("250 OK\r\n");
+        }
+
+        FakeTor(String reply) throws IOException {
+            this.reply = reply;
+            reader = new PipedReader(replies, 8192);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            sent.write(chars, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            replies.write(reply);
+            replies.flush();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void applyConfSendsOneCommand() throws IOException {
+        FakeTor tor = new FakeTor();
+        TorControlConnection connection = new TorControlConnection(tor.reader, tor);
+        connection.launchThread(true);
+        connection.applyConf(Arrays.asList(
+                new ConfigEntry("ExitNodes", "{us},{ca}"),
+                new ConfigEntry("StrictNodes"),
+                new ConfigEntry("HiddenServicePort", "80 127.0.0.1:\"8080\"")));
+        assertEquals("RESETCONF ExitNodes=\"{us},{ca}\" StrictNodes "
+                + "HiddenServicePort=\"80 127.0.0.1:\\\"8080\\\"\"\r\n", tor.sent.toString());
+    }
+
+    @Test(timeout = 10000)
+    public void getConfMapGroupsValuesByOption() throws IOException {
+        // HiddenServicePort is set twice, ExitNodes isn't set and SocksPort is reported with its default
+        FakeTor tor = new FakeTor("250-HiddenServicePort=80 127.0.0.1:8080\r\n"
+                + "250-HiddenServicePort=443 127.0.0.1:8443\r\n"
+                + "250-ExitNodes\r\n"
+                + "250 SocksPort=9050\r\n");
+        TorControlConnection connection = new TorControlConnection(tor.reader, tor);
+        connection.launchThread(true);
+
+        Map<String, List<String>> conf = connection.getConfMap(
+                Arrays.asList("HiddenServicePort", "ExitNodes", "SocksPort"));
+        assertEquals("GETCONF HiddenServicePort ExitNodes SocksPort\r\n", tor.sent.toString());
+        assertEquals(Arrays.asList("HiddenServicePort", "ExitNodes", "SocksPort"),
+                Arrays.asList(conf.keySet().toArray()));
+        assertEquals(Arrays.asList("80 127.0.0.1:8080", "443 127.0.0.1:8443"), conf.get("HiddenServicePort"));
+        assertEquals(Collections.<String>emptyList(), conf.get("ExitNodes"));
+        assertEquals(Collections.singletonList("9050"), conf.get("SocksPort"));
+        assertFalse(conf.containsKey("DisableNetwork"));
+    }
+
+    @Test(timeout = 10000)
+    public void getInfoSendsAllKeysAtOnce() throws IOException {
+        FakeTor tor = new FakeTor("250-process/pid=42\r\n"
+                + "250+config-text=\r\nSocksPort 9050\r\nControlPort 9051\r\n.\r\n"
+                + "250-net/listeners/socks=\"127.0.0.1:9050\"\r\n"
+                + "250 OK\r\n");
+        TorControlConnection connection = new TorControlConnection(tor.reader, tor);
+        connection.launchThread(true);
+
+        Map<String, String> info = connection.getInfo(
+                Arrays.asList("process/pid", "config-text", "net/listeners/socks"));
+        assertEquals("GETINFO process/pid config-text net/listeners/socks\r\n", tor.sent.toString());
+        assertEquals("42", info.get("process/pid"));
+        assertEquals("SocksPort 9050\nControlPort 9051\n", info.get("config-text"));
+        assertEquals("\"127.0.0.1:9050\"", info.get("net/listeners/socks"));
+    }
+
+    @Test(timeout = 10000)
+    public void confChangedEventReachesListener() throws Exception {
+        FakeTor tor = new FakeTor();
+        TorControlConnection connection = new TorControlConnection(tor.reader, tor);
+        final BlockingQueue<List<ConfigEntry>> received = new LinkedBlockingQueue<>();
+        connection.setConfChangedListener(new TorControlConnection.ConfChangedListener() {
+            @Override
+            public void confChanged(List<ConfigEntry> changes) {
+                received.add(changes);
+            }
+        });
+        connection.launchThread(true);
+
+        tor.replies.write("650-CONF_CHANGED\r\n650-SocksPort=9150\r\n650-ExitNodes\r\n650 OK\r\n");
+        tor.replies.flush();
+
+        List<ConfigEntry> changes = received.take();
+        assertEquals(2, changes.size());
+        assertEquals("SocksPort", changes.get(0).key);
+        assertEquals("9150", changes.get(0).value);
+        assertEquals("ExitNodes", changes.get(1).key);
+        assertTrue(changes.get(1).is_default);
+        assertTrue(connection.isReaderThreadAlive());
+    }
+}
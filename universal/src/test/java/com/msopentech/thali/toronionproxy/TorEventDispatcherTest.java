@@ -0,0 +1,99 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TorEventDispatcherTest {
+
+    private static class Recorder implements TorEventListener {
+        CircuitEvent circuit;
+        StatusEvent status;
+        int circuitEvents;
+
+        @Override
+        public void circuitStatus(CircuitEvent event) {
+            circuit = event;
+            circuitEvents++;
+        }
+
+        @Override
+        public void orConnStatus(OrConnEvent event) {
+        }
+
+        @Override
+        public void bandwidthUsed(BandwidthEvent event) {
+        }
+
+        @Override
+        public void status(StatusEvent event) {
+            status = event;
+        }
+
+        @Override
+        public void message(StatusEvent.Severity severity, String message) {
+        }
+    }
+
+    @Test
+    public void parsesCircuitEvents() {
+        TorEventDispatcher dispatcher = new TorEventDispatcher();
+        Recorder recorder = new Recorder();
+        dispatcher.addListener(recorder);
+        dispatcher.circuitStatus("BUILT", "12", "$AAAA~alpha,$BBBB~beta,$CCCC~gamma");
+        CircuitEvent first = recorder.circuit;
+        assertEquals(CircuitEvent.Status.BUILT, first.getStatus());
+        assertEquals(12, first.getId());
+        assertEquals(3, first.getHopCount());
+        assertEquals("$BBBB~beta", first.getHop(1));
+
+        dispatcher.circuitStatus("LAUNCHED", "13", "");
+        assertSame(first, recorder.circuit);
+        assertEquals(CircuitEvent.Status.LAUNCHED, recorder.circuit.getStatus());
+        assertEquals(0, recorder.circuit.getHopCount());
+        assertEquals(2, recorder.circuitEvents);
+    }
+
+    @Test
+    public void parsesStatusEvents() {
+        TorEventDispatcher dispatcher = new TorEventDispatcher();
+        Recorder recorder = new Recorder();
+        dispatcher.addListener(recorder);
+        dispatcher.unrecognized("STATUS_CLIENT",
+                "NOTICE BOOTSTRAP PROGRESS=85 TAG=ap_conn_done SUMMARY=\"Connected to a relay to build circuits\"");
+        StatusEvent event = recorder.status;
+        assertEquals(StatusEvent.Type.CLIENT, event.getType());
+        assertEquals(StatusEvent.Severity.NOTICE, event.getSeverity());
+        assertTrue(event.isAction("BOOTSTRAP"));
+        assertFalse(event.isAction("BOOT"));
+        assertEquals("85", event.getArgument("PROGRESS"));
+        assertEquals("Connected to a relay to build circuits", event.getArgument("SUMMARY"));
+        assertNull(event.getArgument("WARNING"));
+    }
+
+    @Test
+    public void ignoresOtherUnrecognizedEvents() {
+        TorEventDispatcher dispatcher = new TorEventDispatcher();
+        Recorder recorder = new Recorder();
+        dispatcher.addListener(recorder);
+        dispatcher.unrecognized("HS_DESC", "UPLOAD abc");
+        assertNull(recorder.status);
+    }
+}
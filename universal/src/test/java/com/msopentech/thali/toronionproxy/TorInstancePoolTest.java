@@ -0,0 +1,160 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TorInstancePoolTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<FakeOnionProxyManager> created = new CopyOnWriteArrayList<>();
+
+    private final TorInstancePool.Factory factory = new TorInstancePool.Factory() {
+        @Override
+        public OnionProxyManager create(int slot) throws IOException {
+            FakeOnionProxyManager manager = new FakeOnionProxyManager(slot, folder.newFolder());
+            created.add(manager);
+            return manager;
+        }
+    };
+
+    @Test
+    public void promotesStandbyWhenActiveFails() throws Exception {
+        TorInstancePool pool = new TorInstancePool(factory, 1, 10);
+        try {
+            pool.start();
+            FakeOnionProxyManager first = (FakeOnionProxyManager) pool.getActive();
+            assertEquals(0, first.index);
+            awaitReadyStandbys(pool, 1);
+
+            first.state = TorState.DISCONNECTED;
+            pool.checkActive();
+
+            FakeOnionProxyManager promoted = (FakeOnionProxyManager) pool.getActive();
+            assertNotSame(first, promoted);
+            assertEquals(1, promoted.index);
+            // The failed instance is stopped and a replacement takes over its slot
+            awaitReadyStandbys(pool, 1);
+            awaitStopped(first);
+            assertEquals(0, created.get(created.size() - 1).index);
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void skipsStandbyThatDied() throws Exception {
+        TorInstancePool pool = new TorInstancePool(factory, 2, 10);
+        try {
+            pool.start();
+            awaitReadyStandbys(pool, 2);
+            FakeOnionProxyManager dead = created.get(1);
+            FakeOnionProxyManager alive = created.get(2);
+            dead.state = TorState.DISCONNECTED;
+
+            assertSame(alive, pool.failover());
+        } finally {
+            pool.close();
+        }
+        // The previous active instance is stopped in the background, closing stops the new one
+        awaitStopped(created.get(0));
+        assertTrue(created.get(2).stopped);
+    }
+
+    @Test(timeout = 10000)
+    public void refusesSecondStartWhileFirstIsLaunching() throws Exception {
+        final CountDownLatch launching = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final TorInstancePool pool = new TorInstancePool(new TorInstancePool.Factory() {
+            @Override
+            public OnionProxyManager create(int slot) throws IOException {
+                if (slot == 0) {
+                    launching.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                return factory.create(slot);
+            }
+        }, 1, 10);
+        final AtomicReference<Exception> firstFailure = new AtomicReference<>();
+        Thread first = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pool.start();
+                } catch (Exception e) {
+                    firstFailure.set(e);
+                }
+            }
+        };
+        try {
+            first.start();
+            launching.await();
+            try {
+                pool.start();
+                fail();
+            } catch (IllegalStateException e) {
+                // Expected
+            }
+            release.countDown();
+            first.join();
+            assertNull(firstFailure.get());
+            // Only one instance was launched in slot 0, the standby in slot 1 may be starting already
+            assertSame(created.get(0), pool.getActive());
+            for (FakeOnionProxyManager manager : created.subList(1, created.size())) {
+                assertEquals(1, manager.index);
+            }
+        } finally {
+            release.countDown();
+            pool.close();
+        }
+    }
+
+    private static void awaitReadyStandbys(TorInstancePool pool, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (pool.getReadyStandbyCount() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, pool.getReadyStandbyCount());
+    }
+
+    private static void awaitStopped(FakeOnionProxyManager manager) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!manager.stopped && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(manager.stopped);
+    }
+}
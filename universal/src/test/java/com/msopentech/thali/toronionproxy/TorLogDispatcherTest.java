@@ -0,0 +1,85 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TorLogDispatcherTest {
+
+    private static TorLogLine line(String text) {
+        TorLogLine line = new TorLogLine();
+        line.set(text, false);
+        return line;
+    }
+
+    @Test(timeout = 10000)
+    public void dropsOldestLinesBehindSlowListener() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        final List<String> delivered = new ArrayList<>();
+        TorLogDispatcher dispatcher = new TorLogDispatcher(new TorLogListener() {
+            @Override
+            public void log(TorLogLine line) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                delivered.add(line.getLine());
+                done.countDown();
+            }
+        }, 2);
+        dispatcher.log(line("a"));
+        started.await();
+        // The caller isn't held up while the listener is stuck
+        dispatcher.log(line("b"));
+        dispatcher.log(line("c"));
+        dispatcher.log(line("d"));
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a", "c", "d"), delivered);
+        assertEquals(1, dispatcher.getDroppedCount());
+        dispatcher.close();
+    }
+
+    @Test(timeout = 10000)
+    public void keepsDeliveringAfterListenerFails() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        TorLogDispatcher dispatcher = new TorLogDispatcher(new TorLogListener() {
+            @Override
+            public void log(TorLogLine line) {
+                if (line.getLine().equals("bad")) {
+                    throw new IllegalStateException("listener failed");
+                }
+                done.countDown();
+            }
+        }, 4);
+        dispatcher.log(line("bad"));
+        dispatcher.log(line("good"));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        dispatcher.close();
+    }
+}
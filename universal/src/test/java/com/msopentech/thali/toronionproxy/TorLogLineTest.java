@@ -0,0 +1,62 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TorLogLineTest {
+
+    @Test
+    public void parsesNoticeWithoutComponent() {
+        TorLogLine line = new TorLogLine();
+        line.set("Oct 16 12:00:00.123 [notice] Bootstrapped 5% (conn): Connecting to a relay", false);
+        assertEquals(StatusEvent.Severity.NOTICE, line.getSeverity());
+        assertNull(line.getComponent());
+        assertEquals("Bootstrapped 5% (conn): Connecting to a relay", line.getMessage());
+        assertFalse(line.isStderr());
+    }
+
+    @Test
+    public void parsesFunctionName() {
+        TorLogLine line = new TorLogLine();
+        line.set("Oct 16 12:00:00.123 [warn] connection_connect(): Could not connect", true);
+        assertEquals(StatusEvent.Severity.WARN, line.getSeverity());
+        assertEquals("connection_connect", line.getComponent());
+        assertEquals("Could not connect", line.getMessage());
+        assertTrue(line.isStderr());
+    }
+
+    @Test
+    public void prefersDomainOverFunctionName() {
+        TorLogLine line = new TorLogLine();
+        line.set("Oct 16 12:00:00.123 [info] {NET} connection_connect(): Connecting", false);
+        assertEquals(StatusEvent.Severity.INFO, line.getSeverity());
+        assertEquals("NET", line.getComponent());
+        assertEquals("Connecting", line.getMessage());
+    }
+
+    @Test
+    public void keepsLinesInAnotherFormat() {
+        TorLogLine line = new TorLogLine();
+        line.set("Tor can't help you if you use it wrong!", true);
+        assertEquals(StatusEvent.Severity.UNKNOWN, line.getSeverity());
+        assertNull(line.getComponent());
+        assertEquals("Tor can't help you if you use it wrong!", line.getMessage());
+    }
+}
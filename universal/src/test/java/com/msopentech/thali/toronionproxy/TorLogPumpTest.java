@@ -0,0 +1,102 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TorLogPumpTest {
+
+    /**
+     * Keeps a copy of every line, stdout lines as they are and stderr lines prefixed with "err "
+     */
+    private static final class Recorder implements TorLogListener {
+        final List<String> lines = new ArrayList<>();
+
+        @Override
+        public synchronized void log(TorLogLine line) {
+            lines.add(line.isStderr() ? "err " + line.getLine() : line.getLine());
+        }
+
+        synchronized List<String> getLines() {
+            return new ArrayList<>(lines);
+        }
+    }
+
+    private static void awaitDrained(TorLogPump pump) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (pump.getSourceCount() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pump.getSourceCount());
+    }
+
+    private static void register(TorLogPump pump, Process process, TorLogListener listener) {
+        TorProcess torProcess = TorProcess.watch(process, null);
+        pump.register(process.getErrorStream(), torProcess, true, listener);
+        pump.register(process.getInputStream(), torProcess, false, listener);
+    }
+
+    @Test(timeout = 20000)
+    public void splitsOutputIntoLines() throws Exception {
+        TorLogPump pump = new TorLogPump();
+        Recorder recorder = new Recorder();
+        register(pump, ChildProcess.start("out:Oct 16 12:00:00.000 [warn] {NET} hello", "out:windows\r",
+                "err:early failure", "long:5000", "tail:last words"), recorder);
+        awaitDrained(pump);
+
+        List<String> lines = recorder.getLines();
+        assertTrue(lines.contains("err early failure"));
+        lines.remove("err early failure");
+        assertEquals(4, lines.size());
+        assertEquals(Arrays.asList("Oct 16 12:00:00.000 [warn] {NET} hello", "windows"), lines.subList(0, 2));
+        // Only the start of a line that doesn't fit the buffer is kept
+        assertEquals(TorLogPump.MAX_LINE_LENGTH, lines.get(2).length());
+        assertEquals("last words", lines.get(3));
+    }
+
+    @Test(timeout = 20000)
+    public void slowListenerBehindDispatcherDoesNotHoldUpOtherProcesses() throws Exception {
+        TorLogPump pump = new TorLogPump();
+        final CountDownLatch release = new CountDownLatch(1);
+        TorLogDispatcher stuck = new TorLogDispatcher(new TorLogListener() {
+            @Override
+            public void log(TorLogLine line) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 16);
+        Recorder recorder = new Recorder();
+        try {
+            register(pump, ChildProcess.start("out:one", "out:two", "out:three"), stuck);
+            register(pump, ChildProcess.start("sleep:200", "out:other process"), recorder);
+            awaitDrained(pump);
+            assertEquals(Arrays.asList("other process"), recorder.getLines());
+        } finally {
+            release.countDown();
+            stuck.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TorProcessTest {
+
+    private static void awaitLine(Process process, String expected) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        assertEquals(expected, reader.readLine());
+    }
+
+    @Test(timeout = 20000)
+    public void reportsExit() throws Exception {
+        final AtomicInteger reported = new AtomicInteger(-1);
+        final CountDownLatch listened = new CountDownLatch(1);
+        TorProcess process = TorProcess.watch(ChildProcess.start("exit:3"), new TorProcess.ExitListener() {
+            @Override
+            public void exited(TorProcess process, int exitValue) {
+                reported.set(exitValue);
+                listened.countDown();
+            }
+        });
+
+        assertTrue(process.awaitExit(10, TimeUnit.SECONDS));
+        assertFalse(process.isAlive());
+        assertEquals(3, process.getExitValue());
+        assertTrue(listened.await(10, TimeUnit.SECONDS));
+        assertEquals(3, reported.get());
+    }
+
+    @Test(timeout = 20000)
+    public void awaitExitTimesOutWhileRunning() throws Exception {
+        TorProcess process = TorProcess.watch(ChildProcess.start("sleep:60000"), null);
+        try {
+            long start = System.nanoTime();
+            assertFalse(process.awaitExit(200, TimeUnit.MILLISECONDS));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+            assertTrue(process.isAlive());
+            assertEquals(-1, process.getExitValue());
+        } finally {
+            process.destroyForcibly();
+        }
+        assertTrue(process.awaitExit(10, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 20000)
+    public void runsExitActions() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(2);
+        Runnable action = new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        };
+        TorProcess process = TorProcess.watch(ChildProcess.start("out:ready", "sleep:60000"), null);
+        awaitLine(process.getProcess(), "ready");
+        process.onExit(action);
+        assertEquals(2, ran.getCount());
+
+        process.destroyForcibly();
+        assertTrue(process.awaitExit(10, TimeUnit.SECONDS));
+        // Once the process is gone the action runs straight away
+        process.onExit(action);
+        assertTrue(ran.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 20000)
+    public void terminateExitsPolitely() throws Exception {
+        TorProcess process = TorProcess.watch(ChildProcess.start("out:ready", "sleep:60000"), null);
+        awaitLine(process.getProcess(), "ready");
+
+        assertTrue(process.terminate(false, 10, TimeUnit.SECONDS));
+        assertFalse(process.isAlive());
+    }
+
+    @Test(timeout = 20000)
+    public void terminateKillsProcessThatIgnoresDestroy() throws Exception {
+        TorProcess process = TorProcess.watch(ChildProcess.start("hang:", "out:ready", "sleep:60000"), null);
+        awaitLine(process.getProcess(), "ready");
+
+        long start = System.nanoTime();
+        assertTrue(process.terminate(false, 500, TimeUnit.MILLISECONDS));
+        // It only went after the grace period, when it was killed
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(500));
+        assertFalse(process.isAlive());
+    }
+}
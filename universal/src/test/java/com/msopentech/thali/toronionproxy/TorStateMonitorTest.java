@@ -0,0 +1,142 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import net.freehaven.tor.control.ConfigEntry;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TorStateMonitorTest {
+
+    /**
+     * Answers every command with the pid and socks listeners
+     */
+    private static final class FakeTor extends Writer {
+        final PipedWriter replies = new PipedWriter();
+        final PipedReader reader;
+
+        FakeTor() throws IOException {
+            reader = new PipedReader(replies);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+        }
+
+        @Override
+        public void flush() throws IOException {
+            replies.write("250-process/pid=42\r\n250-net/listeners/socks=\"127.0.0.1:9050\"\r\n250 OK\r\n");
+            replies.flush();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static TorControlConnection connection() throws IOException {
+        FakeTor tor = new FakeTor();
+        TorControlConnection connection = new TorControlConnection(tor.reader, tor);
+        connection.launchThread(true);
+        return connection;
+    }
+
+    @Test
+    public void runningOnceConnectedBootstrappedAndEnabled() throws IOException {
+        TorStateMonitor monitor = new TorStateMonitor();
+        assertFalse(monitor.get().isConnected());
+
+        monitor.connected(connection(), false);
+        monitor.bootstrapProgress(100, "done", "Done");
+        assertTrue(monitor.get().isConnected());
+        assertTrue(monitor.get().isBootstrapped());
+        assertFalse(monitor.get().isRunning());
+
+        monitor.networkEnabled(true);
+        assertTrue(monitor.get().isRunning());
+    }
+
+    @Test
+    public void ignoresEventsWithoutConnection() {
+        TorStateMonitor monitor = new TorStateMonitor();
+        monitor.bootstrapProgress(100, "done", "Done");
+        monitor.networkEnabled(true);
+        assertEquals(TorState.DISCONNECTED, monitor.get());
+    }
+
+    @Test
+    public void bootstrapProgressNeverGoesBack() throws IOException {
+        TorStateMonitor monitor = new TorStateMonitor();
+        monitor.connected(connection(), true);
+        monitor.bootstrapProgress(100, "done", "Done");
+        // The seed from GETINFO status/bootstrap-phase, delivered late
+        monitor.bootstrapProgress(80, "ap_conn", "Connecting");
+        assertEquals(100, monitor.get().getBootstrapProgress());
+        assertTrue(monitor.get().isRunning());
+    }
+
+    @Test
+    public void newConnectionStartsOver() throws IOException {
+        TorStateMonitor monitor = new TorStateMonitor();
+        monitor.connected(connection(), true);
+        monitor.bootstrapProgress(100, "done", "Done");
+
+        monitor.disconnected();
+        assertEquals(TorState.DISCONNECTED, monitor.get());
+
+        monitor.connected(connection(), true);
+        monitor.bootstrapProgress(10, "conn_done", "Connected to a relay");
+        assertEquals(10, monitor.get().getBootstrapProgress());
+        assertFalse(monitor.get().isRunning());
+    }
+
+    @Test(timeout = 10000)
+    public void refreshReadsPidAndSocksListeners() throws IOException {
+        TorStateMonitor monitor = new TorStateMonitor();
+        monitor.connected(connection(), true);
+        monitor.refresh();
+        assertEquals(42, monitor.get().getPid());
+        assertEquals(Arrays.asList("127.0.0.1:9050"), monitor.get().getSocksListeners());
+        assertEquals(9050, monitor.get().getIPv4LocalHostSocksPort());
+    }
+
+    @Test(timeout = 10000)
+    public void confChangedFollowsDisableNetwork() throws IOException {
+        TorStateMonitor monitor = new TorStateMonitor();
+        monitor.connected(connection(), true);
+        monitor.bootstrapProgress(100, "done", "Done");
+
+        monitor.confChanged(Collections.singletonList(new ConfigEntry("DisableNetwork", "1")));
+        assertFalse(monitor.get().isRunning());
+
+        monitor.confChanged(Collections.singletonList(new ConfigEntry("DisableNetwork")));
+        assertTrue(monitor.get().isRunning());
+    }
+
+    @Test
+    public void findsUnixSocksListener() {
+        TorState state = TorState.DISCONNECTED.withSocksListeners("\"127.0.0.1:9050\" \"unix:/run/tor/socks\"");
+        assertEquals(9050, state.getIPv4LocalHostSocksPort());
+        assertEquals(new File("/run/tor/socks"), state.getSocksSocketFile());
+        assertNull(TorState.DISCONNECTED.getSocksSocketFile());
+    }
+}
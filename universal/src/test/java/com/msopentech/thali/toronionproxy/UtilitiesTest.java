@@ -0,0 +1,108 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UtilitiesTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeSocks4aServer server;
+
+    @After
+    public void tearDown() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void sendsSocks4aRequest() throws IOException {
+        server = new FakeSocks4aServer(FakeSocks4aServer.GRANTED);
+        Socket socket = Utilities.socks4aSocketConnection("abc.onion", 0x1F90, "127.0.0.1", server.getPort());
+        assertTrue(socket.getTcpNoDelay());
+        socket.close();
+
+        assertArrayEquals(new byte[]{4, 1, 0x1F, (byte) 0x90, 0, 0, 0, 1, 0,
+                'a', 'b', 'c', '.', 'o', 'n', 'i', 'o', 'n', 0}, server.lastRequest);
+    }
+
+    @Test(timeout = 10000)
+    public void failsWhenRequestIsRejected() throws IOException {
+        server = new FakeSocks4aServer(FakeSocks4aServer.REJECTED);
+        try {
+            Utilities.socks4aSocketConnection("abc.onion", 80, "127.0.0.1", server.getPort());
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("SOCKS4a connect failed"));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void sendsSocks5CredentialsAndRequest() throws IOException {
+        FakeSocks5Server proxy = new FakeSocks5Server(true, 0);
+        Socket socket = Utilities.socks5SocketConnection("abc.onion", 80, "127.0.0.1", proxy.address().getPort(),
+                "bulk", "3");
+        assertTrue(socket.getTcpNoDelay());
+        // The whole reply has been consumed, what follows is from the destination
+        assertEquals(42, socket.getInputStream().read());
+        socket.close();
+
+        assertEquals("bulk", proxy.username);
+        assertEquals("3", proxy.password);
+        assertArrayEquals(new byte[]{5, 1, 0, 3, 9, 'a', 'b', 'c', '.', 'o', 'n', 'i', 'o', 'n', 0, 80},
+                proxy.request.toByteArray());
+    }
+
+    @Test(timeout = 10000)
+    public void reportsSocks5ReplyCode() throws IOException {
+        FakeSocks5Server proxy = new FakeSocks5Server(false, Socks5Exception.ONION_DESCRIPTOR_NOT_FOUND);
+        try {
+            Utilities.socks5SocketConnection("abc.onion", 80, "127.0.0.1", proxy.address().getPort(), null, null);
+            fail();
+        } catch (Socks5Exception e) {
+            assertEquals(Socks5Exception.ONION_DESCRIPTOR_NOT_FOUND, e.getReplyCode());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void connectsOverUnixDomainSocket() throws IOException {
+        FakeSocks5Server proxy = new FakeSocks5Server(false, 0);
+        FakeOnionProxyManager.Context context = new FakeOnionProxyManager.Context(folder.getRoot());
+        context.unixSocketStandIn = proxy.address();
+        SocketChannel channel = Utilities.socks5SocketConnection("abc.onion", 80, context,
+                new File(folder.getRoot(), "socks.sock"), null, null);
+        // The whole reply has been consumed, what follows is from the destination
+        assertEquals(42, Channels.newInputStream(channel).read());
+        channel.close();
+
+        assertArrayEquals(new byte[]{5, 1, 0, 3, 9, 'a', 'b', 'c', '.', 'o', 'n', 'i', 'o', 'n', 0, 80},
+                proxy.request.toByteArray());
+    }
+}